@@ -0,0 +1,131 @@
+package com.oohlalog.logging;
+
+
+/**
+ * Tunes the flush threshold and the time between timed flushes so that logs reach the server within a
+ * target time of their creation, in as few requests as that allows.  Both are tuned AIMD style from
+ * the outcome of each flush: while the logs of a batch were delivered within the target, the one that
+ * limited the batch grows by a step, and when they were not, both are halved.
+ *
+ * Batches cut short by the threshold mean logs arrive faster than the timer; the threshold then grows,
+ * but no further than the logs that arrive within the target, less the time an upload takes.  Batches
+ * sent by the timer mean logs arrive slowly; the time between flushes then grows, to no more than the
+ * target less the upload time.  When the buffer still holds a full batch after a late one, the uploads
+ * cannot keep up, and the threshold grows instead of shrinking, since fewer, larger requests carry more
+ * logs.
+ *
+ * Called by one flush at a time.
+ */
+class BatchTuner {
+	// Default bounds
+	static final int DEFAULT_MIN_THRESHOLD = 10;
+	static final int DEFAULT_MAX_THRESHOLD = 1000;
+	static final long DEFAULT_MIN_TIME_BUFFER = 100;
+
+	// Number of additive steps from the lower to the upper bound
+	private static final int STEPS = 20;
+
+	// Weight of the latest flush in the moving averages of the arrival rate and upload time
+	private static final double ALPHA = 0.25;
+
+	private final long target;
+	private final int minThreshold;
+	private final int maxThreshold;
+	private final long minTimeBuffer;
+	private final long maxTimeBuffer;
+	private final int thresholdStep;
+	private final long timeBufferStep;
+
+	private int threshold;
+	private long timeBuffer;
+
+	// Logs per millisecond arriving in the buffer, and milliseconds per upload
+	private double arrivalRate = 0;
+	private double uploadMillis = 0;
+
+	// When the previous measured flush started
+	private long lastFlushStart = 0;
+
+
+	/**
+	 * Constructor that creates a tuner.
+	 *
+	 * @param target the time in milliseconds within which logs should reach the server
+	 * @param threshold the initial threshold
+	 * @param minThreshold the smallest threshold
+	 * @param maxThreshold the largest threshold
+	 * @param minTimeBuffer the shortest time between timed flushes, in milliseconds
+	 * @param maxTimeBuffer the longest time between timed flushes, in milliseconds
+	 */
+	BatchTuner(long target, int threshold, int minThreshold, int maxThreshold, long minTimeBuffer, long maxTimeBuffer) {
+		this.target = target;
+		this.minThreshold = Math.max(1, minThreshold);
+		this.maxThreshold = Math.max(this.minThreshold, maxThreshold);
+		this.minTimeBuffer = Math.max(1, minTimeBuffer);
+		this.maxTimeBuffer = Math.max(this.minTimeBuffer, maxTimeBuffer);
+		this.thresholdStep = Math.max(1, (this.maxThreshold - this.minThreshold) / STEPS);
+		this.timeBufferStep = Math.max(1, target / STEPS);
+		this.threshold = clamp(threshold, this.minThreshold, this.maxThreshold);
+		// Logs may wait the whole time, so start with half the target
+		this.timeBuffer = Math.max(this.minTimeBuffer, Math.min(this.maxTimeBuffer, target / 2));
+	}
+
+
+	/**
+	 * Records the delivery of a batch and tunes the threshold and time between flushes.
+	 *
+	 * @param logs the number of logs in the batch, 0 if it was sent before or came from the journal
+	 * @param oldestMillis the creation time of the oldest log in the batch
+	 * @param start when the flush started
+	 * @param end when the batch was delivered
+	 * @param full whether the flush was started by the threshold rather than the timer
+	 * @param backlog whether the buffer still holds at least a threshold of logs
+	 */
+	void onFlush(int logs, long oldestMillis, long start, long end, boolean full, boolean backlog) {
+		if (logs <= 0) return;
+		uploadMillis = average(uploadMillis, end - start);
+		if (lastFlushStart > 0 && start > lastFlushStart) {
+			arrivalRate = average(arrivalRate, (double)logs / (start - lastFlushStart));
+		}
+		lastFlushStart = start;
+
+		long budget = Math.max(0, target - (long)uploadMillis);
+		if (end - oldestMillis > target) {
+			if (full && backlog) {
+				threshold = Math.min(maxThreshold, threshold + thresholdStep);
+			}
+			else {
+				threshold = Math.max(minThreshold, threshold / 2);
+				timeBuffer = Math.max(minTimeBuffer, timeBuffer / 2);
+			}
+		}
+		else if (full) {
+			int fill = backlog ? maxThreshold : (int)Math.min(maxThreshold, (long)(arrivalRate * budget));
+			threshold = clamp(Math.min(threshold + thresholdStep, fill), minThreshold, maxThreshold);
+		}
+		else {
+			long limit = Math.max(minTimeBuffer, Math.min(maxTimeBuffer, budget));
+			timeBuffer = Math.min(limit, timeBuffer + timeBufferStep);
+		}
+	}
+
+
+	int getThreshold() {
+		return threshold;
+	}
+
+
+	long getTimeBuffer() {
+		return timeBuffer;
+	}
+
+
+	private static double average(double avg, double value) {
+		return (avg == 0) ? value : avg + ALPHA * (value - avg);
+	}
+
+
+	private static int clamp(int value, int min, int max) {
+		return Math.max(min, Math.min(max, value));
+	}
+}
@@ -0,0 +1,187 @@
+package com.oohlalog.logging;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+
+/**
+ * Compresses request bodies with gzip or deflate into a reusable buffer.  Bodies smaller than the
+ * minimum size are sent as they are.  An instance is used by one thread at a time, the thread that
+ * sends the payload, and records the ratio and CPU time of every batch it compresses in the Stats
+ * shared by the handler.
+ */
+class Compressor {
+	// Supported content encodings
+	static final String NONE = "none";
+	static final String GZIP = "gzip";
+	static final String DEFLATE = "deflate";
+
+	// Default settings
+	static final int DEFAULT_MIN_BYTES = 1024;
+	static final int DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	private final String encoding;
+	private final int minBytes;
+	private final Deflater deflater;
+	private final CRC32 crc = new CRC32();
+	private final Stats stats;
+	private final boolean debug;
+
+	// Holds the compressed body
+	private byte[] buf = new byte[8192];
+
+	// Number of valid bytes in buf
+	private int count;
+
+
+	/**
+	 * Constructor that creates a compressor.
+	 *
+	 * @param encoding the content encoding, NONE, GZIP or DEFLATE
+	 * @param minBytes bodies smaller than this are not compressed
+	 * @param level the deflate compression level, 0-9 or -1 for the default
+	 * @param stats where to record the results of compression
+	 * @param debug whether to print the result of every compression
+	 */
+	Compressor(String encoding, int minBytes, int level, Stats stats, boolean debug) {
+		this.encoding = encoding;
+		this.minBytes = minBytes;
+		this.deflater = NONE.equals(encoding) ? null : new Deflater(level, GZIP.equals(encoding));
+		this.stats = stats;
+		this.debug = debug;
+	}
+
+
+	/**
+	 * Compresses a body if compression is enabled and the body is large enough.
+	 *
+	 * @param body the buffer holding the body
+	 * @param len the number of bytes of body
+	 * @return whether the body was compressed into this compressor's buffer
+	 */
+	boolean compress(byte[] body, int len) {
+		if (deflater == null || len < minBytes) return false;
+		long start = cpuTime();
+
+		count = 0;
+		deflater.reset();
+		if (GZIP.equals(encoding)) {
+			ensureCapacity(10);
+			// Magic number, deflate method, no flags, no mtime, no extra flags, unknown OS
+			buf[0] = 0x1f; buf[1] = (byte)0x8b; buf[2] = 8; buf[3] = 0;
+			buf[4] = 0; buf[5] = 0; buf[6] = 0; buf[7] = 0; buf[8] = 0; buf[9] = (byte)0xff;
+			count = 10;
+			crc.reset();
+			crc.update(body, 0, len);
+		}
+		deflater.setInput(body, 0, len);
+		deflater.finish();
+		while (!deflater.finished()) {
+			ensureCapacity(Math.max(len >> 2, 512));
+			count += deflater.deflate(buf, count, buf.length - count);
+		}
+		if (GZIP.equals(encoding)) {
+			ensureCapacity(8);
+			writeIntLE((int)crc.getValue());
+			writeIntLE(len);
+		}
+
+		long cpu = cpuTime() - start;
+		stats.record(len, count, cpu);
+		if (debug) System.out.println( ">>>>>>>>>>>Compressed " + len + " bytes to " + count + " (" + encoding + ", ratio "
+				+ ((double)count / len) + ", " + (cpu / 1000) + " us cpu)" );
+		return true;
+	}
+
+
+	/**
+	 * Returns the content encoding of the compressed body.
+	 */
+	String getEncoding() {
+		return encoding;
+	}
+
+
+	/**
+	 * Returns the buffer holding the compressed body.  Only the first size() bytes are valid.
+	 */
+	byte[] getBuffer() {
+		return buf;
+	}
+
+
+	/**
+	 * Returns the number of bytes of the compressed body.
+	 */
+	int size() {
+		return count;
+	}
+
+
+	private void writeIntLE(int v) {
+		buf[count++] = (byte)v;
+		buf[count++] = (byte)(v >> 8);
+		buf[count++] = (byte)(v >> 16);
+		buf[count++] = (byte)(v >> 24);
+	}
+
+
+	private void ensureCapacity(int extra) {
+		if (count + extra > buf.length) {
+			byte[] bigger = new byte[Math.max(buf.length << 1, count + extra)];
+			System.arraycopy(buf, 0, bigger, 0, count);
+			buf = bigger;
+		}
+	}
+
+
+	private static long cpuTime() {
+		return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+
+
+	/**
+	 * Totals of all compressions done for one handler.
+	 */
+	static class Stats {
+		private final AtomicLong batches = new AtomicLong();
+		private final AtomicLong rawBytes = new AtomicLong();
+		private final AtomicLong compressedBytes = new AtomicLong();
+		private final AtomicLong cpuNanos = new AtomicLong();
+
+		void record(long raw, long compressed, long cpu) {
+			batches.incrementAndGet();
+			rawBytes.addAndGet(raw);
+			compressedBytes.addAndGet(compressed);
+			cpuNanos.addAndGet(cpu);
+		}
+
+		/**
+		 * Returns the number of batches compressed.
+		 */
+		long getBatches() {
+			return batches.get();
+		}
+
+		/**
+		 * Returns compressed bytes divided by uncompressed bytes over all batches.
+		 */
+		double getRatio() {
+			long raw = rawBytes.get();
+			return (raw == 0) ? 1.0 : (double)compressedBytes.get() / raw;
+		}
+
+		/**
+		 * Returns the average CPU time spent compressing one batch, in milliseconds.
+		 */
+		double getCpuMillisPerBatch() {
+			long n = batches.get();
+			return (n == 0) ? 0.0 : cpuNanos.get() / 1e6 / n;
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package com.oohlalog.logging;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * The threads shared by every handler in the JVM that uses the same thread mode: one dispatcher thread,
+ * which times the flushes and stats of all of their LogControllers, and one pool of upload threads.
+ * Each handler keeps its own buffer and settings, and the connections to an endpoint are shared by
+ * HttpTransport, so the number of threads and connections does not grow with the number of handlers.
+ *
+ * A LogController has at most one flush and one stats upload queued or running at a time, and uploads
+ * wait for a free upload thread in the order they were started, so busy handlers take turns and one of
+ * them cannot hold every upload thread.  The queue of uploads is bounded all the same; an upload that
+ * does not fit is rejected, and its controller starts it again on a later round of the dispatcher.
+ *
+ * A scheduler is started when the first handler of its thread mode registers, and stopped when the
+ * last one unregisters; its upload threads end once the uploads already started are done.
+ */
+class FlushScheduler {
+	// Default number of upload threads
+	static final int DEFAULT_WORKERS = 4;
+
+	// Time after which an idle upload thread ends
+	private static final long WORKER_IDLE_TIMEOUT = 60000;
+
+	// Maximum number of uploads waiting for an upload thread
+	private static final int QUEUE_CAPACITY = 1024;
+
+	// The running schedulers, by thread mode, guarded by the class
+	private static final Map<String, FlushScheduler> schedulers = new HashMap<String, FlushScheduler>();
+
+	private final String mode;
+
+	// Number of controllers that got the scheduler and have not unregistered, guarded by the class
+	private int users = 0;
+
+	// The registered controllers, replaced as a whole when one registers or unregisters
+	private volatile LogController[] controllers = new LogController[0];
+
+	private volatile boolean stopped = false;
+
+	// The thread deciding when to flush logs and send stats, and whether it is parked
+	private final Thread dispatcher;
+	private volatile boolean waiting = false;
+
+	// The threads uploading logs and stats
+	private final ThreadPoolExecutor workers;
+
+
+	private FlushScheduler(String mode, int workers, boolean debug) {
+		this.mode = mode;
+		this.workers = new ThreadPoolExecutor(workers, workers, WORKER_IDLE_TIMEOUT, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), ThreadFactories.get(mode, "oohlalog-upload", debug),
+				new ThreadPoolExecutor.AbortPolicy());
+		this.workers.allowCoreThreadTimeOut(true);
+		this.dispatcher = ThreadFactories.get(mode, "oohlalog-dispatcher", false).newThread( new Runnable() {
+			public void run() {
+				dispatch();
+			}
+		});
+	}
+
+
+	/**
+	 * Returns the scheduler of a thread mode for a controller to register with, starting it if it is not
+	 * running.  The scheduler keeps running until the controller unregisters.
+	 *
+	 * @param mode the thread mode, ThreadFactories.PLATFORM or ThreadFactories.VIRTUAL
+	 * @param workers the number of upload threads the controller asks for; the scheduler uses the
+	 *        largest number any of its controllers asked for
+	 * @param debug whether to print debug output
+	 * @return the scheduler
+	 */
+	static synchronized FlushScheduler get(String mode, int workers, boolean debug) {
+		FlushScheduler scheduler = schedulers.get(mode);
+		if (scheduler == null) {
+			scheduler = new FlushScheduler(mode, Math.max(1, workers), debug);
+			schedulers.put(mode, scheduler);
+			scheduler.dispatcher.start();
+		}
+		else if (workers > scheduler.workers.getMaximumPoolSize()) {
+			scheduler.workers.setMaximumPoolSize(workers);
+			scheduler.workers.setCorePoolSize(workers);
+		}
+		scheduler.users++;
+		return scheduler;
+	}
+
+
+	/**
+	 * Adds a controller to the ones the dispatcher times.
+	 *
+	 * @param controller a controller that got this scheduler from get()
+	 */
+	void register(LogController controller) {
+		synchronized (FlushScheduler.class) {
+			LogController[] cs = Arrays.copyOf(controllers, controllers.length + 1);
+			cs[cs.length - 1] = controller;
+			controllers = cs;
+		}
+		unpark();
+	}
+
+
+	/**
+	 * Unregisters a controller.  Uploads it already started still run.  The scheduler stops once every
+	 * controller that got it from get() has unregistered.
+	 *
+	 * @param controller the controller
+	 */
+	void unregister(LogController controller) {
+		synchronized (FlushScheduler.class) {
+			LogController[] cs = controllers;
+			for (int i = 0; i < cs.length; i++) {
+				if (cs[i] == controller) {
+					LogController[] rest = new LogController[cs.length - 1];
+					System.arraycopy(cs, 0, rest, 0, i);
+					System.arraycopy(cs, i + 1, rest, i, cs.length - i - 1);
+					controllers = rest;
+					break;
+				}
+			}
+			if (--users == 0) {
+				schedulers.remove(mode);
+				stopped = true;
+				LockSupport.unpark(dispatcher);
+				workers.shutdown();
+			}
+		}
+	}
+
+
+	/**
+	 * The loop of the dispatcher thread.  Every round it lets each controller start what is due, and then
+	 * parks until the earliest time one of them asked to be called again, or until it is unparked by a
+	 * controller.
+	 */
+	private void dispatch() {
+		while (!stopped) {
+			LogController[] cs = controllers;
+			long now = System.currentTimeMillis();
+			long wait = Long.MAX_VALUE;
+			for (LogController c : cs) {
+				try {
+					wait = Math.min(wait, c.dispatch(now));
+				}
+				catch (RuntimeException e) {
+					// One handler failing must not stop the others
+					c.dispatchFailed(e);
+				}
+			}
+			if (wait <= 0) continue;
+
+			// Publish that we are waiting before checking again, so a producer adding a log at the same
+			// time either sees the flag or is seen by the check.
+			waiting = true;
+			boolean mayWait = !stopped;
+			for (int i = 0; mayWait && i < cs.length; i++) {
+				mayWait = cs[i].mayWait();
+			}
+			if (mayWait) {
+				if (wait == Long.MAX_VALUE) LockSupport.park(this);
+				else LockSupport.parkNanos(this, wait * 1000000L);
+			}
+			waiting = false;
+		}
+	}
+
+
+	/**
+	 * Wakes the dispatcher if it is parked.
+	 */
+	void wake() {
+		if (waiting) LockSupport.unpark(dispatcher);
+	}
+
+
+	/**
+	 * Makes the dispatcher run another round, even if it is about to park.
+	 */
+	void unpark() {
+		LockSupport.unpark(dispatcher);
+	}
+
+
+	/**
+	 * Runs an upload on one of the upload threads.
+	 *
+	 * @param upload the upload
+	 * @throws java.util.concurrent.RejectedExecutionException if the scheduler has been stopped or too many
+	 *         uploads are waiting
+	 */
+	void execute(Runnable upload) {
+		workers.execute(upload);
+	}
+}
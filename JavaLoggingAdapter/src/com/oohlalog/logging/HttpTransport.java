@@ -0,0 +1,160 @@
+package com.oohlalog.logging;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Sends request bodies to one OohLaLog endpoint (scheme, host and port) over connections that are kept
+ * open between requests.  Transports are shared: every payload, log or stats, from every handler
+ * that is configured for the same endpoint and transport settings goes through the same instance.
+ * Each get() is matched by a release(), and a transport is closed once the last user releases it.
+ */
+abstract class HttpTransport {
+	// Names of the available transport implementations
+	static final String POOLED = "pooled";
+	static final String HTTP_CLIENT = "httpclient";
+
+	// Default transport settings
+	static final int DEFAULT_MAX_CONNECTIONS = 2;
+	static final long DEFAULT_IDLE_TIMEOUT = 30000;
+	static final int CONNECT_TIMEOUT = 10000;
+	static final int READ_TIMEOUT = 30000;
+
+	// The transports in use, keyed by endpoint and settings, guarded by the class
+	private static final Map<String, HttpTransport> transports = new HashMap<String, HttpTransport>();
+
+	// The key of the transport and the number of users that got it and have not released it, guarded by
+	// the class
+	private String key;
+	private int users = 0;
+
+
+	/**
+	 * Returns the shared transport for an endpoint, creating it if no one is using one.  The caller
+	 * releases it with release() once it no longer sends anything.
+	 *
+	 * @param type the transport implementation, POOLED or HTTP_CLIENT
+	 * @param secure whether to use https
+	 * @param host the host to connect to
+	 * @param port the port to connect to
+	 * @param maxConnections the maximum number of connections open to the endpoint at the same time
+	 * @param idleTimeout the time after which an unused connection is closed, only used by POOLED
+	 * @return the transport
+	 */
+	static synchronized HttpTransport get(String type, boolean secure, String host, int port, int maxConnections, long idleTimeout) {
+		boolean httpClient = HTTP_CLIENT.equals(type);
+		String key = (httpClient ? HTTP_CLIENT : POOLED) + "|" + secure + "|" + host + "|" + port + "|" + maxConnections
+				+ (httpClient ? "" : "|" + idleTimeout);
+		HttpTransport transport = transports.get(key);
+		if (transport == null) {
+			if (httpClient)
+				transport = new JdkHttpClientTransport(secure, host, port, maxConnections);
+			else
+				transport = new PooledHttpTransport(secure, host, port, maxConnections, idleTimeout);
+			transport.key = key;
+			transports.put(key, transport);
+		}
+		transport.users++;
+		return transport;
+	}
+
+
+	/**
+	 * Gives back a transport got from get(), closing it if no one else is using it.
+	 *
+	 * @param transport the transport, or null
+	 */
+	static synchronized void release(HttpTransport transport) {
+		if (transport == null || transport.users == 0) return;
+		if (--transport.users == 0) {
+			transports.remove(transport.key);
+			transport.close();
+		}
+	}
+
+
+	/**
+	 * Posts a JSON body and reads the complete response.
+	 *
+	 * @param path the path, including the query string, to post to
+	 * @param contentEncoding the encoding the body is compressed with, or null if it is not compressed
+	 * @param body the buffer holding the body
+	 * @param len the number of bytes of body to send
+	 * @return the response
+	 * @throws IOException if the request could not be completed
+	 */
+	abstract Response post(String path, String contentEncoding, byte[] body, int len) throws IOException;
+
+
+	/**
+	 * Closes the connections and stops the threads of the transport.  Requests already being sent are
+	 * finished first.
+	 */
+	abstract void close();
+
+
+	/**
+	 * The status, headers and body of a response.
+	 */
+	static class Response {
+		private final int status;
+		private final Map<String, String> headers;
+		private final String body;
+
+		// How long getting a connection, writing the request and reading the response took, -1 if unknown
+		private long connectNanos = -1;
+		private long writeNanos = -1;
+		private long responseNanos = -1;
+
+		Response(int status, Map<String, String> headers, String body) {
+			this.status = status;
+			this.headers = (headers != null) ? headers : Collections.<String, String>emptyMap();
+			this.body = body;
+		}
+
+		/**
+		 * Sets how long the phases of the request took.
+		 *
+		 * @return this response
+		 */
+		Response timed(long connectNanos, long writeNanos, long responseNanos) {
+			this.connectNanos = connectNanos;
+			this.writeNanos = writeNanos;
+			this.responseNanos = responseNanos;
+			return this;
+		}
+
+		long getConnectNanos() {
+			return connectNanos;
+		}
+
+		long getWriteNanos() {
+			return writeNanos;
+		}
+
+		long getResponseNanos() {
+			return responseNanos;
+		}
+
+		int getStatus() {
+			return status;
+		}
+
+		/**
+		 * Returns the value of a response header.
+		 *
+		 * @param name the header name, in lower case
+		 * @return the header value, or null if the header is absent
+		 */
+		String getHeader(String name) {
+			return headers.get(name);
+		}
+
+		String getBody() {
+			return body;
+		}
+	}
+}
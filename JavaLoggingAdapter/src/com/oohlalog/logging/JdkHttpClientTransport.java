@@ -0,0 +1,122 @@
+package com.oohlalog.logging;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiConsumer;
+
+
+/**
+ * Transport backed by java.net.http.HttpClient.  Requests are sent asynchronously, the client doing its
+ * work on a small daemon executor, and the number of requests in flight, and with it the number of
+ * connections in use, is capped.  A request holds its place until the client completes it, even if the
+ * thread that posted it stopped waiting.  The client keeps its own pool of persistent connections; how
+ * long those stay open when idle is set by the jdk.httpclient.keepalive.timeout system property.
+ */
+class JdkHttpClientTransport extends HttpTransport {
+	private final HttpClient client;
+	private final ExecutorService executor;
+	private final String baseUri;
+
+	// Limits the number of requests in flight at the same time
+	private final Semaphore permits;
+
+
+	/**
+	 * Constructor that creates a client for one endpoint.
+	 *
+	 * @param secure whether to use https
+	 * @param host the host to connect to
+	 * @param port the port to connect to
+	 * @param maxConnections the maximum number of requests in flight at the same time
+	 */
+	JdkHttpClientTransport(boolean secure, String host, int port, int maxConnections) {
+		this.baseUri = (secure ? "https" : "http") + "://" + host + ":" + port;
+		this.permits = new Semaphore(maxConnections);
+		this.executor = Executors.newFixedThreadPool(maxConnections, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "oohlalog-httpclient");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.client = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_1_1)
+				.connectTimeout(Duration.ofMillis(CONNECT_TIMEOUT))
+				.executor(executor)
+				.build();
+	}
+
+
+	@Override
+	Response post(String path, String contentEncoding, byte[] body, int len) throws IOException {
+		HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(baseUri + path))
+				.timeout(Duration.ofMillis(READ_TIMEOUT))
+				.header("Content-Type", "application/json")
+				.POST(HttpRequest.BodyPublishers.ofByteArray(body, 0, len));
+		if (contentEncoding != null) builder.header("Content-Encoding", contentEncoding);
+		HttpRequest request = builder.build();
+		long start = System.nanoTime();
+		try {
+			permits.acquire();
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to send to " + baseUri);
+		}
+		CompletableFuture<HttpResponse<String>> future;
+		try {
+			future = client.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+		}
+		catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+		future.whenComplete(new BiConsumer<HttpResponse<String>, Throwable>() {
+			public void accept(HttpResponse<String> response, Throwable t) {
+				permits.release();
+			}
+		});
+		HttpResponse<String> response;
+		try {
+			response = future.get();
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while sending to " + baseUri);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+			throw new IOException("Failed to send to " + baseUri, e.getCause());
+		}
+		Map<String, String> headers = new HashMap<String, String>();
+		for (Map.Entry<String, List<String>> e : response.headers().map().entrySet()) {
+			if (!e.getValue().isEmpty()) headers.put(e.getKey().toLowerCase(), e.getValue().get(0));
+		}
+		// The client does not tell connecting and writing apart from waiting for the response
+		return new Response(response.statusCode(), headers, response.body()).timed(-1, -1, System.nanoTime() - start);
+	}
+
+
+	/**
+	 * Stops the executor of the client.  The client has no close() before Java 21; its connections are
+	 * closed once it is no longer referenced.
+	 */
+	@Override
+	void close() {
+		executor.shutdown();
+	}
+}
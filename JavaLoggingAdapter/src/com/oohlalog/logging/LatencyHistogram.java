@@ -0,0 +1,90 @@
+package com.oohlalog.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A lock-free histogram of durations with one bucket per power of two microseconds.  Percentiles are
+ * the upper bound of the bucket they fall in, so they are exact to within a factor of two, which is
+ * enough to tell a slow server from a slow network or a full buffer.
+ */
+class LatencyHistogram {
+	// Bucket i holds durations of less than 2^i microseconds and at least half that; the last one holds the rest
+	private static final int BUCKETS = 40;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalMicros = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+
+
+	/**
+	 * Adds a duration.
+	 *
+	 * @param nanos the duration in nanoseconds, ignored if negative
+	 */
+	void record(long nanos) {
+		if (nanos < 0) return;
+		recordMicros(nanos / 1000);
+	}
+
+
+	/**
+	 * Adds a duration.
+	 *
+	 * @param micros the duration in microseconds, ignored if negative
+	 */
+	void recordMicros(long micros) {
+		if (micros < 0) return;
+		buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+		count.incrementAndGet();
+		totalMicros.addAndGet(micros);
+		long max;
+		while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {}
+	}
+
+
+	long getCount() {
+		return count.get();
+	}
+
+
+	double getMeanMicros() {
+		long n = count.get();
+		return (n == 0) ? 0.0 : (double)totalMicros.get() / n;
+	}
+
+
+	long getMaxMicros() {
+		return maxMicros.get();
+	}
+
+
+	/**
+	 * Returns the duration below which the given fraction of the durations lie.
+	 *
+	 * @param fraction the fraction, between 0 and 1
+	 * @return the duration in microseconds, 0 if nothing was recorded
+	 */
+	long getPercentileMicros(double fraction) {
+		long n = count.get();
+		if (n == 0) return 0;
+		long rank = (long)Math.ceil(fraction * n);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) return Math.min((1L << i) - 1, maxMicros.get());
+		}
+		return maxMicros.get();
+	}
+
+
+	/**
+	 * Returns the current count, mean and percentiles.
+	 */
+	LatencyStats snapshot() {
+		return new LatencyStats(getCount(), getMeanMicros(), getPercentileMicros(0.5),
+				getPercentileMicros(0.9), getPercentileMicros(0.99), getMaxMicros());
+	}
+}
@@ -0,0 +1,55 @@
+package com.oohlalog.logging;
+
+
+/**
+ * The count, mean and percentiles of one kind of duration, in microseconds.  Percentiles are rounded up
+ * to the next power of two.
+ */
+public class LatencyStats {
+	private final long count;
+	private final double meanMicros;
+	private final long p50Micros;
+	private final long p90Micros;
+	private final long p99Micros;
+	private final long maxMicros;
+
+
+	LatencyStats(long count, double meanMicros, long p50Micros, long p90Micros, long p99Micros, long maxMicros) {
+		this.count = count;
+		this.meanMicros = meanMicros;
+		this.p50Micros = p50Micros;
+		this.p90Micros = p90Micros;
+		this.p99Micros = p99Micros;
+		this.maxMicros = maxMicros;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getMeanMicros() {
+		return meanMicros;
+	}
+
+	public long getP50Micros() {
+		return p50Micros;
+	}
+
+	public long getP90Micros() {
+		return p90Micros;
+	}
+
+	public long getP99Micros() {
+		return p99Micros;
+	}
+
+	public long getMaxMicros() {
+		return maxMicros;
+	}
+
+	@Override
+	public String toString() {
+		return "LatencyStats{count=" + count + ", mean=" + meanMicros + "us, p50=" + p50Micros + "us, p90=" + p90Micros
+				+ "us, p99=" + p99Micros + "us, max=" + maxMicros + "us}";
+	}
+}
@@ -0,0 +1,251 @@
+package com.oohlalog.logging;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+
+/**
+ * Collapses repeated logs between two flushes.  Logs with the same level, message, parameters, source
+ * class and source method are kept as one entry holding the first of them, a count and the first and
+ * last timestamps.  Parameters are compared with equals(), so logs that only differ in their
+ * parameters are kept apart.  When the buffer is flushed, each entry is passed on as its first log if it was not
+ * repeated, or as a RepeatedLogRecord otherwise.
+ *
+ * Entries live in a fixed-size open addressing table, so memory does not grow with the number of
+ * distinct logs.  A log looks for the entry of its kind in the first few slots from its hash, and only
+ * takes a free slot among them if there is none.  A log that finds neither, or arrives when the table
+ * already holds its maximum number of entries, is not aggregated and goes straight to the buffer.
+ */
+class LogAggregator {
+	// Default maximum number of distinct logs held between flushes
+	static final int DEFAULT_MAX_KEYS = 1024;
+
+	// Number of slots looked at before a log is passed on unaggregated
+	private static final int MAX_PROBES = 8;
+
+	private final int maxKeys;
+	private final int mask;
+
+	// The entries, at the slot of their hash or a few slots after it
+	private final AtomicReferenceArray<Entry> table;
+
+	// Number of entries in the table
+	private final AtomicInteger keys = new AtomicInteger();
+
+	// Logs offered to the aggregator, and logs passed on after aggregation
+	private final LongAdder logsIn = new LongAdder();
+	private final LongAdder logsOut = new LongAdder();
+
+
+	/**
+	 * Constructor that creates an aggregator.
+	 *
+	 * @param maxKeys the maximum number of distinct logs held between flushes
+	 */
+	LogAggregator(int maxKeys) {
+		this.maxKeys = maxKeys;
+		int capacity = Integer.highestOneBit(Math.max(maxKeys, 1) * 2 - 1) << 1;
+		this.mask = capacity - 1;
+		this.table = new AtomicReferenceArray<Entry>(capacity);
+	}
+
+
+	/**
+	 * Adds a log to the entry of its kind, creating the entry if this is the first such log since the
+	 * last flush.
+	 *
+	 * @param lr the log
+	 * @param level the OohLaLog level of the log, or null if the log has none
+	 * @return false if the log was not aggregated and has to be added to the buffer by the caller
+	 */
+	boolean add(LogRecord lr, Level level) {
+		Level keyLevel = (level != null) ? level : lr.getLevel();
+		int hash;
+		try {
+			hash = hash(keyLevel, lr.getMessage(), lr.getSourceClassName(), lr.getSourceMethodName(), lr.getParameters());
+		}
+		catch (RuntimeException e) {
+			// A parameter whose hashCode() throws cannot be told apart from others
+			logsIn.increment();
+			logsOut.increment();
+			return false;
+		}
+		long millis = lr.getMillis();
+		for (;;) {
+			// The entry of the kind may sit after slots freed since it was created, so all of the slots
+			// are looked at before one is taken
+			int free = -1;
+			Entry freed = null;
+			for (int i = 0; i < MAX_PROBES; i++) {
+				int idx = (hash + i) & mask;
+				Entry e = table.get(idx);
+				if (e == null || e.isClosed()) {
+					if (free < 0) {
+						free = idx;
+						freed = e;
+					}
+				}
+				else if (e.matches(hash, keyLevel, lr) && e.add(millis)) {
+					logsIn.increment();
+					return true;
+				}
+			}
+			if (free < 0) break;
+			// Reserve a key before taking the slot, so racing threads cannot go over maxKeys
+			if (keys.incrementAndGet() > maxKeys) {
+				keys.decrementAndGet();
+				break;
+			}
+			if (table.compareAndSet(free, freed, new Entry(hash, keyLevel, lr, level))) {
+				logsIn.increment();
+				return true;
+			}
+			// Another thread took the slot, maybe for a log of the same kind, so look again
+			keys.decrementAndGet();
+		}
+		logsIn.increment();
+		logsOut.increment();
+		return false;
+	}
+
+
+	/**
+	 * Empties the table, adding one log per entry to the buffer.
+	 *
+	 * @param buffer the buffer to add the logs to
+	 */
+	void drainTo(LogRecordBuffer buffer) {
+		for (int idx = 0; idx <= mask; idx++) {
+			Entry e = table.get(idx);
+			if (e == null) continue;
+			// After closing, nothing more is added to the entry and its slot may be taken by a new one
+			LogRecord lr = e.close();
+			table.compareAndSet(idx, e, null);
+			keys.decrementAndGet();
+			logsOut.increment();
+			buffer.addToRings(lr, e.level);
+		}
+	}
+
+
+	/**
+	 * Returns the number of distinct logs waiting for the next flush.
+	 */
+	int size() {
+		return keys.get();
+	}
+
+
+	/**
+	 * Returns the number of logs offered to the aggregator.
+	 */
+	long getLogsIn() {
+		return logsIn.sum();
+	}
+
+
+	/**
+	 * Returns the number of logs passed on to the buffer, repeated logs counting once.
+	 */
+	long getLogsOut() {
+		return logsOut.sum();
+	}
+
+
+	/**
+	 * Returns how many logs were offered per log passed on, 1 if nothing was collapsed.
+	 */
+	double getReductionRatio() {
+		long out = logsOut.sum();
+		return (out == 0) ? 1.0 : (double)logsIn.sum() / out;
+	}
+
+
+	private static int hash(Level level, String message, String className, String methodName, Object[] parameters) {
+		int h = level.hashCode();
+		h = h * 31 + ((message != null) ? message.hashCode() : 0);
+		h = h * 31 + ((className != null) ? className.hashCode() : 0);
+		h = h * 31 + ((methodName != null) ? methodName.hashCode() : 0);
+		h = h * 31 + Arrays.hashCode(parameters);
+		return h ^ (h >>> 16);
+	}
+
+
+	private static boolean equal(String a, String b) {
+		return (a == null) ? b == null : a.equals(b);
+	}
+
+
+	private static boolean equalParameters(Object[] a, Object[] b) {
+		try {
+			return Arrays.equals(a, b);
+		}
+		catch (RuntimeException e) {
+			// Logs whose parameters cannot be compared are kept apart
+			return false;
+		}
+	}
+
+
+	/**
+	 * The logs of one kind since the last flush.
+	 */
+	private static class Entry {
+		final int hash;
+		final Level keyLevel;
+		final LogRecord first;
+		final Level level;
+		// Number of logs, or -1 once the entry is closed
+		private final AtomicInteger count = new AtomicInteger(1);
+		private final AtomicLong firstMillis;
+		private final AtomicLong lastMillis;
+
+		Entry(int hash, Level keyLevel, LogRecord first, Level level) {
+			this.hash = hash;
+			this.keyLevel = keyLevel;
+			this.first = first;
+			this.level = level;
+			this.firstMillis = new AtomicLong(first.getMillis());
+			this.lastMillis = new AtomicLong(first.getMillis());
+		}
+
+		boolean matches(int hash, Level keyLevel, LogRecord lr) {
+			return this.hash == hash && this.keyLevel.equals(keyLevel)
+					&& equal(first.getMessage(), lr.getMessage())
+					&& equal(first.getSourceClassName(), lr.getSourceClassName())
+					&& equal(first.getSourceMethodName(), lr.getSourceMethodName())
+					&& equalParameters(first.getParameters(), lr.getParameters());
+		}
+
+		boolean add(long millis) {
+			// The timestamps are updated before counting, so a closed entry has the timestamps of all
+			// the logs it counted
+			long t;
+			while (millis < (t = firstMillis.get()) && !firstMillis.compareAndSet(t, millis)) {}
+			while (millis > (t = lastMillis.get()) && !lastMillis.compareAndSet(t, millis)) {}
+			for (;;) {
+				int c = count.get();
+				if (c < 0) return false;
+				if (count.compareAndSet(c, c + 1)) return true;
+			}
+		}
+
+		boolean isClosed() {
+			return count.get() < 0;
+		}
+
+		/**
+		 * Closes the entry and returns the log standing for the logs it counted.
+		 */
+		LogRecord close() {
+			int n = count.getAndSet(-1);
+			if (n == 1) return first;
+			return new RepeatedLogRecord(first, n, firstMillis.get(), lastMillis.get());
+		}
+	}
+}
@@ -1,28 +1,50 @@
 package com.oohlalog.logging;
 
-import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class LogController {
 	// The time interval between automatic flushes of logs
-	private long timeBuffer;
+	private volatile long timeBuffer;
 	// The time interval between automatic flushes of statistical data
 	private long statsInterval;
 	// Time of last flush
-	private long lastFlush = System.currentTimeMillis();
-	// Time of last failed flush
-	private long lastFailedFlush = System.currentTimeMillis();
-	// Time to wait between failed flushes
-	private long failedFlushWait = 2000;
-	// Is a flushing process currently happening?  TODO: Implement synchronized methods instead
+	private volatile long lastFlush = System.currentTimeMillis();
+	// Number of logs sent while probing whether the server is back
+	private static final int PROBE_SIZE = 1;
+	// Is a flushing process currently happening?
 	private final AtomicBoolean flushing = new AtomicBoolean( false );
+	// Are stats currently being sent?
+	private final AtomicBoolean sendingStats = new AtomicBoolean( false );
+	// Are logs pushed out of the buffer being journaled?
+	private final AtomicBoolean spilling = new AtomicBoolean( false );
 	// Maximum size of the deque before we automatically flush it
-	private int threshold;
-	
-	private boolean shutdown = false;
-	private ExecutorService executorService;
+	private volatile int threshold;
+
+	// Tunes threshold and timeBuffer after every flush, null if they are fixed
+	private final BatchTuner tuner;
+
+	private volatile boolean shutdown = false;
+
+	// The dispatcher and upload threads, shared with the other handlers of the same thread mode
+	private FlushScheduler scheduler;
+
+	// When stats are sent next, and what the last call to dispatch() found.  Only used by the dispatcher.
+	private long nextStats = System.currentTimeMillis();
+	private boolean hadLogs = false;
+	private boolean backingOff = false;
+
+	// Flushes run one at a time, including the last ones made by close()
+	private final Object flushLock = new Object();
+
+	// Held while stats are sent, so close() can wait for them
+	private final Object statsLock = new Object();
+
+	// Compressor, snapshots and last sent metrics of the stats uploads, which run one at a time
+	private Compressor statsCompressor;
+	private final StatsSnapshot statsSnapshot = new StatsSnapshot();
+	private final StatsSnapshot statsDelta = new StatsSnapshot();
+	private final MetricTable metricTable;
 
 	// The handler instance belonging to this LogControl
 	private OohLaLogHandler handler;
@@ -30,7 +52,7 @@ public class LogController {
 
 	/**
 	 * Constructor that creates our LogControl object.
-	 * 
+	 *
 	 * @param handler the OohLaLogHandler object
 	 * @param threshold the number of logs to be held in the buffer before flushing
 	 * @param timeBuffer the maximum amount of time between buffer flushes
@@ -41,159 +63,376 @@ public class LogController {
 		this.threshold = threshold;
 		this.timeBuffer = timeBuffer;
 		this.statsInterval = statsInterval;
-		this.executorService = Executors.newFixedThreadPool(5);
+		long latencyTarget = handler.getLatencyTarget();
+		if (latencyTarget > 0) {
+			int maxThreshold = Math.min(handler.getMaxThreshold(), handler.getLogRecordBuffer().getMaxBuffer());
+			this.tuner = new BatchTuner(latencyTarget, threshold, handler.getMinThreshold(), maxThreshold,
+					handler.getMinTimeBuffer(), timeBuffer);
+			this.threshold = tuner.getThreshold();
+			this.timeBuffer = tuner.getTimeBuffer();
+		}
+		else {
+			this.tuner = null;
+		}
+		this.metricTable = new MetricTable(handler.getStatsEpsilon(), handler.getStatsKeyframeInterval());
 		init();
 	}
 
 
 	/**
-	 * Initializes the Log Control object.  It starts the thread that checks for, and handles three events:
+	 * Initializes the Log Control object.  It registers with the shared dispatcher thread, which checks for, and handles three events:
 	 * 1. Event: Deque of logs reaches threshold	Action: Flush threshold value of logs to OLL server
 	 * 2. Event: Log timer goes off					Action: Flush all logs in the deque to the OLL server
 	 * 3. Event: Stats timer goes off				Action: Flush stats to the OLL server
+	 * The uploads themselves run on the shared upload threads, which end after a minute without work.
 	 */
 	protected void init() {
-		// Starts the thread that checks to see if the size of the deque is greater than 150
-		startThresholdCheck();
-		
-		// Only start the stats thread if the user specified
-		if (this.handler.getShowStats())
-			startStatsTimer();
-		
-		// Only start the flush timer if there is something in the deque.
-		if (this.handler.getLogRecordBuffer().size() > 0)
-			startFlushTimer();
-	}
-	
-	
-	/**
-	 * Flushes the deque of log entries if the deque is of size greater than buffer threshold.
-	 */
-	protected void startThresholdCheck() {
-		final OohLaLogHandler handler = this.handler;
-		executorService.execute( new Runnable() {
-			public void run() {
-				while (!shutdown) {
-					LogRecordBuffer buffer = handler.getLogRecordBuffer();
-					if ( (buffer.size() >= threshold) && !flushing.get() && 
-							(System.currentTimeMillis() - lastFailedFlush > failedFlushWait) ) {
-						if (handler.getDebug()) System.out.println( ">>>Above Threshold" );
-						flush(threshold);	
-					}
-				}
+		scheduler = FlushScheduler.get(handler.getThreadMode(), handler.getUploadWorkers(), handler.getDebug());
+		scheduler.register(this);
+	}
+
+
+	/**
+	 * Called by the dispatcher thread to start a flush or send stats if one is due.  The dispatcher
+	 * calls again once the returned time has passed, or when it is woken by a log crossing the threshold,
+	 * by the first log added to an empty buffer or by a finishing flush.  After failed flushes it waits
+	 * for as long as the handler's retry policy says.
+	 *
+	 * @param now the current time
+	 * @return the time in milliseconds until the next flush or stats are due, 0 to be called again at
+	 *         once, or Long.MAX_VALUE if nothing is due until the dispatcher is woken
+	 */
+	long dispatch(long now) {
+		if (shutdown) return Long.MAX_VALUE;
+		// Logs pushed out of the full buffer are journaled even while flushes back off
+		if (handler.getLogRecordBuffer().hasSpilledLogs()) writeSpilled();
+		long wait = Long.MAX_VALUE;
+		hadLogs = hasLogs();
+		backingOff = false;
+		if (!flushing.get() && hadLogs) {
+			long failedWait = handler.getRetryPolicy().millisUntilNextAttempt();
+			if (failedWait > 0) {
+				wait = failedWait;
+				backingOff = true;
+			}
+			else if (handler.getLogRecordBuffer().size() >= threshold) {
+				if (handler.getDebug()) System.out.println( ">>>Above Threshold" );
+				flush(retryAmount(threshold), true);
+				return 0;
+			}
+			else if (now - lastFlush > timeBuffer) {
+				if (handler.getDebug()) System.out.println( ">>>Flushing from timer expiration" );
+				flush(retryAmount(Integer.MAX_VALUE), false);
+				return 0;
+			}
+			else {
+				wait = lastFlush + timeBuffer + 1 - now;
+			}
+		}
+
+		// Stats are sent once at startup and then at every interval
+		if (handler.getShowStats()) {
+			if (now >= nextStats) {
+				sendStats();
+				nextStats = now + statsInterval;
 			}
-		});
+			wait = Math.min(wait, nextStats - now);
+		}
+		return wait;
+	}
+
+
+	/**
+	 * Called by the dispatcher thread after it published that it is about to park, to check whether a
+	 * log added since the last call to dispatch() needs it to run again instead.
+	 *
+	 * @return false if dispatch() must be called again without waiting
+	 */
+	boolean mayWait() {
+		if (!shutdown && !spilling.get() && handler.getLogRecordBuffer().hasSpilledLogs()) return false;
+		return shutdown || backingOff || flushing.get()
+				|| ((handler.getLogRecordBuffer().size() < threshold) && (hadLogs || !hasLogs()));
+	}
+
+
+	/**
+	 * Called after a log has been added to the buffer.  Wakes the dispatcher if the buffer has reached
+	 * the threshold.
+	 *
+	 * @param size the size of the buffer after adding the log
+	 */
+	protected void signalThreshold(int size) {
+		if (size >= threshold) wakeDispatcher();
+	}
+
+
+	/**
+	 * Called after a log has been added to a striped buffer.  Wakes the dispatcher when the log was the
+	 * first in its stripe.  The whole buffer is only counted whenever the stripe grows by another
+	 * threshold / stripes logs, and the dispatcher woken if it reached the threshold.  Since some stripe
+	 * holds at least that share once the buffer reaches the threshold, a flush starts before the buffer
+	 * holds about twice the threshold.
+	 *
+	 * @param stripeSize the number of logs in the stripe after adding the log
+	 * @param stripes the number of stripes
+	 */
+	protected void signalStripe(int stripeSize, int stripes) {
+		if (stripeSize == 1) {
+			wakeDispatcher();
+		}
+		else if (stripeSize % Math.max(1, threshold / stripes) == 0) {
+			signalThreshold(handler.getLogRecordBuffer().size());
+		}
+	}
+
+
+	/**
+	 * Called when logs pushed out of the full buffer wait to be journaled.  Wakes the dispatcher so they
+	 * are journaled even while flushes back off.
+	 */
+	protected void signalSpill() {
+		wakeDispatcher();
+	}
+
+
+	private void wakeDispatcher() {
+		scheduler.wake();
 	}
 
-	
+
 	/**
-	 * Starts the timer that will cause logs to be flushed at the set interval.  This thread runs to completion
-	 * when the deque is empty and get re-instantiated on first add to the deque.  This keeps the thread from running
-	 * forever while making sure that even when JVM finishes, all remaining logs are logged.
+	 * Called when the first log is added to an empty buffer.  Wakes the dispatcher so it times the next
+	 * flush; while the buffer is empty no flush is timed.  If a flush fails the dispatcher keeps timing
+	 * flushes and tries again when the handler's retry policy allows it.
 	 */
 	protected void startFlushTimer() {
-		final OohLaLogHandler handler = this.handler;
-		executorService.execute( new Runnable() {
-			public void run() {
-				// If appender closes, let thread die
-				while ( (handler.getLogRecordBuffer().size() != 0) && !shutdown ) {
-					if (handler.getDebug()) System.out.println( ">>Timer Cycle" );
-
-					// If timeout, flush deque
-					if ( (System.currentTimeMillis() - lastFlush > timeBuffer) && !flushing.get() ) {
-						if (handler.getDebug()) System.out.println( ">>>Flushing from timer expiration" );
-						flush(Integer.MAX_VALUE );
-						
-						// This thread is done after flushing
-						break;
-					}
+		wakeDispatcher();
+	}
+
+
+	private boolean hasLogs() {
+		LogRecordBuffer buffer = handler.getLogRecordBuffer();
+		return buffer.size() != 0 || buffer.hasJournaledLogs();
+	}
+
 
-					// Wait for a time interval
+	/**
+	 * Returns the number of logs to flush, which is a small probe while the circuit breaker is half open.
+	 */
+	private int retryAmount(int amtToFlush) {
+		return (handler.getRetryPolicy().getState() == RetryPolicy.State.HALF_OPEN) ? PROBE_SIZE : amtToFlush;
+	}
+
+
+	/**
+	 * Appends the logs pushed out of the buffer to the journal on a worker thread, unless that is
+	 * already being done.
+	 */
+	private void writeSpilled() {
+		if (!spilling.compareAndSet(false, true)) return;
+		final LogRecordBuffer buffer = handler.getLogRecordBuffer();
+		try {
+			scheduler.execute( new Runnable() {
+				public void run() {
 					try {
-						Thread.sleep(timeBuffer);
+						// close() journals them itself, before the journal is closed
+						if (!shutdown) buffer.writeSpilled();
 					}
-					catch ( InterruptedException ie ) {
-						// Ignore, and continue
+					finally {
+						spilling.set( false );
+						// Logs spilled after the last one written may not have woken the dispatcher
+						scheduler.unpark();
 					}
 				}
-			}
-		});
+			});
+		}
+		catch (RejectedExecutionException e) {
+			spilling.set( false );
+		}
 	}
 
 
 	/**
-	 * Starts the timer that will cause statistics to be flushed at the set interval.
+	 * Sends the handler's statistics on a worker thread, unless the last ones are still being sent.
 	 */
-	protected void startStatsTimer() {
+	protected void sendStats() {
+		// Stats are not even gathered while the server is known to be down
+		if (handler.getRetryPolicy().getState() == RetryPolicy.State.OPEN) return;
+		if (!sendingStats.compareAndSet(false, true)) return;
 		final OohLaLogHandler handler = this.handler;
-		executorService.execute( new Runnable() {
-			public void run() {
-				// If appender closes, let thread die
-				while (!shutdown) {
-					if (handler.getShowStats()) {
-						if (handler.getDebug()) System.out.println( ">>Stats Timer" );
-						Map<String,Double> metrics = StatsUtils.getStats(handler);
-						StatsPayload pl= new StatsPayload.Builder()
-						.metrics(metrics)
-						.authToken(handler.getAuthToken())
-						.host(handler.getHost())
-						.agent(handler.getAgent())
-						.path(handler.getStatsPath())
-						.port(handler.getPort())
-						.secure(handler.getSecure())
-						.debug(handler.getDebug())
-						.build();
-						StatsPayload.send( pl );
-					}
-
-					// Sleep the thread
+		try {
+			scheduler.execute( new Runnable() {
+				public void run() {
 					try {
-						Thread.sleep(statsInterval);
+						synchronized (statsLock) {
+							if (!shutdown) uploadStats(handler);
+						}
 					}
-					catch ( InterruptedException ie ) {
-						// Ignore, and continue
+					finally {
+						sendingStats.set( false );
 					}
 				}
-			}
-		});
+			});
+		}
+		catch (RejectedExecutionException e) {
+			sendingStats.set( false );
+		}
+	}
+
+
+	/**
+	 * Gathers the stats and sends the ones that changed.  Runs on a worker thread holding statsLock.
+	 */
+	private void uploadStats(OohLaLogHandler handler) {
+		if (handler.getDebug()) System.out.println( ">>Stats Timer" );
+		if (statsCompressor == null) statsCompressor = handler.newCompressor();
+		handler.getStatsCollector().sample(statsSnapshot);
+		// Only the metrics that changed since they were last sent, except in keyframes
+		metricTable.select(statsSnapshot, statsDelta);
+		if (statsDelta.size() == 0) {
+			metricTable.commit();
+			return;
+		}
+		StatsPayload pl= new StatsPayload.Builder()
+		.snapshot(statsDelta)
+		.authToken(handler.getAuthToken())
+		.host(handler.getHost())
+		.agent(handler.getAgent())
+		.path(handler.getStatsPath())
+		.port(handler.getPort())
+		.secure(handler.getSecure())
+		.debug(handler.getDebug())
+		.transport(handler.getTransport())
+		.compressor(statsCompressor)
+		.build();
+		if (StatsPayload.send( pl )) metricTable.commit();
 	}
 
 
 	/**
-	 * Flush at most amtToFlush items from the deque.
-	 * 
+	 * Flush at most amtToFlush items from the deque on a worker thread, checked against the handler's
+	 * retry policy as the dispatcher's flushes are: nothing is flushed while failed uploads are backed
+	 * off from or the circuit breaker is open, and only a probe while it is half open.
+	 *
 	 * @param amtToFlush the maximum number of logs to flush
 	 */
 	protected void flush(final int amtToFlush ) {
+		if (handler.getRetryPolicy().millisUntilNextAttempt() > 0) {
+			if (handler.getDebug()) System.out.println( ">>>Not flushing, backing off after failed uploads" );
+			return;
+		}
+		flush(retryAmount(amtToFlush), false);
+	}
+
+
+	/**
+	 * Flush at most amtToFlush items from the deque on a worker thread, and tune the threshold and time
+	 * between flushes from how it went.
+	 *
+	 * @param amtToFlush the maximum number of logs to flush
+	 * @param full whether the flush was started by the threshold
+	 */
+	private void flush(final int amtToFlush, final boolean full) {
 		final OohLaLogHandler handler = this.handler;
 		if (handler.getDebug()) System.out.println( ">>>>>>Flushing #items = " + ((amtToFlush == Integer.MAX_VALUE) ? "all"  : amtToFlush));
 		flushing.set( true );
-		Thread t = new Thread( new Runnable() {
-			public void run() {
-				boolean success = handler.getLogRecordBuffer().flushLogRecordBuffer(handler, amtToFlush);
-				// Payload successfully delivered so we can remove the logs that we already sent.
-				if (success) {
-					lastFlush = System.currentTimeMillis();
-				}
-				
-				else {
-					lastFailedFlush = System.currentTimeMillis();
+		try {
+			scheduler.execute( new Runnable() {
+				public void run() {
+					try {
+						synchronized (flushLock) {
+							// close() flushes everything itself
+							if (shutdown) return;
+							// The payload records its outcome in the handler's retry policy
+							LogRecordBuffer buffer = handler.getLogRecordBuffer();
+							long start = System.currentTimeMillis();
+							boolean success = buffer.flushLogRecordBuffer(handler, amtToFlush);
+							if (success) {
+								lastFlush = System.currentTimeMillis();
+								if (tuner != null) tune(buffer, start, full);
+							}
+						}
+					}
+					finally {
+						flushing.set( false );
+						scheduler.unpark();
+					}
 				}
-				flushing.set( false );
-				return;
-			}
-		});
-		t.start();
+			});
+		}
+		catch (RejectedExecutionException e) {
+			flushing.set( false );
+		}
 	}
 
-	
+
 	/**
-	 * Closes all resources used by the executor service.
+	 * Called by the dispatcher thread when dispatch() threw.  The dispatcher goes on with the other
+	 * controllers, and calls this one again on its next round.
+	 *
+	 * @param e what dispatch() threw
+	 */
+	void dispatchFailed(RuntimeException e) {
+		handler.getPipelineMetrics().dispatchFailed();
+		if (handler.getDebug()) e.printStackTrace();
+	}
+
+
+	private void tune(LogRecordBuffer buffer, long start, boolean full) {
+		tuner.onFlush(buffer.getLastBatchSize(), buffer.getLastBatchOldest(), start, lastFlush, full,
+				buffer.size() >= threshold);
+		threshold = tuner.getThreshold();
+		timeBuffer = tuner.getTimeBuffer();
+		if (handler.getDebug()) System.out.println( ">>>Tuned threshold = " + threshold + ", timeBuffer = " + timeBuffer );
+	}
+
+
+	/**
+	 * Returns the number of logs in the buffer that starts a flush.
+	 */
+	int getThreshold() {
+		return threshold;
+	}
+
+
+	/**
+	 * Returns the longest time in milliseconds a log waits in the buffer before a flush is started.
+	 */
+	long getTimeBuffer() {
+		return timeBuffer;
+	}
+
+
+	/**
+	 * Flushes the remaining logs on the calling thread and unregisters from the shared dispatcher, once
+	 * the flush or stats upload already running is done.  Each flush sends at most one request's worth
+	 * of logs, so flushes are made until the buffer and journal are empty or a request fails.  Then, with
+	 * a journal, the batch that failed and every log still in the buffer are appended to it, to be sent
+	 * by the next handler using it; without one they are given up.  The shared threads end once the last
+	 * handler using them is closed.
 	 */
 	protected void close() {
 		if(handler.getDebug()) System.out.println(">>>Shutting Down");
 		shutdown = true;
-		flush(Integer.MAX_VALUE);
-		executorService.shutdownNow();
+		synchronized (flushLock) {
+			LogRecordBuffer buffer = handler.getLogRecordBuffer();
+			while (hasLogs() && buffer.flushLogRecordBuffer(handler, retryAmount(Integer.MAX_VALUE))) {
+				if (handler.getDebug()) System.out.println( ">>>Flushed on close, " + buffer.size() + " logs left" );
+			}
+			buffer.journalRemaining();
+			buffer.giveUpRetained(handler);
+		}
+		synchronized (statsLock) {
+			// Stats queued before close() see the shutdown and are not sent
+		}
+		scheduler.unregister(this);
+	}
+
+
+	/**
+	 * Returns whether close() was called.
+	 */
+	boolean isShutdown() {
+		return shutdown;
 	}
 }
@@ -0,0 +1,259 @@
+package com.oohlalog.logging;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Decides which logs a handler drops before they are buffered, by their level, their logger and their
+ * message.  It holds:
+ *
+ *   logger levels	the lowest OohLaLog level kept for a logger and its child loggers; the longest
+ *			logger name that matches decides, and "" or * sets the level of all loggers
+ *   message rules	logs whose message contains a text, or matches a regular expression, are dropped
+ *
+ * The rules are compiled into an immutable Rules object replaced as a whole when they change, so
+ * publishing threads read them without locking.  The logger levels become a trie of the parts of the
+ * logger names, walked without creating any objects, and a table by level that tells whether a log of
+ * that level is kept or dropped whatever its logger, or needs the trie.  Message rules without special
+ * characters are plain searches; regular expressions reuse a Matcher per thread.  Messages are matched
+ * as they were logged, before their parameters are filled in.
+ */
+class LogFilter {
+	static final String ALL = "*";
+
+	// What the table says about a level: kept or dropped for every logger, or up to the logger
+	private static final byte KEEP = 0;
+	private static final byte DROP = 1;
+	private static final byte WALK = 2;
+
+	// Characters that make a message rule a regular expression
+	private static final String SPECIAL = "\\[](){}.*+?^$|";
+
+	// The logger levels and message rules as they were set, guarded by this
+	private final Map<String, Integer> loggerLevels = new TreeMap<String, Integer>();
+	private final List<String> messages = new ArrayList<String>();
+
+	// The compiled rules, replaced as a whole while holding this
+	private volatile Rules rules = new Rules(loggerLevels, messages);
+
+
+	/**
+	 * Decides whether a log is kept.
+	 *
+	 * @param lr the log
+	 * @param priority the value of the OohLaLog level of the log
+	 * @return false if the log is dropped
+	 */
+	boolean accept(LogRecord lr, int priority) {
+		Rules rules = this.rules;
+		byte verdict = rules.levels[priority];
+		if (verdict == DROP) return false;
+		if (verdict == WALK && priority < rules.threshold(lr.getLoggerName())) return false;
+		return rules.literals.length == 0 && rules.patterns.length == 0 || !rules.dropsMessage(lr.getMessage());
+	}
+
+
+	/**
+	 * Sets the lowest level kept for a logger and its child loggers, replacing any level set before.
+	 *
+	 * @param logger the name of the logger, or "" or * for all loggers
+	 * @param level the lowest level kept, an OohLaLog or java.util.logging level, or null to remove the
+	 *        level of the logger
+	 */
+	synchronized void setLoggerLevel(String logger, Level level) {
+		String key = (logger == null || logger.equals(ALL)) ? "" : logger;
+		if (level == null) loggerLevels.remove(key);
+		else loggerLevels.put(key, priority(level));
+		rules = new Rules(loggerLevels, messages);
+	}
+
+
+	/**
+	 * Adds a message rule: logs whose message contains the text are dropped.  A rule holding any of the
+	 * characters \[](){}.*+?^$| is a regular expression instead, and drops the logs with a message in
+	 * which it finds a match.
+	 *
+	 * @param rule the text or regular expression
+	 * @throws java.util.regex.PatternSyntaxException if the rule is not a valid regular expression
+	 */
+	synchronized void addMessageRule(String rule) {
+		if (isRegex(rule)) Pattern.compile(rule);
+		messages.add(rule);
+		rules = new Rules(loggerLevels, messages);
+	}
+
+
+	/**
+	 * Returns the value of the OohLaLog level a level is translated to.
+	 */
+	static int priority(Level level) {
+		return OohLaLogHandler.LevelConverter.toOll(level).intValue();
+	}
+
+
+	/**
+	 * Returns the level with a name: an OohLaLog level, in any case, or else a java.util.logging level
+	 * by name or value.
+	 *
+	 * @throws IllegalArgumentException if there is no such level
+	 */
+	static Level parseLevel(String name) {
+		for (Level level : LogRecordBuffer.getPriorityLevels()) {
+			if (level.getName().equalsIgnoreCase(name)) return level;
+		}
+		return Level.parse(name);
+	}
+
+
+	private static boolean isRegex(String rule) {
+		for (int i = 0; i < rule.length(); i++) {
+			if (SPECIAL.indexOf(rule.charAt(i)) >= 0) return true;
+		}
+		return false;
+	}
+
+
+	/**
+	 * The compiled logger levels and message rules.
+	 */
+	private static class Rules {
+		// By level value, whether a log of that level is kept, dropped or up to its logger
+		final byte[] levels = new byte[LogRecordBuffer.getPriorityLevels().length];
+
+		// The level of all loggers, with the loggers that have their own below it
+		final Node root = new Node("", 0);
+
+		final String[] literals;
+		final Pattern[] patterns;
+
+		// A Matcher for each pattern, made once per thread
+		final ThreadLocal<Matcher[]> matchers = new ThreadLocal<Matcher[]>() {
+			@Override
+			protected Matcher[] initialValue() {
+				Matcher[] m = new Matcher[patterns.length];
+				for (int i = 0; i < m.length; i++) {
+					m[i] = patterns[i].matcher("");
+				}
+				return m;
+			}
+		};
+
+		Rules(Map<String, Integer> loggerLevels, List<String> messages) {
+			int lowest = 0;
+			int highest = 0;
+			if (loggerLevels.containsKey("")) {
+				root.priority = loggerLevels.get("");
+				lowest = highest = root.priority;
+			}
+			for (Map.Entry<String, Integer> e : loggerLevels.entrySet()) {
+				if (e.getKey().length() == 0) continue;
+				Node node = root;
+				for (String part : e.getKey().split("\\.")) {
+					node = node.add(part);
+				}
+				node.priority = e.getValue();
+				lowest = Math.min(lowest, node.priority);
+				highest = Math.max(highest, node.priority);
+			}
+			for (int p = 0; p < levels.length; p++) {
+				levels[p] = (p >= highest) ? KEEP : (p < lowest) ? DROP : WALK;
+			}
+
+			List<String> literals = new ArrayList<String>();
+			List<Pattern> patterns = new ArrayList<Pattern>();
+			for (String rule : messages) {
+				if (isRegex(rule)) patterns.add(Pattern.compile(rule));
+				else literals.add(rule);
+			}
+			this.literals = literals.toArray(new String[literals.size()]);
+			this.patterns = patterns.toArray(new Pattern[patterns.size()]);
+		}
+
+		/**
+		 * Returns the lowest level kept for a logger: the level of the longest logger name set that is
+		 * the name or a parent of it.
+		 */
+		int threshold(String name) {
+			Node node = root;
+			int threshold = root.priority;
+			if (name == null) return threshold;
+			int start = 0;
+			int length = name.length();
+			while (start < length && node.children.length > 0) {
+				int end = name.indexOf('.', start);
+				if (end < 0) end = length;
+				node = node.child(name, start, end);
+				if (node == null) break;
+				if (node.priority >= 0) threshold = node.priority;
+				start = end + 1;
+			}
+			return threshold;
+		}
+
+		boolean dropsMessage(String message) {
+			if (message == null) return false;
+			for (String literal : literals) {
+				if (message.contains(literal)) return true;
+			}
+			if (patterns.length == 0) return false;
+			for (Matcher m : matchers.get()) {
+				if (m.reset(message).find()) return true;
+			}
+			return false;
+		}
+	}
+
+
+	/**
+	 * A part of a logger name, with the level set for the name ending in it, or -1 if none.
+	 */
+	private static class Node {
+		private static final Node[] NONE = new Node[0];
+
+		final String part;
+		final int hash;
+		int priority;
+		Node[] children = NONE;
+
+		Node(String part, int priority) {
+			this.part = part;
+			this.hash = part.hashCode();
+			this.priority = priority;
+		}
+
+		Node add(String part) {
+			for (Node child : children) {
+				if (child.part.equals(part)) return child;
+			}
+			Node child = new Node(part, -1);
+			Node[] grown = new Node[children.length + 1];
+			System.arraycopy(children, 0, grown, 0, children.length);
+			grown[children.length] = child;
+			children = grown;
+			return child;
+		}
+
+		/**
+		 * Returns the child for the characters of a name from start to end, or null, comparing the hash
+		 * of the characters before the characters themselves.
+		 */
+		Node child(String name, int start, int end) {
+			int h = 0;
+			for (int i = start; i < end; i++) {
+				h = 31 * h + name.charAt(i);
+			}
+			int length = end - start;
+			for (Node child : children) {
+				if (child.hash == h && child.part.length() == length && name.regionMatches(start, child.part, 0, length)) return child;
+			}
+			return null;
+		}
+	}
+}
@@ -1,22 +1,143 @@
 package com.oohlalog.logging;
 
-import java.util.ArrayDeque;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Queue;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
 import java.util.logging.LogRecord;
 
 
 /**
- * This class is mostly a wrapper for a Queue.  It's purpose is to provide thread safe access
- * to the buffer holding all of the logs.
+ * This class provides thread safe access to the buffer holding all of the logs.  Producers add logs
+ * to lock-free rings, one per OohLaLog level, so logging threads never wait on each other or on a flush
+ * that is in progress.  Only one thread at a time drains the rings, in the order the logs were created
+ * whatever their level, and the logs it drains are held as the in-flight batch until the payload
+ * holding them has been delivered.
+ * A batch whose payload fails is sent again as the same encoded bytes, and is released in one step once
+ * it is delivered, unless a probe of the circuit breaker sends only its oldest logs.
+ *
+ * The buffer is bounded both by a number of logs and by the estimated size of the logs once encoded,
+ * estimated by PayloadEncoder.estimateSize() when they are added, and a batch is cut once the next log
+ * would take its estimated size beyond the maximum size of a request.
+ *
+ * When the buffer is full, the oldest log of the least severe level that is not more severe than the
+ * new log is discarded to make room, so a burst of TRACE and DEBUG logs cannot push out an ERROR.  If
+ * every log in the buffer is more severe, the new log is discarded instead.  Discarded logs are counted
+ * per level, and their estimated size in total.
+ *
+ * The buffer may be split into stripes, so that logging threads do not all update the same counters.
+ * Each stripe has its own rings and holds an equal share of the logs and bytes the buffer may hold, so
+ * the stripes together never hold more than the buffer's maximum.  A thread adds its logs to the stripe
+ * picked by its id, or to another stripe when that one is full, and evicts from any stripe when all of
+ * them are.  Stripes are not owned by threads, so the logs of a thread that ended are drained like any
+ * other.  The drain merges the oldest logs of every ring, of all stripes and levels, by creation time
+ * and sequence number, so a batch holds its logs in the order they were created; the rings of each
+ * level only decide which logs are evicted.
+ *
+ * If the buffer has a LogAggregator, logs are first collapsed by it and only reach the rings, one per
+ * kind of log, when the buffer is flushed.
+ *
+ * If the buffer has a SpillJournal, logs pushed out of the full buffer and batches that fail to upload are
+ * appended to the journal instead, and the journal is replayed before anything newer is sent.  Logs
+ * pushed out by publishing threads wait in a bounded ring, and are encoded and appended by the
+ * flushing side, so publishing threads never encode logs or take the journal's lock.  When that ring
+ * is full because the flushing side is behind, the oldest log waiting in it is lost to make room, and
+ * counted with the logs the journal lost.
  */
 public class LogRecordBuffer {
+	// Default limits of the estimated size of the buffer and of a request
+	static final long DEFAULT_MAX_BUFFER_BYTES = 8L * 1024 * 1024;
+	static final int DEFAULT_MAX_REQUEST_BYTES = 1024 * 1024;
+
 	// Maximum allowed size of the buffer
 	private final int maxBuffer;
 
-	// Holds all of the Logs 
-	private Queue<LogRecord> deque; 
+	// Maximum estimated size of the logs in the rings, and of the logs in one batch
+	private final long maxBufferBytes;
+	private final int maxRequestBytes;
+
+	// Upper bound on the number of stripes
+	static final int MAX_STRIPES = 64;
+
+	// Number of stripes, a power of two
+	private final int stripes;
+
+	// Maximum estimated size of the logs in one stripe
+	private final long stripeBytes;
+
+	// The OohLaLog levels, by priority.  Logs are kept in the ring of their level's priority.
+	private static final Level[] PRIORITIES = { OllLevel.ALL, OllLevel.TRACE, OllLevel.DEBUG, OllLevel.INFO,
+			OllLevel.WARN, OllLevel.ERROR, OllLevel.FATAL, OllLevel.OFF, OllLevel.COUNT };
+
+	// Holds all of the Logs that have not been drained yet
+	private final Stripe[] stripeArray;
+
+	// Number of logs discarded because the buffer was full, by priority, and their estimated size
+	private final AtomicLongArray dropped = new AtomicLongArray(PRIORITIES.length);
+	private final AtomicLong droppedBytes = new AtomicLong();
+
+	// Logs drained from the ring.  The first inFlightSize entries are the in-flight batch, which have
+	// not been delivered yet; entries past it are left over from earlier batches and get overwritten.
+	// Only accessed while holding the buffer's monitor, which producers never take.
+	private LogRecord[] batch = new LogRecord[64];
+
+	// The levels the logs in batch were published with, by index
+	private Level[] batchLevels = new Level[64];
+
+	// Size of the in-flight batch, and its estimated size in bytes, readable without holding the monitor
+	private volatile int inFlightSize = 0;
+	private volatile long inFlightBytes = 0;
+
+	// The oldest log of each ring, polled by the drain and not yet added to a batch, with its level, at
+	// index stripe * PRIORITIES.length + priority.  They are still counted in the size of their stripe.
+	// Only accessed while holding the buffer's monitor.
+	private final LogRecord[] heads;
+	private final Level[] headLevels;
+
+	// The indices of the heads, a heap ordered by the creation of the head at each index, used by the
+	// drain to find the oldest of them.  Only accessed while holding the buffer's monitor.
+	private final int[] heap;
+
+	// The payload of the in-flight batch if sending it failed, to be sent again as it is
+	private Payload retained;
+
+	// Creation time of the oldest log in the in-flight batch
+	private long inFlightOldest;
+
+	// Size and oldest log of the last batch delivered on its first attempt, for tuning the flushes
+	private int lastBatchSize = 0;
+	private long lastBatchOldest = 0;
+
+	// Reusable buffer the in-flight batch is encoded into
+	private final PayloadEncoder encoder = new PayloadEncoder();
+
+	// Compresses the encoded batch, created on the first flush
+	private Compressor compressor;
+
+	// Holds logs that do not fit in memory, may be null
+	private final SpillJournal journal;
+
+	// Maximum number of logs waiting to be journaled
+	static final int MAX_SPILLED = 4096;
+
+	// Logs pushed out of the full buffer, waiting to be appended to the journal, null without a journal
+	private final LogRecordRing spilled;
+
+	// Number of logs lost because spilled was full
+	private final AtomicLong spillDropped = new AtomicLong();
+
+	// Encodes the logs appended to the journal, with the level of the log being encoded.  Guarded by
+	// spillLock, which is held while logs are appended.
+	private final Object spillLock = new Object();
+	private final PayloadEncoder spillEncoder;
+	private final Level[] spillLevel = new Level[1];
+
+	// Set when a log is added to spilled, until the flushing side has been told
+	private volatile boolean spillSignal = false;
+
+	// Collapses repeated logs before they reach the rings, may be null
+	private final LogAggregator aggregator;
 
 	
 	/**
@@ -25,60 +146,485 @@ public class LogRecordBuffer {
 	 * @param maxBuffer the maximum size of the LogRecord Buffer
 	 */
 	public LogRecordBuffer(int maxBuffer) {
+		this(maxBuffer, DEFAULT_MAX_BUFFER_BYTES, DEFAULT_MAX_REQUEST_BYTES, 1, null, null);
+	}
+
+
+	/**
+	 * Constructor that creates a LogRecord Buffer with a maximum size that spills to a journal and
+	 * aggregates repeated logs.
+	 * 
+	 * @param maxBuffer the maximum size of the LogRecord Buffer
+	 * @param maxBufferBytes the maximum estimated size in bytes of the logs in the buffer
+	 * @param maxRequestBytes the maximum estimated size in bytes of the logs in one batch
+	 * @param stripes the number of stripes, rounded down to a power of two of at most maxBuffer and MAX_STRIPES
+	 * @param journal the journal for logs that do not fit in the buffer, or null to discard them
+	 * @param aggregator the aggregator for repeated logs, or null to keep every log
+	 */
+	LogRecordBuffer(int maxBuffer, long maxBufferBytes, int maxRequestBytes, int stripes, SpillJournal journal,
+			LogAggregator aggregator) {
 		this.maxBuffer = maxBuffer;
-		deque = new ArrayDeque<LogRecord>(maxBuffer);
+		this.maxBufferBytes = maxBufferBytes;
+		this.maxRequestBytes = maxRequestBytes;
+		this.stripes = Integer.highestOneBit(Math.max(1, Math.min(stripes, Math.min(maxBuffer, MAX_STRIPES))));
+		this.stripeBytes = maxBufferBytes / this.stripes;
+		this.stripeArray = new Stripe[this.stripes];
+		for (int s = 0; s < this.stripes; s++) {
+			stripeArray[s] = new Stripe(maxBuffer / this.stripes + ((s < maxBuffer % this.stripes) ? 1 : 0));
+		}
+		this.heads = new LogRecord[this.stripes * PRIORITIES.length];
+		this.headLevels = new Level[this.stripes * PRIORITIES.length];
+		this.heap = new int[this.stripes * PRIORITIES.length];
+		this.journal = journal;
+		this.spilled = (journal != null) ? new LogRecordRing(MAX_SPILLED) : null;
+		this.spillEncoder = (journal != null) ? new PayloadEncoder(512) : null;
+		this.aggregator = aggregator;
 	}
 
 
 	/**
-	 * Adds a log record to the buffer.  If the buffer is full, the oldest log in the buffer is discarded
-	 * so that there becomes room for the new one.
+	 * Adds a log record to the buffer, to be sent as it is.  If the buffer is full, the oldest log in the
+	 * buffer is discarded, or moved to the journal if there is one, so that there becomes room for the new one.
 	 * 
 	 * @param lr the log record to add to the buffer
 	 */
-	public synchronized void addLogToBuffer(LogRecord lr) {
-		Queue<LogRecord> buff = getDeque();
-		if (!buff.offer(lr)) {
+	public void addLogToBuffer(LogRecord lr) {
+		addLogToBuffer(lr, null);
+	}
 
-			buff.poll();
-			buff.offer(lr);
-		}
+
+	/**
+	 * Adds a log record published with an OohLaLog level to the buffer.  The record is neither copied nor
+	 * changed; its details are rendered when it is encoded.
+	 * 
+	 * @param lr the log record to add to the buffer
+	 * @param level the OohLaLog level of the record, or null to send the record as it is
+	 * @return the number of logs in the stripe the record was added to, 0 if it was aggregated or discarded
+	 */
+	int addLogToBuffer(LogRecord lr, Level level) {
+		if (aggregator != null && aggregator.add(lr, level)) return 0;
+		return addToRings(lr, level);
 	}
 
-	
+
 	/**
-	 * Removes a certain number of logs from the buffer.
+	 * Adds a log record to a ring of its level, bypassing the aggregator.
 	 * 
-	 * @param num number of logs to remove form head of queue
+	 * @param lr the log record to add to the buffer
+	 * @param level the OohLaLog level of the record, or null to send the record as it is
+	 * @return the number of logs in the stripe the record was added to, 0 if it was discarded
 	 */
-	private synchronized void removeLogsFromBuffer(int num) {
-		Queue<LogRecord> buff = getDeque();
-		for (int i = 0; i < num; i++) {
-			buff.poll();
+	int addToRings(LogRecord lr, Level level) {
+		int priority = priority((level != null) ? level : lr.getLevel());
+		int bytes = PayloadEncoder.estimateSize(lr);
+		if (bytes > stripeBytes) {
+			discard(lr, level, priority, bytes);
+			return 0;
 		}
+		int first = (stripes == 1) ? 0 : (int)Thread.currentThread().getId() & (stripes - 1);
+		Stripe stripe = stripeArray[first];
+		long size = stripe.reserve(bytes, stripeBytes);
+		// If the thread's stripe is full, reserve room in any other
+		for (int i = 1; size == 0 && i < stripes; i++) {
+			stripe = stripeArray[(first + i) & (stripes - 1)];
+			size = stripe.reserve(bytes, stripeBytes);
+		}
+		// And while they are all full, make room by evicting a less or equally severe log
+		while (size == 0) {
+			stripe = evict(first, priority);
+			if (stripe == null) {
+				discard(lr, level, priority, bytes);
+				return 0;
+			}
+			size = stripe.reserve(bytes, stripeBytes);
+		}
+		if (stripe.ring(priority).offer(lr, level)) return (int)size;
+		// Only possible while a concurrent drain has not yet published the slot it freed
+		stripe.release(bytes);
+		discard(lr, level, priority, bytes);
+		return 0;
+	}
+
+
+	/**
+	 * Removes the oldest log of the lowest priority up to maxPriority from any stripe, trying the stripes
+	 * from first on.  The evicted log is moved to the journal if there is one, and counted as dropped
+	 * otherwise.
+	 *
+	 * @return the stripe the log was evicted from, or null if the buffer holds no log of priority
+	 *         maxPriority or lower
+	 */
+	private Stripe evict(int first, int maxPriority) {
+		for (int p = 0; p <= maxPriority; p++) {
+			for (int i = 0, s = first; i < stripes; i++, s = (s + 1) & (stripes - 1)) {
+				Stripe stripe = stripeArray[s];
+				LogRecordRing ring = stripe.rings.get(p);
+				if (ring == null) continue;
+				if (journal == null) {
+					LogRecord oldest = ring.poll(null, 0);
+					if (oldest != null) {
+						int bytes = PayloadEncoder.estimateSize(oldest);
+						stripe.release(bytes);
+						dropped.incrementAndGet(p);
+						droppedBytes.addAndGet(bytes);
+						return stripe;
+					}
+				}
+				else {
+					Level[] oldestLevel = new Level[1];
+					LogRecord oldest = ring.poll(oldestLevel, 0);
+					if (oldest != null) {
+						stripe.release(PayloadEncoder.estimateSize(oldest));
+						spill(oldest, oldestLevel[0]);
+						return stripe;
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+
+	private void discard(LogRecord lr, Level level, int priority, int bytes) {
+		if (journal != null) {
+			spill(lr, level);
+		}
+		else {
+			dropped.incrementAndGet(priority);
+			droppedBytes.addAndGet(bytes);
+		}
+	}
+
+
+	/**
+	 * Hands a log to the flushing side to append to the journal.  If the flushing side is so far behind
+	 * that MAX_SPILLED logs are already waiting, the oldest of them is lost to make room.
+	 */
+	private void spill(LogRecord lr, Level level) {
+		while (!spilled.offer(lr, level)) {
+			if (spilled.poll(null, 0) != null) spillDropped.incrementAndGet();
+		}
+		if (!spillSignal) spillSignal = true;
+	}
+
+
+	/**
+	 * Returns whether logs were pushed out of the buffer since the last call, so the flushing side must be
+	 * woken to journal them.
+	 */
+	boolean takeSpillSignal() {
+		if (!spillSignal) return false;
+		spillSignal = false;
+		return true;
+	}
+
+
+	/**
+	 * Returns whether logs pushed out of the buffer are waiting to be appended to the journal.
+	 */
+	boolean hasSpilledLogs() {
+		return spilled != null && spilled.size() > 0;
+	}
+
+
+	/**
+	 * Encodes the logs pushed out of the buffer and appends them to the journal, oldest first.  Called
+	 * by the flushing side.
+	 */
+	void writeSpilled() {
+		if (spilled == null) return;
+		synchronized (spillLock) {
+			LogRecord lr;
+			while ((lr = spilled.poll(spillLevel, 0)) != null) {
+				journal.append(lr, spillLevel[0], spillEncoder);
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the priority of a level: the value of an OohLaLog level, or the value of the OohLaLog level
+	 * a java.util.logging level is translated to.
+	 */
+	static int priority(Level level) {
+		if (level instanceof OllLevel) return Math.max(0, Math.min(level.intValue(), PRIORITIES.length - 1));
+		int value = level.intValue();
+		if (value == Level.OFF.intValue()) return OllLevel.OFF.intValue();
+		if (value >= Level.SEVERE.intValue()) return OllLevel.ERROR.intValue();
+		if (value >= Level.WARNING.intValue()) return OllLevel.WARN.intValue();
+		if (value >= Level.INFO.intValue()) return OllLevel.INFO.intValue();
+		if (value >= Level.FINE.intValue()) return OllLevel.DEBUG.intValue();
+		if (value == Level.ALL.intValue()) return OllLevel.ALL.intValue();
+		return OllLevel.TRACE.intValue();
 	}
 
 	
 	/**
-	 * Flush at most amtToFlush items from the buffer.
+	 * Flush at most amtToFlush items from the buffer.  If the previous flush failed, its payload is sent
+	 * again instead, without draining or encoding anything.  Producers keep adding to the ring while the
+	 * payload is being sent.
+	 *
+	 * With a journal, a batch of journaled logs is replayed first, and the flush goes on to the buffer
+	 * whether or not that succeeded, so a journaled batch that keeps failing does not hold back the
+	 * logs published since.  A batch from the buffer that fails is moved to the journal.
+	 *
+	 * A batch the server refuses with a 4xx status other than 408 or 429 would be refused again, so it
+	 * is dropped, whether it came from the buffer or the journal, and counted as rejected.
+	 *
+	 * While the handler's circuit breaker is half open, the flush is a probe and sends a single request
+	 * of at most maxAmtToFlush logs: a replayed batch if the journal holds one, or else the oldest logs of
+	 * the batch that failed, or of the buffer.  The rest of the failed batch is sent by the next flush.
 	 * 
 	 * @param handler the OohLaLogHandler object 
 	 * @param maxAmtToFlush the maximum number to flush
-	 * @return was the payload sent successfully?
+	 * @return was the payload sent successfully?  False if only the replay was sent and it failed
+	 */
+	protected synchronized boolean flushLogRecordBuffer(final OohLaLogHandler handler, final int maxAmtToFlush ) {
+		if (compressor == null) {
+			compressor = handler.newCompressor();
+			encoder.setStackTraceCache(handler.newStackTraceCache());
+			encoder.setMessageFormatCache(new MessageFormatCache(handler.getFormatCacheSize()));
+		}
+		if (aggregator != null) aggregator.drainTo(this);
+		boolean probe = (handler.getRetryPolicy().getState() == RetryPolicy.State.HALF_OPEN);
+		boolean replayed = false;
+		if (journal != null) {
+			// Logs pushed out of the buffer are older than those still in it
+			writeSpilled();
+			int n = journal.readBatch(encoder, handler.getAuthToken(), Math.min(maxAmtToFlush, maxBuffer), maxRequestBytes);
+			if (n > 0) {
+				if (handler.getDebug()) System.out.println( ">>>>>>Replaying " + n + " logs from journal" );
+				Payload replay = newPayloadBuilder(handler).encoded(encoder, n).build();
+				if (Payload.send( replay )) {
+					journal.ack();
+					replayed = true;
+				}
+				else if (replay.isRejected()) {
+					// Replaying it again would be refused too, and would hold back every log after it
+					if (handler.getDebug()) System.out.println( ">>>>>>Dropping " + n + " journaled logs the server refused" );
+					journal.ack();
+					handler.getPipelineMetrics().rejected(n);
+					replayed = true;
+				}
+				// The replay was the probe
+				if (probe) return replayed;
+			}
+		}
+
+		lastBatchSize = 0;
+		Payload pl = retained;
+		boolean fresh = (inFlightSize == 0);
+		int n = inFlightSize;
+		if (fresh) {
+			n = drainBatch(maxAmtToFlush, maxRequestBytes);
+			if (n == 0) return replayed;
+		}
+		else if (probe && n > maxAmtToFlush) {
+			// The probe is the oldest logs of the failed batch, encoded anew, which overwrites the
+			// encoded batch
+			n = maxAmtToFlush;
+			pl = null;
+			retained = null;
+		}
+		if (pl == null) {
+			pl = newPayloadBuilder(handler)
+			.messages(Arrays.asList(batch).subList(0, n))
+			.levels(batchLevels)
+			.encoder(encoder)
+			.build();
+		}
+
+		boolean success = Payload.send( pl );
+		// Payload successfully delivered so we can release the logs that we already sent.
+		if (success) {
+			if (fresh) {
+				lastBatchSize = inFlightSize;
+				lastBatchOldest = inFlightOldest;
+			}
+			releaseInFlight(n);
+		}
+		else if (pl.isRejected()) {
+			// Sending it again, or replaying it from the journal, would be refused too
+			if (handler.getDebug()) System.out.println( ">>>>>>Dropping " + n + " logs the server refused" );
+			handler.getPipelineMetrics().rejected(n);
+			releaseInFlight(n);
+		}
+		else if (journal != null) {
+			synchronized (spillLock) {
+				for (int i = 0; i < inFlightSize; i++) {
+					journal.append(batch[i], batchLevels[i], spillEncoder);
+				}
+			}
+			handler.getPipelineMetrics().failed(inFlightSize);
+			releaseInFlight(inFlightSize);
+		}
+		else if (n == inFlightSize) {
+			retained = pl;
+		}
+
+		return success;
+	}
+
+
+	/**
+	 * Removes the oldest n logs from the in-flight batch.  The payload kept for the batch no longer
+	 * holds it and is dropped, to be encoded anew if any logs are left.
+	 */
+	private void releaseInFlight(int n) {
+		retained = null;
+		if (n >= inFlightSize) {
+			inFlightSize = 0;
+			inFlightBytes = 0;
+			return;
+		}
+		long bytes = 0;
+		for (int i = 0; i < n; i++) {
+			bytes += PayloadEncoder.estimateSize(batch[i]);
+		}
+		System.arraycopy(batch, n, batch, 0, inFlightSize - n);
+		System.arraycopy(batchLevels, n, batchLevels, 0, inFlightSize - n);
+		inFlightSize -= n;
+		inFlightBytes -= bytes;
+	}
+
+
+	/**
+	 * Drops the batch kept to be sent again after a failed flush, counting its logs as failed.  Called
+	 * when the handler is closed.
+	 *
+	 * @param handler the OohLaLogHandler object
+	 */
+	protected synchronized void giveUpRetained(OohLaLogHandler handler) {
+		if (inFlightSize == 0) return;
+		handler.getPipelineMetrics().failed(inFlightSize);
+		releaseInFlight(inFlightSize);
+	}
+
+
+	/**
+	 * Drains the oldest logs of all rings, whatever their level, into batch as the in-flight batch.
+	 *
+	 * @param maxAmt the maximum number of logs to drain
+	 * @param maxBytes the estimated size the logs may add up to, exceeded only by a single log larger than it
+	 * @return the number of logs drained
+	 */
+	private int drainBatch(int maxAmt, long maxBytes) {
+		int n = 0;
+		long bytes = 0;
+		long oldest = Long.MAX_VALUE;
+		// The next log is the oldest of the heads of all rings, whatever their level
+		int heapSize = 0;
+		for (int i = 0; i < heads.length; i++) {
+			if (heads[i] == null) {
+				LogRecordRing ring = stripeArray[i / PRIORITIES.length].rings.get(i % PRIORITIES.length);
+				if (ring == null || (heads[i] = ring.poll(headLevels, i)) == null) continue;
+			}
+			heap[heapSize] = i;
+			siftUp(heapSize++);
+		}
+		while (n < maxAmt && heapSize > 0) {
+			int next = heap[0];
+			LogRecord lr = heads[next];
+			int size = PayloadEncoder.estimateSize(lr);
+			// Otherwise it is kept for the next batch
+			if (n > 0 && bytes + size > maxBytes) break;
+			heads[next] = null;
+			stripeArray[next / PRIORITIES.length].release(size);
+			if (n == batch.length) {
+				batch = Arrays.copyOf(batch, n << 1);
+				batchLevels = Arrays.copyOf(batchLevels, n << 1);
+			}
+			batch[n] = lr;
+			batchLevels[n++] = headLevels[next];
+			bytes += size;
+			if (lr.getMillis() < oldest) oldest = lr.getMillis();
+			// The next log of the same ring takes its place, or the last head if the ring is empty
+			LogRecordRing ring = stripeArray[next / PRIORITIES.length].rings.get(next % PRIORITIES.length);
+			if ((heads[next] = ring.poll(headLevels, next)) == null) heap[0] = heap[--heapSize];
+			siftDown(0, heapSize);
+		}
+		inFlightSize = n;
+		inFlightBytes = bytes;
+		inFlightOldest = oldest;
+		return n;
+	}
+
+
+	/**
+	 * Appends every log still in the buffer to the journal, oldest first, so they are sent by the next
+	 * handler using the journal.  Called when the handler is closed and its last flush failed.  Does
+	 * nothing without a journal.
+	 */
+	protected synchronized void journalRemaining() {
+		if (journal == null) return;
+		writeSpilled();
+		journalBuffered();
+		if (aggregator != null && aggregator.size() > 0) {
+			// The rings are empty now, so the collapsed logs only push each other out if there are more
+			// of them than the buffer holds
+			aggregator.drainTo(this);
+			writeSpilled();
+			journalBuffered();
+		}
+	}
+
+
+	private void journalBuffered() {
+		int n = drainBatch(Integer.MAX_VALUE, Long.MAX_VALUE);
+		synchronized (spillLock) {
+			for (int i = 0; i < n; i++) {
+				journal.append(batch[i], batchLevels[i], spillEncoder);
+			}
+		}
+		inFlightSize = 0;
+		inFlightBytes = 0;
+	}
+
+
+	/**
+	 * Moves the head index at position k of the heap up until its parent is older.
+	 */
+	private void siftUp(int k) {
+		int i = heap[k];
+		while (k > 0) {
+			int parent = (k - 1) >>> 1;
+			if (!isBefore(heads[i], heads[heap[parent]])) break;
+			heap[k] = heap[parent];
+			k = parent;
+		}
+		heap[k] = i;
+	}
+
+
+	/**
+	 * Moves the head index at position k of the heap down until its children are newer.
+	 */
+	private void siftDown(int k, int size) {
+		if (k >= size) return;
+		int i = heap[k];
+		int half = size >>> 1;
+		while (k < half) {
+			int child = 2 * k + 1;
+			if (child + 1 < size && isBefore(heads[heap[child + 1]], heads[heap[child]])) child++;
+			if (!isBefore(heads[heap[child]], heads[i])) break;
+			heap[k] = heap[child];
+			k = child;
+		}
+		heap[k] = i;
+	}
+
+
+	/**
+	 * Returns whether a log was created before another, by time and then by sequence number.
 	 */
-	protected synchronized boolean flushLogRecordBuffer(final OohLaLogHandler handler, final int maxAmtToFlush ) {		
-		int size = size();
-		if(size == 0) return false;
-		int numToFlush = (maxAmtToFlush < size) ? maxAmtToFlush : size;
+	private static boolean isBefore(LogRecord a, LogRecord b) {
+		if (a.getMillis() != b.getMillis()) return a.getMillis() < b.getMillis();
+		return a.getSequenceNumber() < b.getSequenceNumber();
+	}
 
-		// Creates a copy because we don't want to remove logs from deque
-		// unless payload is successfully delivered
-		List<LogRecord> logs = new ArrayList<LogRecord>(size);
-		logs.addAll(getDeque());
-		logs = logs.subList(0, numToFlush);
 
-		Payload pl = new Payload.Builder()
-		.messages(logs)
+	private Payload.Builder newPayloadBuilder(OohLaLogHandler handler) {
+		return new Payload.Builder()
 		.authToken(handler.getAuthToken())
 		.host(handler.getHost())
 		.agent(handler.getAgent())
@@ -86,24 +632,123 @@ public class LogRecordBuffer {
 		.port(handler.getPort())
 		.secure(handler.getSecure())
 		.debug(handler.getDebug())
-		.build();
+		.transport(handler.getTransport())
+		.compressor(compressor)
+		.retryPolicy(handler.getRetryPolicy())
+		.metrics(handler.getPipelineMetrics());
+	}
 
-		boolean success = Payload.send( pl );
-		// Payload successfully delivered so we can remove the logs that we already sent.
-		if (success) removeLogsFromBuffer(numToFlush);
 
-		return success;
+	/**
+	 * Returns whether there are journaled logs waiting to be replayed, or logs waiting to be journaled.
+	 * 
+	 * @return true if the journal holds or is about to hold logs that have not been delivered
+	 */
+	protected boolean hasJournaledLogs() {
+		return (journal != null) && (journal.hasEntries() || hasSpilledLogs());
+	}
+
+
+	/**
+	 * Writes the journal, if there is one, to disk and releases it.
+	 */
+	protected void closeJournal() {
+		if (journal != null) journal.close();
 	}
 
 	
 	/**
-	 * Returns the number of logs in the buffer.
+	 * Returns the number of logs in the buffer, including those in the in-flight batch.  Repeated logs
+	 * waiting in the aggregator count once.
+	 * 
+	 * @return the number of logs in the buffer
+	 */
+	protected int size() {
+		int size = inFlightSize;
+		for (int s = 0; s < stripes; s++) {
+			size += (int)stripeArray[s].size.get();
+		}
+		return (aggregator != null) ? size + aggregator.size() : size;
+	}
+
+
+	/**
+	 * Returns the estimated size of the logs in the buffer once encoded, including the in-flight batch.
+	 * Repeated logs waiting in the aggregator are not counted.
 	 * 
-	 * @return the number of logs in the queue
+	 * @return the estimated size in bytes
 	 */
-	protected  int size() {
-		Queue<LogRecord> buff = getDeque();
-		return buff.size();
+	protected long getBytes() {
+		long bytes = inFlightBytes;
+		for (int s = 0; s < stripes; s++) {
+			bytes += stripeArray[s].bytes.get();
+		}
+		return bytes;
+	}
+
+
+	/**
+	 * Returns the estimated size of the logs that were discarded because the buffer was full.
+	 * 
+	 * @return the estimated size in bytes
+	 */
+	public long getDroppedBytes() {
+		return droppedBytes.get();
+	}
+
+
+	/**
+	 * Returns the aggregator for repeated logs, or null if logs are not aggregated.
+	 */
+	LogAggregator getAggregator() {
+		return aggregator;
+	}
+
+
+	/**
+	 * Returns the number of logs of a level that were discarded because the buffer was full.  Logs moved
+	 * to a journal are not counted.
+	 * 
+	 * @param level an OohLaLog level, or a java.util.logging level counted as the level it translates to
+	 * @return the number of discarded logs
+	 */
+	public long getDropped(Level level) {
+		return dropped.get(priority(level));
+	}
+
+
+	/**
+	 * Returns the number of logs in the batch delivered by the last flush, 0 if it delivered nothing or
+	 * only logs that had been sent before.  Only meaningful to the thread that made the flush.
+	 */
+	int getLastBatchSize() {
+		return lastBatchSize;
+	}
+
+
+	/**
+	 * Returns the creation time of the oldest log in the batch delivered by the last flush.
+	 */
+	long getLastBatchOldest() {
+		return lastBatchOldest;
+	}
+
+
+	/**
+	 * Returns the number of logs lost because the journal was full or could not be written, or because
+	 * they were pushed out of the buffer faster than the flushing side could journal them.  0 if there
+	 * is no journal.
+	 */
+	long getJournalDropped() {
+		return (journal != null) ? journal.getDropped() + spillDropped.get() : 0;
+	}
+
+
+	/**
+	 * Returns the OohLaLog levels that logs are counted by in getDropped(), least severe first.
+	 */
+	static Level[] getPriorityLevels() {
+		return PRIORITIES.clone();
 	}
 
 	
@@ -116,13 +761,77 @@ public class LogRecordBuffer {
 		return maxBuffer;
 	}
 
-	
+
+	/**
+	 * Returns the number of stripes the buffer is split into.
+	 * 
+	 * @return the number of stripes
+	 */
+	protected int getStripes() {
+		return stripes;
+	}
+
+
 	/**
-	 * Returns the underlying Queue structure that holds all of the logs.
+	 * Returns the maximum estimated size in bytes of the logs in the buffer.
 	 * 
-	 * @return the Queue used for holding the logs
+	 * @return the maximum size in bytes
 	 */
-	private synchronized Queue<LogRecord> getDeque() {
-		return deque;
+	protected long getMaxBufferBytes() {
+		return maxBufferBytes;
+	}
+
+
+	/**
+	 * A share of the buffer: a ring per level, and the number and estimated size of the logs in them.
+	 */
+	private static class Stripe {
+		// Maximum number of logs in the stripe
+		final int capacity;
+
+		// A ring per priority, created the first time a log of its level is added, each of which can
+		// hold the whole stripe
+		final AtomicReferenceArray<LogRecordRing> rings = new AtomicReferenceArray<LogRecordRing>(PRIORITIES.length);
+
+		// Number of logs in the rings, including those being added and those held as heads by the drain,
+		// and their estimated size.  Never more than the capacity and the byte budget of a stripe.
+		final AtomicLong size = new AtomicLong();
+		final AtomicLong bytes = new AtomicLong();
+
+		Stripe(int capacity) {
+			this.capacity = capacity;
+		}
+
+		/**
+		 * Reserves room for a log.
+		 *
+		 * @return the number of logs in the stripe including the new one, or 0 if it has no room
+		 */
+		long reserve(int logBytes, long maxBytes) {
+			long n;
+			do {
+				n = size.get();
+				if (n >= capacity) return 0;
+			} while (!size.compareAndSet(n, n + 1));
+			if (bytes.addAndGet(logBytes) > maxBytes) {
+				release(logBytes);
+				return 0;
+			}
+			return n + 1;
+		}
+
+		void release(int logBytes) {
+			size.decrementAndGet();
+			bytes.addAndGet(-logBytes);
+		}
+
+		LogRecordRing ring(int priority) {
+			LogRecordRing ring = rings.get(priority);
+			if (ring == null) {
+				ring = new LogRecordRing(capacity);
+				if (!rings.compareAndSet(priority, null, ring)) ring = rings.get(priority);
+			}
+			return ring;
+		}
 	}
 }
@@ -0,0 +1,138 @@
+package com.oohlalog.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+
+/**
+ * A bounded, lock-free ring of log records.  Any number of threads may offer and poll concurrently;
+ * every slot carries a sequence number that tells producers and consumers whether it is free to
+ * be written or ready to be read, so neither side ever takes a lock.  Each slot also holds the level
+ * the record was published with, so nothing has to be allocated or changed on the record to keep it.
+ */
+class LogRecordRing {
+	// Number of slots in the ring
+	private final int capacity;
+
+	// Holds the log records
+	private final AtomicReferenceArray<LogRecord> slots;
+
+	// The level of the record in each slot.  Written before the slot's sequence is published and
+	// read before it is released, so the sequence number orders these plain accesses.
+	private final Level[] levels;
+
+	// Sequence number of each slot.  A slot at position p is writable when its sequence equals p
+	// and readable when it equals p + 1.
+	private final AtomicLongArray sequences;
+
+	// Position of the next slot to be read
+	private final AtomicLong head = new AtomicLong();
+
+	// Position of the next slot to be written
+	private final AtomicLong tail = new AtomicLong();
+
+
+	/**
+	 * Constructor that creates a ring holding at most capacity records.
+	 *
+	 * @param capacity the maximum number of records held by the ring
+	 */
+	LogRecordRing(int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		this.capacity = capacity;
+		this.slots = new AtomicReferenceArray<LogRecord>(capacity);
+		this.levels = new Level[capacity];
+		this.sequences = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+
+	/**
+	 * Adds a record at the tail of the ring.
+	 *
+	 * @param lr the record to add
+	 * @param level the level to keep with the record, may be null
+	 * @return false if the ring is full
+	 */
+	boolean offer(LogRecord lr, Level level) {
+		long pos = tail.get();
+		for (;;) {
+			int idx = index(pos);
+			long dif = sequences.get(idx) - pos;
+			if (dif == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					levels[idx] = level;
+					slots.lazySet(idx, lr);
+					sequences.lazySet(idx, pos + 1);
+					return true;
+				}
+			}
+			else if (dif < 0) {
+				return false;
+			}
+			pos = tail.get();
+		}
+	}
+
+
+	/**
+	 * Removes the record at the head of the ring.
+	 *
+	 * @param levelOut receives the level kept with the record at levelIndex, may be null if it is not needed
+	 * @param levelIndex the index in levelOut to store the level at
+	 * @return the oldest record, or null if the ring is empty
+	 */
+	LogRecord poll(Level[] levelOut, int levelIndex) {
+		long pos = head.get();
+		for (;;) {
+			int idx = index(pos);
+			long dif = sequences.get(idx) - (pos + 1);
+			if (dif == 0) {
+				if (head.compareAndSet(pos, pos + 1)) {
+					LogRecord lr = slots.get(idx);
+					if (levelOut != null) levelOut[levelIndex] = levels[idx];
+					slots.lazySet(idx, null);
+					sequences.lazySet(idx, pos + capacity);
+					return lr;
+				}
+			}
+			else if (dif < 0) {
+				return null;
+			}
+			pos = head.get();
+		}
+	}
+
+
+	/**
+	 * Returns an estimate of the number of records in the ring.  The value is exact when no
+	 * other thread is offering or polling.
+	 *
+	 * @return the number of records in the ring
+	 */
+	int size() {
+		long size = tail.get() - head.get();
+		if (size < 0) return 0;
+		return (size > capacity) ? capacity : (int)size;
+	}
+
+
+	/**
+	 * Returns the maximum number of records held by the ring.
+	 *
+	 * @return the capacity of the ring
+	 */
+	int capacity() {
+		return capacity;
+	}
+
+
+	private int index(long pos) {
+		return (int)(pos % capacity);
+	}
+}
@@ -0,0 +1,202 @@
+package com.oohlalog.logging;
+
+import java.text.DateFormat;
+import java.text.FieldPosition;
+import java.text.MessageFormat;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
+import java.util.logging.LogRecord;
+
+
+/**
+ * Formats the messages of logs the way java.util.logging.Formatter.formatMessage() does, keeping each
+ * pattern compiled so it is parsed only once.  The message is first looked up in
+ * the resource bundle of the log, if it has one.  Messages without parameters, or without a
+ * placeholder such as {0}, are returned as they are without touching the cache, and a pattern that
+ * cannot be parsed or formatted with the parameters is also returned as it is.
+ *
+ * Patterns whose placeholders are all plain {N}, with no format type and no quotes, are compiled into
+ * their text and argument numbers and filled in here, with one NumberFormat and one DateFormat kept by
+ * the cache, as MessageFormat would for such placeholders; MessageFormat itself creates a new
+ * NumberFormat for every number it formats.  Other patterns are compiled into a MessageFormat.
+ *
+ * Patterns are kept in a map ordered by last use that holds at most maxEntries of them.  A cache is
+ * not thread safe: each belongs to one encoder, which is used by one thread at a time.
+ */
+class MessageFormatCache {
+	// Default maximum number of patterns kept
+	static final int DEFAULT_MAX_ENTRIES = 256;
+
+	// Stands for a pattern that cannot be parsed
+	private static final MessageFormat INVALID = new MessageFormat("");
+
+	// The compiled patterns, a PlainPattern or a MessageFormat, least recently used first
+	private final LinkedHashMap<String, Object> formats;
+
+	// Formats the numbers and dates of plain placeholders, created when first needed
+	private final Locale locale = Locale.getDefault(Locale.Category.FORMAT);
+	private NumberFormat numberFormat;
+	private DateFormat dateFormat;
+
+	// Reused to build the formatted messages
+	private final StringBuffer sb = new StringBuffer();
+	private final FieldPosition position = new FieldPosition(0);
+
+
+	/**
+	 * Constructor that creates a cache.
+	 *
+	 * @param maxEntries the maximum number of patterns kept
+	 */
+	MessageFormatCache(final int maxEntries) {
+		this.formats = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+
+	/**
+	 * Returns the formatted message of a log.
+	 *
+	 * @param log the log
+	 * @return the message with its parameters filled in, or null if the log has no message
+	 */
+	String format(LogRecord log) {
+		String message = log.getMessage();
+		if (message == null) return null;
+		ResourceBundle bundle = log.getResourceBundle();
+		if (bundle != null) {
+			try {
+				message = bundle.getString(message);
+			} catch (MissingResourceException e) {
+				// Use the message as it is
+			}
+		}
+		Object[] params = log.getParameters();
+		if (params == null || params.length == 0 || !hasPlaceholder(message)) return message;
+
+		Object format = formats.get(message);
+		if (format == null) {
+			format = compile(message);
+			formats.put(message, format);
+		}
+		if (format instanceof PlainPattern) return format((PlainPattern)format, params);
+		if (format == INVALID) return message;
+		try {
+			return ((MessageFormat)format).format(params);
+		} catch (IllegalArgumentException e) {
+			return message;
+		}
+	}
+
+
+	/**
+	 * Compiles a pattern into a PlainPattern if all of its placeholders are plain, or else a MessageFormat.
+	 */
+	private static Object compile(String message) {
+		if (message.indexOf('\'') < 0) {
+			List<String> texts = new ArrayList<String>();
+			List<Integer> args = new ArrayList<Integer>();
+			int start = 0;
+			int open;
+			while ((open = message.indexOf('{', start)) >= 0) {
+				int close = open + 1;
+				while (close < message.length() && message.charAt(close) >= '0' && message.charAt(close) <= '9') close++;
+				if (close == open + 1 || close - open > 10 || close == message.length() || message.charAt(close) != '}') {
+					texts = null;
+					break;
+				}
+				texts.add(message.substring(start, open));
+				args.add(Integer.parseInt(message.substring(open + 1, close)));
+				start = close + 1;
+			}
+			if (texts != null) {
+				texts.add(message.substring(start));
+				int[] argArray = new int[args.size()];
+				for (int i = 0; i < argArray.length; i++) {
+					argArray[i] = args.get(i);
+				}
+				return new PlainPattern(texts.toArray(new String[texts.size()]), argArray);
+			}
+		}
+		try {
+			return new MessageFormat(message);
+		} catch (IllegalArgumentException e) {
+			return INVALID;
+		}
+	}
+
+
+	/**
+	 * Fills in the parameters of a pattern of plain placeholders as MessageFormat would: null as
+	 * "null", numbers with a NumberFormat, dates with a short DateFormat, and anything else with
+	 * toString(), leaving a placeholder without a parameter as it is.
+	 */
+	private String format(PlainPattern pattern, Object[] params) {
+		sb.setLength(0);
+		for (int i = 0; i < pattern.args.length; i++) {
+			sb.append(pattern.texts[i]);
+			int arg = pattern.args[i];
+			if (arg >= params.length) {
+				sb.append('{').append(arg).append('}');
+				continue;
+			}
+			Object param = params[arg];
+			if (param instanceof Number) {
+				if (numberFormat == null) numberFormat = NumberFormat.getInstance(locale);
+				numberFormat.format(param, sb, position);
+			}
+			else if (param instanceof Date) {
+				if (dateFormat == null) dateFormat = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT, locale);
+				dateFormat.format(param, sb, position);
+			}
+			else {
+				sb.append(param);
+			}
+		}
+		sb.append(pattern.texts[pattern.args.length]);
+		return sb.toString();
+	}
+
+
+	/**
+	 * Returns whether a message holds a { followed by a digit, without which MessageFormat would leave
+	 * the parameters out.
+	 */
+	static boolean hasPlaceholder(String message) {
+		int i = message.indexOf('{');
+		while (i >= 0 && i + 1 < message.length()) {
+			char c = message.charAt(i + 1);
+			if (c >= '0' && c <= '9') return true;
+			i = message.indexOf('{', i + 1);
+		}
+		return false;
+	}
+
+
+	/**
+	 * A pattern of plain placeholders: the text before each placeholder, its argument number, and the
+	 * text after the last one.
+	 */
+	private static class PlainPattern {
+		final String[] texts;
+		final int[] args;
+
+		PlainPattern(String[] texts, int[] args) {
+			this.texts = texts;
+			this.args = args;
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package com.oohlalog.logging;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Remembers the last value sent for every metric, so a stats payload only needs the metrics that
+ * changed.  Metric names are interned to ids the first time they are seen, and the values sent are kept
+ * in a double[] indexed by id.  A metric goes into the next payload if it was never sent, or if it moved
+ * by more than epsilon times its last sent value.  Every keyframeInterval-th payload is a keyframe
+ * holding all metrics, so a receiver that missed a payload catches up.
+ *
+ * The values selected for a payload only count as sent once commit() is called after the payload was
+ * delivered; after a failed delivery they are selected again.  A table is used by one thread at a time.
+ */
+class MetricTable {
+	// Default relative change below which a metric is not sent again
+	static final double DEFAULT_EPSILON = 0.0;
+	// Default number of payloads from one keyframe to the next
+	static final int DEFAULT_KEYFRAME_INTERVAL = 10;
+
+	private final double epsilon;
+	private final int keyframeInterval;
+
+	// Ids of the metric names
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+	// Last value sent, and whether one was sent, by id
+	private double[] sent = new double[32];
+	private boolean[] wasSent = new boolean[32];
+
+	// Ids and values selected for the payload being sent
+	private int[] pendingIds = new int[32];
+	private double[] pendingValues = new double[32];
+	private int pendingSize = 0;
+
+	// Payloads delivered since the last keyframe, 0 when the next payload is a keyframe
+	private int sinceKeyframe = 0;
+
+
+	/**
+	 * Constructor that creates an empty table, so the first payload is a keyframe.
+	 *
+	 * @param epsilon the relative change below which a metric is not sent again
+	 * @param keyframeInterval the number of payloads from one keyframe to the next, 1 to send every metric every time
+	 */
+	MetricTable(double epsilon, int keyframeInterval) {
+		this.epsilon = Math.max(0, epsilon);
+		this.keyframeInterval = Math.max(1, keyframeInterval);
+	}
+
+
+	/**
+	 * Selects the metrics of a sample that have to be sent.
+	 *
+	 * @param sample the current value of every metric
+	 * @param out cleared and filled with the metrics to send
+	 * @return whether the selection is a keyframe
+	 */
+	boolean select(StatsSnapshot sample, StatsSnapshot out) {
+		boolean keyframe = (sinceKeyframe == 0);
+		out.clear();
+		pendingSize = 0;
+		for (int i = 0; i < sample.size(); i++) {
+			String name = sample.getName(i);
+			double value = sample.getValue(i);
+			int id = id(name);
+			if (keyframe || !wasSent[id] || changed(sent[id], value)) {
+				out.put(name, value);
+				if (pendingSize == pendingIds.length) {
+					int[] grownIds = new int[pendingSize * 2];
+					double[] grownValues = new double[pendingSize * 2];
+					System.arraycopy(pendingIds, 0, grownIds, 0, pendingSize);
+					System.arraycopy(pendingValues, 0, grownValues, 0, pendingSize);
+					pendingIds = grownIds;
+					pendingValues = grownValues;
+				}
+				pendingIds[pendingSize] = id;
+				pendingValues[pendingSize] = value;
+				pendingSize++;
+			}
+		}
+		return keyframe;
+	}
+
+
+	/**
+	 * Records the metrics selected last as sent.
+	 */
+	void commit() {
+		for (int i = 0; i < pendingSize; i++) {
+			sent[pendingIds[i]] = pendingValues[i];
+			wasSent[pendingIds[i]] = true;
+		}
+		pendingSize = 0;
+		sinceKeyframe = (sinceKeyframe + 1) % keyframeInterval;
+	}
+
+
+	private boolean changed(double last, double value) {
+		if (Double.compare(last, value) == 0) return false;
+		return Math.abs(value - last) > epsilon * Math.abs(last) || Double.isNaN(value - last);
+	}
+
+
+	private int id(String name) {
+		Integer id = ids.get(name);
+		if (id != null) return id;
+		int next = ids.size();
+		ids.put(name, next);
+		if (next == sent.length) {
+			double[] grownSent = new double[next * 2];
+			boolean[] grownWasSent = new boolean[next * 2];
+			System.arraycopy(sent, 0, grownSent, 0, next);
+			System.arraycopy(wasSent, 0, grownWasSent, 0, next);
+			sent = grownSent;
+			wasSent = grownWasSent;
+		}
+		return next;
+	}
+}
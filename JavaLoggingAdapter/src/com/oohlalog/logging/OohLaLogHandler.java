@@ -1,8 +1,10 @@
 package com.oohlalog.logging;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.logging.Filter;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
@@ -13,26 +15,32 @@ public class OohLaLogHandler extends Handler {
 	LevelConverter levelConverter = new LevelConverter();
 
 	static class LevelConverter {
-		private static Map<Level, Level> map = new HashMap<Level, Level>();
-		public LevelConverter() {
-			map.put(Level.ALL,  OllLevel.ALL);
-			map.put(Level.FINEST, OllLevel.TRACE);
-			map.put(Level.FINER, OllLevel.TRACE);
-			map.put(Level.FINE, OllLevel.DEBUG);
-			map.put(Level.CONFIG, OllLevel.DEBUG);
-			map.put(Level.INFO, OllLevel.INFO);
-			map.put(Level.WARNING, OllLevel.WARN);
-			map.put(Level.SEVERE, OllLevel.ERROR);
-			map.put(Level.OFF,  OllLevel.OFF);
-		}
-
-		public Level translate(Level old) {	
-			Level ollLevel;
-			ollLevel = map.get(old);
-			if (ollLevel != null) return ollLevel;
-			else if (map.containsValue(old)) return old;
+		// The OohLaLog levels java.util.logging levels are translated to, by value / 100; OohLaLog
+		// levels are kept as they are, and other levels become INFO
+		private static final Level[] JUL = new Level[11];
+		static {
+			JUL[3] = OllLevel.TRACE;	// FINEST
+			JUL[4] = OllLevel.TRACE;	// FINER
+			JUL[5] = OllLevel.DEBUG;	// FINE
+			JUL[7] = OllLevel.DEBUG;	// CONFIG
+			JUL[8] = OllLevel.INFO;		// INFO
+			JUL[9] = OllLevel.WARN;		// WARNING
+			JUL[10] = OllLevel.ERROR;	// SEVERE
+		}
+		private static final int OLL_LEVELS = OllLevel.COUNT.intValue() + 1;
+
+		public Level translate(Level old) {
+			return toOll(old);
+		}
+
+		static Level toOll(Level old) {
+			int value = old.intValue();
+			if (old instanceof OllLevel && value >= 0 && value < OLL_LEVELS) return old;
+			if (value >= 300 && value <= 1000 && value % 100 == 0 && JUL[value / 100] != null) return JUL[value / 100];
+			if (value == Integer.MIN_VALUE) return OllLevel.ALL;
+			if (value == Integer.MAX_VALUE) return OllLevel.OFF;
 			// Default if user gives an invalid log
-			else return OllLevel.INFO;
+			return OllLevel.INFO;
 		}
 	}
 
@@ -47,6 +55,20 @@ public class OohLaLogHandler extends Handler {
 	// Maximum allowed size of the buffer
 	private int maxBuffer = 1000;//5;
 
+	// Maximum estimated size in bytes of the logs in the buffer, and of the logs in one request
+	private long maxBufferBytes = LogRecordBuffer.DEFAULT_MAX_BUFFER_BYTES;
+	private int maxRequestBytes = LogRecordBuffer.DEFAULT_MAX_REQUEST_BYTES;
+
+	// Number of stripes the buffer is split into, so logging threads do not contend on it
+	private int bufferStripes = 1;
+
+	// Time within which logs should reach the server, which turns on tuning of threshold and timeBuffer,
+	// and the bounds they are tuned within; timeBuffer is the upper bound of the time between flushes
+	private long latencyTarget = 0;
+	private int minThreshold = BatchTuner.DEFAULT_MIN_THRESHOLD;
+	private int maxThreshold = BatchTuner.DEFAULT_MAX_THRESHOLD;
+	private long minTimeBuffer = BatchTuner.DEFAULT_MIN_TIME_BUFFER;
+
 	// Holds all of the Logs until reaching a time threshold when they are then emptied out in batches
 	private LogRecordBuffer logRecordBuffer;
 
@@ -55,6 +77,9 @@ public class OohLaLogHandler extends Handler {
 
 	// The time threshold controlling how often uploads of statistics are made to the OLL server
 	private long statsInterval = 60000; // 1 minute
+	// Relative change below which a metric is not sent again, and payloads from one full set of metrics to the next
+	private double statsEpsilon = MetricTable.DEFAULT_EPSILON;
+	private int statsKeyframeInterval = MetricTable.DEFAULT_KEYFRAME_INTERVAL;
 
 	// For configuring the URL
 	private String host = "api.oohlalog.com"; // localhost
@@ -68,12 +93,66 @@ public class OohLaLogHandler extends Handler {
 	private boolean debug = true;
 	private String hostName = null;
 
+	// Connections to the OohLaLog server, shared with other handlers using the same endpoint
+	private String transportType = HttpTransport.POOLED;
+	private int maxConnections = HttpTransport.DEFAULT_MAX_CONNECTIONS;
+	private long idleTimeout = HttpTransport.DEFAULT_IDLE_TIMEOUT;
+	private HttpTransport transport;
+
+	// Compression of request bodies, and its results
+	private String compression = Compressor.NONE;
+	private int compressionMinBytes = Compressor.DEFAULT_MIN_BYTES;
+	private int compressionLevel = Compressor.DEFAULT_LEVEL;
+	private final Compressor.Stats compressionStats = new Compressor.Stats();
+
+	// On-disk journal for logs that do not fit in the buffer, disabled unless a directory is set
+	private String journalDir = null;
+	private long journalMaxBytes = SpillJournal.DEFAULT_MAX_BYTES;
+	private int journalSegmentBytes = SpillJournal.DEFAULT_SEGMENT_BYTES;
+
+	// When to retry failed uploads, and when to stop trying while the server is down
+	private long retryBaseDelay = RetryPolicy.DEFAULT_BASE_DELAY;
+	private long retryMaxDelay = RetryPolicy.DEFAULT_MAX_DELAY;
+	private int breakerThreshold = RetryPolicy.DEFAULT_FAILURE_THRESHOLD;
+	private RetryPolicy retryPolicy;
+
+	// Collapsing of repeated logs between flushes, disabled by default
+	private boolean aggregate = false;
+	private int aggregateMaxKeys = LogAggregator.DEFAULT_MAX_KEYS;
+
+	// Time within which a stack trace is only sent once, the number of traces remembered, and the
+	// number of frames sent for each exception of a trace
+	private long traceWindow = StackTraceCache.DEFAULT_WINDOW;
+	private int traceCacheSize = StackTraceCache.DEFAULT_MAX_KEYS;
+	private int maxTraceFrames = StackTraceCache.DEFAULT_MAX_FRAMES;
+
+	// Number of compiled message patterns kept for formatting messages with parameters
+	private int formatCacheSize = MessageFormatCache.DEFAULT_MAX_ENTRIES;
+
+	// Kind of threads running the dispatcher and uploads, platform or virtual, and the number of upload
+	// threads; both are shared by all handlers of the same thread mode
+	private String threadMode = ThreadFactories.PLATFORM;
+	private int uploadWorkers = FlushScheduler.DEFAULT_WORKERS;
+
+	// Rate limits and sample rates of logs, keyed by logger, source class or level
+	private final RateLimiter rateLimiter = new RateLimiter();
+
+	// Levels kept per logger and messages dropped, checked before the rate limits
+	private final LogFilter logFilter = new LogFilter();
+
 	private boolean showMemoryStats = true;
 	private boolean showFileSystemStats = true;
 	private boolean showCPUStats = true;
 	private boolean showStats = true;
 
-	Object previousCpuUsage;
+	// Gathers the statistics sent by the stats timer
+	private StatsCollector statsCollector;
+
+	// Counts and times what happens to the logs, registered as an MBean unless jmx is false, and sent
+	// with the stats if pipelineStats is true
+	private final PipelineMetrics pipelineMetrics = new PipelineMetrics(this);
+	private boolean jmx = true;
+	private boolean pipelineStats = false;
 
 	
 	/**
@@ -82,7 +161,11 @@ public class OohLaLogHandler extends Handler {
 	 */
 	public OohLaLogHandler(String authToken) {
 		this.authToken = authToken;
+		transport = HttpTransport.get(transportType, secure, host, port, maxConnections, idleTimeout);
+		retryPolicy = new RetryPolicy(retryBaseDelay, retryMaxDelay, breakerThreshold);
 		logRecordBuffer = new LogRecordBuffer(maxBuffer);
+		statsCollector = new StatsCollector(this);
+		pipelineMetrics.register();
 		logController = new LogController(this, threshold, timeBuffer, statsInterval);
 	}
 
@@ -115,6 +198,33 @@ public class OohLaLogHandler extends Handler {
 				// Do nothing
 			}
 		}
+		// Update maxBufferBytes parameter
+		if (map.containsKey("maxBufferBytes")) {
+			try {
+				long newMaxBufferBytes = ((Number)map.get("maxBufferBytes")).longValue();
+				if (newMaxBufferBytes > 0) this.maxBufferBytes = newMaxBufferBytes;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update maxRequestBytes parameter
+		if (map.containsKey("maxRequestBytes")) {
+			try {
+				int newMaxRequestBytes = (Integer)map.get("maxRequestBytes");
+				if (newMaxRequestBytes > 0) this.maxRequestBytes = newMaxRequestBytes;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update bufferStripes parameter
+		if (map.containsKey("bufferStripes")) {
+			try {
+				int newBufferStripes = (Integer)map.get("bufferStripes");
+				if (newBufferStripes > 0) this.bufferStripes = newBufferStripes;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
 		// Update timeBuffer parameter
 		if (map.containsKey("timeBuffer")) {
 			try {
@@ -124,6 +234,42 @@ public class OohLaLogHandler extends Handler {
 				// Do nothing
 			}
 		}
+		// Update latencyTarget parameter
+		if (map.containsKey("latencyTarget")) {
+			try {
+				long newLatencyTarget = (Long)map.get("latencyTarget");
+				if (newLatencyTarget >= 0) this.latencyTarget = newLatencyTarget;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update minThreshold parameter
+		if (map.containsKey("minThreshold")) {
+			try {
+				int newMinThreshold = (Integer)map.get("minThreshold");
+				if (newMinThreshold > 0) this.minThreshold = newMinThreshold;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update maxThreshold parameter
+		if (map.containsKey("maxThreshold")) {
+			try {
+				int newMaxThreshold = (Integer)map.get("maxThreshold");
+				if (newMaxThreshold > 0) this.maxThreshold = newMaxThreshold;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update minTimeBuffer parameter
+		if (map.containsKey("minTimeBuffer")) {
+			try {
+				long newMinTimeBuffer = (Long)map.get("minTimeBuffer");
+				if (newMinTimeBuffer > 0) this.minTimeBuffer = newMinTimeBuffer;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
 		// Update statsInterval parameter
 		if (map.containsKey("statsInterval")) {
 			try {
@@ -151,36 +297,387 @@ public class OohLaLogHandler extends Handler {
 				// Do nothing
 			}
 		}
+		// Update host parameter
+		if (map.containsKey("host")) {
+			try {
+				String newHost = (String)map.get("host");
+				if (newHost != null && newHost.length() > 0) this.host = newHost;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update port parameter
+		if (map.containsKey("port")) {
+			try {
+				int newPort = (Integer)map.get("port");
+				if (newPort > 0 && newPort < 65536) this.port = newPort;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update jmx parameter
+		if (map.containsKey("jmx")) {
+			try {
+				boolean newJmx = (Boolean)map.get("jmx");
+				this.jmx = newJmx;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update pipelineStats parameter
+		if (map.containsKey("pipelineStats")) {
+			try {
+				boolean newPipelineStats = (Boolean)map.get("pipelineStats");
+				this.pipelineStats = newPipelineStats;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update statsEpsilon parameter
+		if (map.containsKey("statsEpsilon")) {
+			try {
+				double newStatsEpsilon = ((Number)map.get("statsEpsilon")).doubleValue();
+				if (newStatsEpsilon >= 0) this.statsEpsilon = newStatsEpsilon;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update statsKeyframeInterval parameter
+		if (map.containsKey("statsKeyframeInterval")) {
+			try {
+				int newStatsKeyframeInterval = (Integer)map.get("statsKeyframeInterval");
+				if (newStatsKeyframeInterval > 0) this.statsKeyframeInterval = newStatsKeyframeInterval;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update showStats parameter
+		if (map.containsKey("showStats")) {
+			try {
+				boolean newShowStats = (Boolean)map.get("showStats");
+				this.showStats = newShowStats;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update transport parameter
+		if (map.containsKey("transport")) {
+			try {
+				String newTransport = (String)map.get("transport");
+				if (HttpTransport.POOLED.equals(newTransport) || HttpTransport.HTTP_CLIENT.equals(newTransport))
+					this.transportType = newTransport;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update maxConnections parameter
+		if (map.containsKey("maxConnections")) {
+			try {
+				int newMaxConnections = (Integer)map.get("maxConnections");
+				if (newMaxConnections > 0) this.maxConnections = newMaxConnections;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update idleTimeout parameter
+		if (map.containsKey("idleTimeout")) {
+			try {
+				long newIdleTimeout = (Long)map.get("idleTimeout");
+				if (newIdleTimeout > 0) this.idleTimeout = newIdleTimeout;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update compression parameter
+		if (map.containsKey("compression")) {
+			try {
+				String newCompression = (String)map.get("compression");
+				if (Compressor.NONE.equals(newCompression) || Compressor.GZIP.equals(newCompression) || Compressor.DEFLATE.equals(newCompression))
+					this.compression = newCompression;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update compressionMinBytes parameter
+		if (map.containsKey("compressionMinBytes")) {
+			try {
+				int newCompressionMinBytes = (Integer)map.get("compressionMinBytes");
+				if (newCompressionMinBytes >= 0) this.compressionMinBytes = newCompressionMinBytes;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update compressionLevel parameter
+		if (map.containsKey("compressionLevel")) {
+			try {
+				int newCompressionLevel = (Integer)map.get("compressionLevel");
+				if (newCompressionLevel >= -1 && newCompressionLevel <= 9) this.compressionLevel = newCompressionLevel;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update journalDir parameter
+		if (map.containsKey("journalDir")) {
+			try {
+				String newJournalDir = (String)map.get("journalDir");
+				if (newJournalDir != null && newJournalDir.length() > 0) this.journalDir = newJournalDir;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update journalMaxBytes parameter
+		if (map.containsKey("journalMaxBytes")) {
+			try {
+				long newJournalMaxBytes = (Long)map.get("journalMaxBytes");
+				if (newJournalMaxBytes > 0) this.journalMaxBytes = newJournalMaxBytes;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update journalSegmentBytes parameter
+		if (map.containsKey("journalSegmentBytes")) {
+			try {
+				int newJournalSegmentBytes = (Integer)map.get("journalSegmentBytes");
+				if (newJournalSegmentBytes >= 4096) this.journalSegmentBytes = newJournalSegmentBytes;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update aggregate parameter
+		if (map.containsKey("aggregate")) {
+			try {
+				boolean newAggregate = (Boolean)map.get("aggregate");
+				this.aggregate = newAggregate;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update aggregateMaxKeys parameter
+		if (map.containsKey("aggregateMaxKeys")) {
+			try {
+				int newAggregateMaxKeys = (Integer)map.get("aggregateMaxKeys");
+				if (newAggregateMaxKeys > 0) this.aggregateMaxKeys = newAggregateMaxKeys;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update traceWindow parameter
+		if (map.containsKey("traceWindow")) {
+			try {
+				long newTraceWindow = (Long)map.get("traceWindow");
+				if (newTraceWindow >= 0) this.traceWindow = newTraceWindow;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update traceCacheSize parameter
+		if (map.containsKey("traceCacheSize")) {
+			try {
+				int newTraceCacheSize = (Integer)map.get("traceCacheSize");
+				if (newTraceCacheSize > 0) this.traceCacheSize = newTraceCacheSize;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update maxTraceFrames parameter
+		if (map.containsKey("maxTraceFrames")) {
+			try {
+				int newMaxTraceFrames = (Integer)map.get("maxTraceFrames");
+				if (newMaxTraceFrames > 0) this.maxTraceFrames = newMaxTraceFrames;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update formatCacheSize parameter
+		if (map.containsKey("formatCacheSize")) {
+			try {
+				int newFormatCacheSize = (Integer)map.get("formatCacheSize");
+				if (newFormatCacheSize > 0) this.formatCacheSize = newFormatCacheSize;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update threadMode parameter
+		if (map.containsKey("threadMode")) {
+			try {
+				String newThreadMode = (String)map.get("threadMode");
+				if (ThreadFactories.PLATFORM.equals(newThreadMode) || ThreadFactories.VIRTUAL.equals(newThreadMode))
+					this.threadMode = newThreadMode;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update uploadWorkers parameter
+		if (map.containsKey("uploadWorkers")) {
+			try {
+				int newUploadWorkers = (Integer)map.get("uploadWorkers");
+				if (newUploadWorkers > 0) this.uploadWorkers = newUploadWorkers;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update rateLimits parameter
+		if (map.containsKey("rateLimits")) {
+			try {
+				Map<?, ?> rateLimits = (Map<?, ?>)map.get("rateLimits");
+				for (Map.Entry<?, ?> e : rateLimits.entrySet()) {
+					try {
+						rateLimiter.setRateLimit((String)e.getKey(), ((Number)e.getValue()).doubleValue());
+					} catch (Exception ex) {
+						// Do nothing
+					}
+				}
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update sampleRates parameter
+		if (map.containsKey("sampleRates")) {
+			try {
+				Map<?, ?> sampleRates = (Map<?, ?>)map.get("sampleRates");
+				for (Map.Entry<?, ?> e : sampleRates.entrySet()) {
+					try {
+						rateLimiter.setSampleRate((String)e.getKey(), ((Number)e.getValue()).doubleValue());
+					} catch (Exception ex) {
+						// Do nothing
+					}
+				}
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update loggerLevels parameter
+		if (map.containsKey("loggerLevels")) {
+			try {
+				Map<?, ?> loggerLevels = (Map<?, ?>)map.get("loggerLevels");
+				for (Map.Entry<?, ?> e : loggerLevels.entrySet()) {
+					try {
+						Object level = e.getValue();
+						logFilter.setLoggerLevel((String)e.getKey(), (level instanceof Level) ? (Level)level : LogFilter.parseLevel((String)level));
+					} catch (Exception ex) {
+						// Do nothing
+					}
+				}
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update dropMessages parameter
+		if (map.containsKey("dropMessages")) {
+			try {
+				Object dropMessages = map.get("dropMessages");
+				Iterable<?> rules = (dropMessages instanceof Object[]) ? Arrays.asList((Object[])dropMessages) : (Iterable<?>)dropMessages;
+				for (Object rule : rules) {
+					try {
+						logFilter.addMessageRule((String)rule);
+					} catch (Exception ex) {
+						// Do nothing
+					}
+				}
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update retryBaseDelay parameter
+		if (map.containsKey("retryBaseDelay")) {
+			try {
+				long newRetryBaseDelay = (Long)map.get("retryBaseDelay");
+				if (newRetryBaseDelay > 0) this.retryBaseDelay = newRetryBaseDelay;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update retryMaxDelay parameter
+		if (map.containsKey("retryMaxDelay")) {
+			try {
+				long newRetryMaxDelay = (Long)map.get("retryMaxDelay");
+				if (newRetryMaxDelay > 0) this.retryMaxDelay = newRetryMaxDelay;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
+		// Update breakerThreshold parameter
+		if (map.containsKey("breakerThreshold")) {
+			try {
+				int newBreakerThreshold = (Integer)map.get("breakerThreshold");
+				if (newBreakerThreshold > 0) this.breakerThreshold = newBreakerThreshold;
+			} catch (Exception e) {
+				// Do nothing
+			}
+		}
 
-		logRecordBuffer = new LogRecordBuffer(maxBuffer);
+		transport = HttpTransport.get(transportType, secure, host, port, maxConnections, idleTimeout);
+		retryPolicy = new RetryPolicy(retryBaseDelay, retryMaxDelay, breakerThreshold);
+
+		SpillJournal journal = null;
+		if (journalDir != null) {
+			try {
+				journal = SpillJournal.open(new File(journalDir), journalMaxBytes, journalSegmentBytes, agent, debug);
+			} catch (IOException e) {
+				if (debug) System.err.println("Journal disabled: " + e.getMessage());
+			}
+		}
+		LogAggregator aggregator = aggregate ? new LogAggregator(aggregateMaxKeys) : null;
+		logRecordBuffer = new LogRecordBuffer(maxBuffer, maxBufferBytes, maxRequestBytes, bufferStripes, journal, aggregator);
+		statsCollector = new StatsCollector(this);
+		if (jmx) pipelineMetrics.register();
 		logController = new LogController(this, threshold, timeBuffer, statsInterval);
 	}
 
 	
 	@Override
 	public void publish(LogRecord record) {
-		record.setLevel(levelConverter.translate(record.getLevel()));
-
-		StringBuilder sb = new StringBuilder();
-		Object[] params = record.getParameters();
-		if (params != null) {
-			sb.append(Arrays.toString(params)).append("\n");
-		}
-		String className = record.getSourceClassName();
-		if (className != null) sb.append(className);
-		String methodName = record.getSourceMethodName();
-		if (methodName != null) sb.append(" ").append(methodName);
-		params = new Object[1];
-		params[0] = sb.toString();
-		record.setParameters(params);
-
-		logRecordBuffer.addLogToBuffer(record);
+		Level level = levelConverter.translate(record.getLevel());
+		// A dropped log is only counted as filtered, which is counted as published too
+		if (!isLoggable(record, level)) {
+			pipelineMetrics.filtered();
+			return;
+		}
+		pipelineMetrics.published();
+		if (!rateLimiter.accept(record, level)) return;
+		// The record is queued as it is; its details are rendered on the flushing thread
+		int stripeSize = logRecordBuffer.addLogToBuffer(record, level);
+		if (logRecordBuffer.takeSpillSignal()) this.logController.signalSpill();
+		int stripes = logRecordBuffer.getStripes();
+		// A striped buffer is not summed up on every log; the stripe the log went to tells when to look
+		if (stripes > 1 && stripeSize > 0) {
+			this.logController.signalStripe(stripeSize, stripes);
+			return;
+		}
+		int size = logRecordBuffer.size();
 		// Don't need to have the flushTimer going when there are no log entries in the deque. 
-		if (getLogRecordBuffer().size() == 1)
+		if (size == 1)
 			this.logController.startFlushTimer();
+		this.logController.signalThreshold(size);
 	}
 
 
+	/**
+	 * Checks whether a log would be kept: its OohLaLog level must be at least the level of this handler
+	 * and of its logger in loggerLevels, its message must not match dropMessages, and the Filter of this
+	 * handler, if any, must accept it.  Levels are compared as the OohLaLog levels they translate to, so
+	 * OohLaLog and java.util.logging levels can be mixed.  No log is kept once the handler is closed.
+	 */
+	@Override
+	public boolean isLoggable(LogRecord record) {
+		return record != null && isLoggable(record, levelConverter.translate(record.getLevel()));
+	}
+
+
+	private boolean isLoggable(LogRecord record, Level level) {
+		if (logController.isShutdown()) return false;
+		int priority = level.intValue();
+		int handlerPriority = LevelConverter.toOll(getLevel()).intValue();
+		if (priority < handlerPriority || handlerPriority == OllLevel.OFF.intValue()) return false;
+		if (!logFilter.accept(record, priority)) return false;
+		Filter filter = getFilter();
+		return filter == null || filter.isLoggable(record);
+	}
+
+
+	/**
+	 * Starts a flush of the buffer, unless uploads are held back after failures; see RetryPolicy.
+	 */
 	@Override
 	public void flush() {
 		logController.flush(Integer.MAX_VALUE);
@@ -190,6 +687,9 @@ public class OohLaLogHandler extends Handler {
 	@Override
 	public void close() throws SecurityException {
 		logController.close();
+		logRecordBuffer.closeJournal();
+		pipelineMetrics.unregister();
+		HttpTransport.release(transport);
 	}
 
 //-----------------------------------------------------------------------------------------		
@@ -202,6 +702,208 @@ public class OohLaLogHandler extends Handler {
 	}
 	
 	
+	/**
+	 * Getter method for returning the transport used for sending logs and stats to OohLaLog.
+	 */
+	protected HttpTransport getTransport() {
+		return transport;
+	}
+	
+	
+	/**
+	 * Returns the retry policy of this handler, which shows whether uploads to OohLaLog are failing,
+	 * when the next attempt will be made and whether the circuit breaker is open.
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+	
+	
+	/**
+	 * Getter method for returning the kind of threads the handler runs on, platform or virtual.
+	 */
+	protected String getThreadMode() {
+		return threadMode;
+	}
+	
+	
+	/**
+	 * Getter method for returning the number of upload threads the handler asks the shared scheduler for.
+	 */
+	protected int getUploadWorkers() {
+		return uploadWorkers;
+	}
+	
+	
+	/**
+	 * Limits the logs selected by a selector to a number per second, replacing any limit set before.
+	 * Selectors are logger:NAME for a logger and its children, class:NAME for a source class or package,
+	 * level:LEVEL for an OohLaLog level, and * for all logs.
+	 * 
+	 * @param selector the logs to limit
+	 * @param logsPerSecond the number of logs kept per second, or 0 to remove the limit
+	 * @throws IllegalArgumentException if the selector is not valid
+	 */
+	public void setRateLimit(String selector, double logsPerSecond) {
+		rateLimiter.setRateLimit(selector, logsPerSecond);
+	}
+	
+	
+	/**
+	 * Sets the lowest level of the logs of a logger and its child loggers that are kept, replacing any
+	 * level set before.  The level of the closest logger set decides.
+	 * 
+	 * @param logger the name of the logger, or "" or * for all loggers
+	 * @param level an OohLaLog or java.util.logging level, or null to remove the level of the logger
+	 */
+	public void setLoggerLevel(String logger, Level level) {
+		logFilter.setLoggerLevel(logger, level);
+	}
+	
+	
+	/**
+	 * Keeps only a random share of the logs selected by a selector, replacing any sample rate set before.
+	 * Selectors are the same as for setRateLimit().
+	 * 
+	 * @param selector the logs to sample
+	 * @param probability the probability that a log is kept, or 1 to keep all of them
+	 * @throws IllegalArgumentException if the selector is not valid
+	 */
+	public void setSampleRate(String selector, double probability) {
+		rateLimiter.setSampleRate(selector, probability);
+	}
+	
+	
+	/**
+	 * Getter method for returning the relative change below which a metric is not sent again.
+	 */
+	protected double getStatsEpsilon() {
+		return statsEpsilon;
+	}
+	
+	
+	/**
+	 * Getter method for returning the number of stats payloads from one full set of metrics to the next.
+	 */
+	protected int getStatsKeyframeInterval() {
+		return statsKeyframeInterval;
+	}
+	
+	
+	/**
+	 * Getter method for returning the collector of this handler's statistics.
+	 */
+	StatsCollector getStatsCollector() {
+		return statsCollector;
+	}
+	
+	
+	/**
+	 * Getter method for returning the time within which logs should reach the server, 0 if the threshold
+	 * and timeBuffer are not tuned.
+	 */
+	protected long getLatencyTarget() {
+		return latencyTarget;
+	}
+	
+	
+	/**
+	 * Getter method for returning the smallest threshold the tuning may choose.
+	 */
+	protected int getMinThreshold() {
+		return minThreshold;
+	}
+	
+	
+	/**
+	 * Getter method for returning the largest threshold the tuning may choose.
+	 */
+	protected int getMaxThreshold() {
+		return maxThreshold;
+	}
+	
+	
+	/**
+	 * Getter method for returning the shortest timeBuffer the tuning may choose.
+	 */
+	protected long getMinTimeBuffer() {
+		return minTimeBuffer;
+	}
+	
+	
+	/**
+	 * Getter method for returning the controller deciding when logs are flushed.
+	 */
+	LogController getLogController() {
+		return logController;
+	}
+	
+	
+	/**
+	 * Returns the counts and timings of what this handler did with its logs, the same as its MBean shows.
+	 */
+	public PipelineMetricsMXBean getMetrics() {
+		return pipelineMetrics;
+	}
+	
+	
+	/**
+	 * Getter method for returning the counts and timings of what this handler did with its logs.
+	 */
+	PipelineMetrics getPipelineMetrics() {
+		return pipelineMetrics;
+	}
+	
+	
+	/**
+	 * Getter method for returning whether the pipeline metrics are sent with the stats.
+	 */
+	protected boolean getPipelineStats() {
+		return pipelineStats;
+	}
+	
+	
+	/**
+	 * Getter method for returning the rate limiter that decides which logs are buffered.
+	 */
+	RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+	
+	
+	/**
+	 * Creates a compressor for request bodies using this handler's compression settings.  Each thread
+	 * that sends payloads needs its own.
+	 */
+	protected Compressor newCompressor() {
+		return new Compressor(compression, compressionMinBytes, compressionLevel, compressionStats, debug);
+	}
+	
+	
+	/**
+	 * Creates the cache of the stack traces sent recently, for the encoder of the logs.
+	 */
+	protected StackTraceCache newStackTraceCache() {
+		return new StackTraceCache(traceWindow, traceCacheSize, maxTraceFrames);
+	}
+	
+	
+	/**
+	 * Getter method for returning the number of compiled message patterns kept for formatting messages.
+	 */
+	protected int getFormatCacheSize() {
+		return formatCacheSize;
+	}
+	
+	
+	/**
+	 * Getter method for returning the totals of all compressions of request bodies sent by this handler.
+	 */
+	protected Compressor.Stats getCompressionStats() {
+		return compressionStats;
+	}
+	
+	
 	/**
 	 * Getter method for returning the host portion of the URL used for connecting to OohLaLog.
 	 */
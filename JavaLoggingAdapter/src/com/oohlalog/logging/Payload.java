@@ -1,19 +1,11 @@
 package com.oohlalog.logging;
 
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.LogRecord;
 
-import com.google.gson.Gson;
-
 /**
  * Representation of a payload sent to OohLaLog
  */
@@ -35,6 +27,36 @@ public class Payload {
 	private List<LogRecord> messages = null;
 	private Map<String, Object> counters = null;
 
+	// The OohLaLog level each of the messages was published with, null if they are to be sent as they are
+	private Level[] levels = null;
+
+	// Connections to the OohLaLog server
+	private HttpTransport transport = null;
+
+	// Compresses the body before it is sent
+	private Compressor compressor = null;
+
+	// Records the outcome of every attempt to send the payload
+	private RetryPolicy retryPolicy = null;
+
+	// Reusable buffer the payload is encoded into when it is sent
+	private PayloadEncoder encoder = null;
+
+	// Whether the encoder already holds the encoded payload, and how many logs it holds
+	private boolean preEncoded = false;
+	private int preEncodedCount = 0;
+
+	// Counts and times the sending of the payload
+	private PipelineMetrics metrics = null;
+
+	// The encoded, and possibly compressed, body once the payload has been sent
+	private byte[] body = null;
+	private int bodyLength;
+	private String contentEncoding = null;
+
+	// The HTTP status of the last attempt to send the payload, -1 if it got no response
+	private int status = -1;
+
 	/**
 	 * lock constructor to require usage of the builder
 	 */
@@ -48,110 +70,123 @@ public class Payload {
 	 * @return a JSON version of the payload
 	 */
 	public String serialize( ) {
-		Payload pl = this;
-		Map<String,Object> payload = new HashMap<String,Object>();
-
-		// Add logs
-		payload.put( PAYLOAD_LOGS, new ArrayList<Map<String,Object>>( pl.getMessages().size() ));
-		for( LogRecord le : pl.getMessages() ) {
-			Map<String,Object> map = transform( le );
-			map.put( "agent", pl.getAgent() );
-			((List<Map<String,Object>>)payload.get( PAYLOAD_LOGS )).add(map);
-		}
-		// Add counters
-		if ( pl.getCounters() != null )
-			payload.put( PAYLOAD_COUNTERS, pl.getCounters() );
-
-		// Add api key
-		payload.put( "apiKey", pl.getAuthToken() );
-
-		return new Gson().toJson( payload );
+		PayloadEncoder encoder = new PayloadEncoder();
+		encoder.encode( this );
+		return encoder.toString();
 	}
 
 
 	/**
-	 * Transform a logging event into a map for serialization
-	 * @param log the log record to be transformed
-	 * @return
-	 */
-	private static Map<String,Object> transform( LogRecord log ) {
-		Map<String,Object> map = new HashMap<String,Object>();
-		
-		map.put( "level", log.getLevel().toString() );
-		map.put( "message", log.getMessage() );
-		map.put( "timestamp", log.getMillis());
-//		map.put("category", log.getCategory() ); // allow for an explicit category
-		map.put( "details", log.getParameters());
-		
-		return map;
-	}
-
-	/**
-	 * Write this payload to remote service
+	 * Write this payload to remote service.  The payload is encoded the first time it is sent, and the
+	 * same bytes are sent again if it is sent again, so the encoder and compressor it was built with must
+	 * not be used for anything else until it has been delivered.  The payload only counts as delivered
+	 * if the server answered with status 200.
 	 * @param pl the payload
 	 * @throws RuntimeException
 	 */
 	public static boolean send( Payload pl ) throws RuntimeException {
-		OutputStream os = null;
-	    BufferedReader rd  = null;
-	    StringBuilder sb = null;
-	    String line = null;
-	    HttpURLConnection con = null;
-	    boolean success = true;
+		boolean success = false;
+		int status = -1;
+		String retryAfter = null;
 		try {
-			if (pl.getDebug()) System.out.println("Serializing: " + pl.toString());
-			// Serialize payload into json
-			String json = pl.serialize();
+			// Serialize payload into json, unless an earlier attempt to send it already did
+			if (pl.body == null) {
+				long start = System.nanoTime();
+				if (pl.getDebug()) System.out.println("Serializing: " + pl.toString());
+				PayloadEncoder encoder = (pl.encoder != null) ? pl.encoder : new PayloadEncoder();
+				if (!pl.preEncoded) encoder.encode( pl );
+				if (pl.getDebug()) System.out.println( ">>>>>>>>>>>JSON: " + encoder.toString() );
+
+				// Compress the body if it is large enough
+				pl.body = encoder.getBuffer();
+				pl.bodyLength = encoder.size();
+				pl.contentEncoding = null;
+				if (pl.compressor != null && pl.compressor.compress( pl.body, pl.bodyLength )) {
+					pl.body = pl.compressor.getBuffer();
+					pl.bodyLength = pl.compressor.size();
+					pl.contentEncoding = pl.compressor.getEncoding();
+				}
+				if (pl.metrics != null) pl.metrics.serialize.record(System.nanoTime() - start);
+			}
 
 			if (pl.getDebug()) System.out.println( ">>>>>>>>>>>Payload: " + pl.toString() );
 
-			// Create connection to OohLaLog server
-			URL url = new URL( (pl.getSecure() ? "https" : "http"), pl.getHost(), pl.getPort(), pl.getPath()+"?apiKey="+pl.getAuthToken() );
-
-			if (pl.getDebug()) System.out.println( ">>>>>>>>>>>Submitting to: " + url.toString() );
-			if (pl.getDebug()) System.out.println( ">>>>>>>>>>>JSON: " + json.toString() );
-			con = (HttpURLConnection) url.openConnection();
-			con.setDoOutput(true);
-			con.setDoInput(true);
-			con.setInstanceFollowRedirects(false);
-			con.setRequestMethod("POST");
-			con.setRequestProperty("Content-Type", "application/json");
-			con.setRequestProperty("Content-Length", "" + json.getBytes().length);
-			con.setUseCaches(false);
-
-			// Get output stream and write json
-			os = con.getOutputStream();
-			os.write( json.getBytes() );
-
-			rd  = new BufferedReader(new InputStreamReader(con.getInputStream()));
-			sb = new StringBuilder();
-
-			while ((line = rd.readLine()) != null){
-			  sb.append(line + '\n');
+			// Send over a pooled connection to the OohLaLog server
+			String path = pl.getPath()+"?apiKey="+pl.getAuthToken();
+
+			if (pl.getDebug()) System.out.println( ">>>>>>>>>>>Submitting to: " + pl.getUrl( path ) );
+			if (pl.metrics != null) pl.metrics.sending(pl.bodyLength);
+			HttpTransport transport = pl.getTransport();
+			HttpTransport.Response response;
+			try {
+				response = transport.post( path, pl.contentEncoding, pl.body, pl.bodyLength );
 			}
-			if (pl.getDebug()) System.out.println( ">>>>>>>>>>>Received: " + sb.toString() );
-			
-			if (con.getResponseCode() != 200) {
-				success = false;
+			finally {
+				if (transport != pl.transport) HttpTransport.release( transport );
+				if (pl.metrics != null) pl.metrics.sendDone();
 			}
+			if (pl.metrics != null) pl.metrics.timed(response);
+
+			if (pl.getDebug()) System.out.println( ">>>>>>>>>>>Received: " + response.getBody() );
+			
+			status = response.getStatus();
+			retryAfter = response.getHeader( "retry-after" );
+			success = (status == 200);
 		} catch ( Throwable t ) {
 			t.printStackTrace();
-		} finally {
-			if ( os != null ) {
-				try {
-				  con.disconnect();
-					os.flush();
-					os.close();
-					con = null;
-				}
-				catch ( Throwable t ) {
-					// swallow
-				}
-			}
 		}
+
+		pl.status = status;
+		if (pl.retryPolicy != null) {
+			if (success) pl.retryPolicy.onSuccess( status );
+			else pl.retryPolicy.onFailure( status, retryAfter );
+		}
+		if (pl.metrics != null && success) pl.recordDelivery();
 		return success;
 	}
 
+
+	/**
+	 * Counts the logs of the delivered payload as sent, and times how long they took from their
+	 * creation.  A payload that failed is counted by whoever gives it up, so that a payload sent again
+	 * is not counted once per attempt.
+	 */
+	private void recordDelivery() {
+		int n = (messages != null) ? messages.size() : preEncodedCount;
+		metrics.sent(n);
+		if (messages != null) {
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < n; i++) {
+				metrics.createToAck.recordMicros((now - messages.get(i).getMillis()) * 1000);
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the transport set on this payload, or else gets the shared default transport for its
+	 * endpoint, which the caller gives back with HttpTransport.release().
+	 */
+	HttpTransport getTransport() {
+		if (transport != null) return transport;
+		return HttpTransport.get( HttpTransport.POOLED, secure, host, port,
+				HttpTransport.DEFAULT_MAX_CONNECTIONS, HttpTransport.DEFAULT_IDLE_TIMEOUT );
+	}
+
+
+	/**
+	 * Returns whether the last attempt to send the payload was refused by the server with a 4xx status
+	 * other than 408 Request Timeout and 429 Too Many Requests, so sending it again would be refused too.
+	 */
+	boolean isRejected() {
+		return status >= 400 && status < 500 && status != 408 && status != 429;
+	}
+
+
+	private String getUrl( String path ) {
+		return (secure ? "https" : "http") + "://" + host + ":" + port + path;
+	}
+
 	public String getAuthToken() {
 		return authToken;
 	}
@@ -184,6 +219,10 @@ public class Payload {
 		this.messages = messages;
 	}
 
+	Level[] getLevels() {
+		return levels;
+	}
+
 	public Map<String, Object> getCounters() {
 		return counters;
 	}
@@ -261,6 +300,14 @@ public class Payload {
 		private boolean debug = false;
 		private List<LogRecord> messages = null;
 		private Map<String, Object> counters = null;
+		private Level[] levels = null;
+		private PayloadEncoder encoder = null;
+		private boolean preEncoded = false;
+		private int preEncodedCount = 0;
+		private PipelineMetrics metrics = null;
+		private HttpTransport transport = null;
+		private Compressor compressor = null;
+		private RetryPolicy retryPolicy = null;
 
 		public Builder() {}
 		public Payload build() {
@@ -270,11 +317,19 @@ public class Payload {
 			pl.hostName = this.hostName;
 			pl.messages = this.messages;
 			pl.counters = this.counters;
+			pl.levels = this.levels;
 			pl.port = this.port;
 			pl.agent = this.agent;
 			pl.path = this.path;
 			pl.secure = this.secure;
 			pl.debug = this.debug;
+			pl.transport = this.transport;
+			pl.compressor = this.compressor;
+			pl.retryPolicy = this.retryPolicy;
+			pl.encoder = this.encoder;
+			pl.preEncoded = this.preEncoded;
+			pl.preEncodedCount = this.preEncodedCount;
+			pl.metrics = this.metrics;
 			return pl;
 		}
 
@@ -327,5 +382,52 @@ public class Payload {
 			this.debug = debug;
 			return this;
 		}
+
+		/**
+		 * Sets the levels the messages were published with, by index.  Their details are then rendered
+		 * from the records when the payload is encoded.
+		 */
+		Builder levels( Level[] levels ) {
+			this.levels = levels;
+			return this;
+		}
+
+		Builder encoder( PayloadEncoder encoder ) {
+			this.encoder = encoder;
+			return this;
+		}
+
+		/**
+		 * Sets an encoder that already holds the encoded payload, in place of messages.
+		 *
+		 * @param encoder the encoder
+		 * @param count the number of logs in the encoded payload
+		 */
+		Builder encoded( PayloadEncoder encoder, int count ) {
+			this.encoder = encoder;
+			this.preEncoded = true;
+			this.preEncodedCount = count;
+			return this;
+		}
+
+		Builder transport( HttpTransport transport ) {
+			this.transport = transport;
+			return this;
+		}
+
+		Builder compressor( Compressor compressor ) {
+			this.compressor = compressor;
+			return this;
+		}
+
+		Builder retryPolicy( RetryPolicy retryPolicy ) {
+			this.retryPolicy = retryPolicy;
+			return this;
+		}
+
+		Builder metrics( PipelineMetrics metrics ) {
+			this.metrics = metrics;
+			return this;
+		}
 	}
 }
\ No newline at end of file
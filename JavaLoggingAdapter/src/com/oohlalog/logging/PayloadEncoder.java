@@ -0,0 +1,564 @@
+package com.oohlalog.logging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import com.google.gson.Gson;
+
+
+/**
+ * Encodes a payload as UTF-8 JSON straight into a reusable byte buffer, one log record at a time.
+ * The output is byte for byte what Gson produces for the map based representation of the payload:
+ * the same key order, the same HTML safe string escaping and nulls left out of objects.  Values that
+ * are not strings, integral numbers or booleans are handed to Gson so they keep its formatting.
+ *
+ * Logs published through the handler are queued untouched together with their OohLaLog level, and
+ * their details are only rendered here, on the flushing thread: the parameters as by Arrays.toString,
+ * then the source class and method, and the message, formatted with the parameters as by
+ * Formatter.formatMessage() using a MessageFormatCache.  Logs without a level are encoded as they are.  A log standing
+ * for repeated logs also gets their count and the timestamp of the last one.  A log with a thrown
+ * exception gets its stack trace, as printStackTrace() writes it but with at most maxFrames frames per
+ * exception, and its fingerprint.  With a StackTraceCache, a trace already sent within its window is
+ * only sent as its first line.
+ */
+class PayloadEncoder {
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes(UTF_8);
+	private static final Gson GSON = new Gson();
+
+	// Sizes used by estimateSize() for what it does not measure
+	private static final int ESTIMATED_LOG_BYTES = 144;
+	private static final int ESTIMATED_PARAM_BYTES = 16;
+	private static final int ESTIMATED_REPEAT_BYTES = 40;
+	private static final int ESTIMATED_THROWN_BYTES = 256;
+
+	// Holds the encoded payload
+	private byte[] buf;
+
+	// Number of valid bytes in buf
+	private int count;
+
+	// Number of logs written since begin()
+	private int logs;
+
+	// Traces sent recently, so they are not sent again in full, may be null
+	private StackTraceCache stackTraces;
+
+	// Compiled message patterns, created when the first message with parameters is encoded
+	private MessageFormatCache formats;
+
+
+	/**
+	 * Constructor that creates an encoder with a default initial buffer size.
+	 */
+	PayloadEncoder() {
+		this(8192);
+	}
+
+
+	/**
+	 * Constructor that creates an encoder with the given initial buffer size.
+	 *
+	 * @param initialSize the initial size of the buffer, which grows as needed
+	 */
+	PayloadEncoder(int initialSize) {
+		buf = new byte[initialSize];
+	}
+
+
+	/**
+	 * Sets the cache of the traces sent recently.  Without one every trace is sent in full.
+	 *
+	 * @param stackTraces the cache, may be null
+	 */
+	void setStackTraceCache(StackTraceCache stackTraces) {
+		this.stackTraces = stackTraces;
+	}
+
+
+	/**
+	 * Sets the cache of compiled message patterns, which is otherwise created with the default size.
+	 *
+	 * @param formats the cache
+	 */
+	void setMessageFormatCache(MessageFormatCache formats) {
+		this.formats = formats;
+	}
+
+
+	/**
+	 * Replaces the contents of the buffer with the JSON encoding of a log payload.
+	 *
+	 * @param pl the payload to encode
+	 */
+	void encode(Payload pl) {
+		begin(pl.getCounters(), pl.getAuthToken());
+		Level[] levels = pl.getLevels();
+		int i = 0;
+		for (LogRecord log : pl.getMessages()) {
+			if (logs++ > 0) write(',');
+			log(log, (levels != null) ? levels[i++] : null, pl.getAgent());
+		}
+		end();
+	}
+
+
+	/**
+	 * Replaces the contents of the buffer with the start of a log payload, up to the opening bracket
+	 * of the list of logs.
+	 *
+	 * @param counters the counters of the payload, may be null
+	 * @param authToken the api key of the payload, may be null
+	 */
+	void begin(Map<String, Object> counters, String authToken) {
+		count = 0;
+		logs = 0;
+		write('{');
+		if (counters != null) {
+			name("counters");
+			writeUtf8(GSON.toJson(counters));
+			write(',');
+		}
+		if (authToken != null) {
+			name("apiKey");
+			string(authToken);
+			write(',');
+		}
+		name(Payload.PAYLOAD_LOGS);
+		write('[');
+	}
+
+
+	/**
+	 * Appends a log that is already encoded, as written by encodeLog(), to a payload started with begin().
+	 *
+	 * @param src the buffer holding the encoded log at its current position
+	 * @param len the length of the encoded log
+	 */
+	void rawLog(ByteBuffer src, int len) {
+		if (logs++ > 0) write(',');
+		ensureCapacity(len);
+		src.get(buf, count, len);
+		count += len;
+	}
+
+
+	/**
+	 * Ends a payload started with begin().
+	 */
+	void end() {
+		write(']');
+		write('}');
+	}
+
+
+	/**
+	 * Replaces the contents of the buffer with the JSON object for a single log, as it appears in the
+	 * list of logs of a payload.
+	 *
+	 * @param log the log record to encode
+	 * @param level the OohLaLog level the log was published with, or null to encode the log as it is
+	 * @param agent the agent of the payload, may be null
+	 */
+	void encodeLog(LogRecord log, Level level, String agent) {
+		count = 0;
+		log(log, level, agent);
+	}
+
+
+	/**
+	 * Returns an estimate of the size of a log once encoded, cheap enough to make when it is published.
+	 * Strings count one byte per character and other parameters, which are rendered later, a fixed size, and nothing is rendered,
+	 * so the source of the log is not looked up either.  The estimate only depends on the record, so it
+	 * is the same whenever it is made.
+	 *
+	 * @param log the log record
+	 * @return the estimated size in bytes
+	 */
+	static int estimateSize(LogRecord log) {
+		// Braces, names, level, timestamp and the source class and method
+		int size = ESTIMATED_LOG_BYTES;
+		String message = log.getMessage();
+		if (message != null) size += message.length();
+		Object[] params = log.getParameters();
+		if (params != null) {
+			for (Object param : params) {
+				size += (param instanceof String) ? ((String)param).length() + 4 : ESTIMATED_PARAM_BYTES;
+			}
+		}
+		if (log instanceof RepeatedLogRecord) size += ESTIMATED_REPEAT_BYTES;
+		if (log.getThrown() != null) size += ESTIMATED_THROWN_BYTES;
+		return size;
+	}
+
+
+	/**
+	 * Appends one log record as a JSON object.
+	 */
+	private void log(LogRecord log, Level level, String agent) {
+		write('{');
+		if (agent != null) {
+			name("agent");
+			string(agent);
+			write(',');
+		}
+		name("level");
+		string(((level != null) ? level : log.getLevel()).toString());
+		write(',');
+		if (level != null) {
+			name("details");
+			details(log);
+			write(',');
+		}
+		else if (log.getParameters() != null) {
+			name("details");
+			array(log.getParameters());
+			write(',');
+		}
+		String message = (level != null) ? message(log) : log.getMessage();
+		if (message != null) {
+			name("message");
+			string(message);
+			write(',');
+		}
+		if (log.getThrown() != null) {
+			exception(log.getThrown());
+			write(',');
+		}
+		name("timestamp");
+		number(log.getMillis());
+		if (log instanceof RepeatedLogRecord) {
+			RepeatedLogRecord repeated = (RepeatedLogRecord)log;
+			write(',');
+			name("count");
+			number(repeated.getCount());
+			write(',');
+			name("lastTimestamp");
+			number(repeated.getLastMillis());
+		}
+		write('}');
+	}
+
+
+	/**
+	 * Appends the details of a published log: a list holding one string made of the parameters, as
+	 * written by Arrays.toString, and a newline if there are any, then the source class and method.
+	 */
+	private void details(LogRecord log) {
+		write('[');
+		write('"');
+		Object[] params = log.getParameters();
+		if (params != null) {
+			write('[');
+			for (int i = 0; i < params.length; i++) {
+				if (i > 0) {
+					write(',');
+					write(' ');
+				}
+				chars(String.valueOf(params[i]));
+			}
+			write(']');
+			write('\\');
+			write('n');
+		}
+		String className = log.getSourceClassName();
+		if (className != null) chars(className);
+		String methodName = log.getSourceMethodName();
+		if (methodName != null) {
+			write(' ');
+			chars(methodName);
+		}
+		write('"');
+		write(']');
+	}
+
+
+	/**
+	 * Returns the message of a published log with its parameters filled in.  A message with no
+	 * parameters is returned as it is without creating the cache.
+	 */
+	private String message(LogRecord log) {
+		Object[] params = log.getParameters();
+		if (log.getResourceBundle() == null && (params == null || params.length == 0)) return log.getMessage();
+		if (formats == null) formats = new MessageFormatCache(MessageFormatCache.DEFAULT_MAX_ENTRIES);
+		return formats.format(log);
+	}
+
+
+	/**
+	 * Appends the exception and fingerprint of a thrown exception: the full trace if it was not sent
+	 * within the window of the cache, and otherwise only its first line.
+	 */
+	private void exception(Throwable t) {
+		int maxFrames = (stackTraces != null) ? stackTraces.getMaxFrames() : StackTraceCache.DEFAULT_MAX_FRAMES;
+		long fingerprint = StackTraceCache.fingerprint(t, maxFrames);
+		name("exception");
+		write('"');
+		if (stackTraces == null || stackTraces.sendFull(fingerprint, System.currentTimeMillis())) trace(t, maxFrames);
+		else chars(String.valueOf(t));
+		write('"');
+		write(',');
+		name("fingerprint");
+		write('"');
+		ensureCapacity(16);
+		for (int shift = 60; shift >= 0; shift -= 4) {
+			buf[count++] = HEX[(int)(fingerprint >>> shift) & 0xf];
+		}
+		write('"');
+	}
+
+
+	/**
+	 * Appends the escaped stack trace of an exception and its causes, as printStackTrace() writes it,
+	 * with at most maxFrames frames of each.  Frames a cause shares with the exception it caused are
+	 * left out, as printStackTrace() does.  Suppressed exceptions are not written.
+	 */
+	private void trace(Throwable t, int maxFrames) {
+		Throwable[] seen = new Throwable[StackTraceCache.MAX_CAUSES];
+		StackTraceElement[] enclosing = null;
+		for (int depth = 0; t != null && depth < StackTraceCache.MAX_CAUSES; depth++) {
+			if (StackTraceCache.contains(seen, depth, t)) {
+				chars("\n[CIRCULAR REFERENCE: " + t + "]");
+				return;
+			}
+			seen[depth] = t;
+			if (depth > 0) chars("\nCaused by: ");
+			chars(String.valueOf(t));
+			StackTraceElement[] frames = t.getStackTrace();
+			int m = frames.length - 1;
+			if (enclosing != null) {
+				for (int n = enclosing.length - 1; m >= 0 && n >= 0 && frames[m].equals(enclosing[n]); m--, n--);
+			}
+			int shown = Math.min(m + 1, maxFrames);
+			for (int i = 0; i < shown; i++) {
+				chars("\n\tat ");
+				chars(frames[i].toString());
+			}
+			if (shown < frames.length) {
+				chars("\n\t... ");
+				number(frames.length - shown);
+				chars(" more");
+			}
+			enclosing = frames;
+			t = t.getCause();
+		}
+	}
+
+
+	private void name(String name) {
+		string(name);
+		write(':');
+	}
+
+
+	private void array(Object[] values) {
+		write('[');
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) write(',');
+			value(values[i]);
+		}
+		write(']');
+	}
+
+
+	private void value(Object value) {
+		if (value == null) {
+			writeAscii("null");
+		}
+		else if (value instanceof String) {
+			string((String)value);
+		}
+		else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			number(((Number)value).longValue());
+		}
+		else if (value instanceof Boolean) {
+			writeAscii(((Boolean)value).booleanValue() ? "true" : "false");
+		}
+		else if (value instanceof Object[]) {
+			array((Object[])value);
+		}
+		else {
+			writeUtf8(GSON.toJson(value));
+		}
+	}
+
+
+	private void number(long value) {
+		if (value == Long.MIN_VALUE) {
+			writeAscii(Long.toString(value));
+			return;
+		}
+		if (value < 0) {
+			write('-');
+			value = -value;
+		}
+		int digits = 1;
+		for (long v = value; v >= 10; v /= 10) digits++;
+		ensureCapacity(digits);
+		for (int i = count + digits - 1; i >= count; i--) {
+			buf[i] = (byte)('0' + (value % 10));
+			value /= 10;
+		}
+		count += digits;
+	}
+
+
+	/**
+	 * Appends a quoted string, escaped the same way as Gson's HTML safe JsonWriter.
+	 */
+	private void string(String s) {
+		write('"');
+		chars(s);
+		write('"');
+	}
+
+
+	/**
+	 * Appends the escaped contents of a string, without quotes.
+	 */
+	private void chars(String s) {
+		int len = s.length();
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"': write('\\'); write('"'); break;
+			case '\\': write('\\'); write('\\'); break;
+			case '\t': write('\\'); write('t'); break;
+			case '\b': write('\\'); write('b'); break;
+			case '\n': write('\\'); write('n'); break;
+			case '\r': write('\\'); write('r'); break;
+			case '\f': write('\\'); write('f'); break;
+			case '<': case '>': case '&': case '=': case '\'':
+			case '\u2028': case '\u2029':
+				unicodeEscape(c);
+				break;
+			default:
+				if (c < 0x20) unicodeEscape(c);
+				else i = utf8(s, i, len);
+			}
+		}
+	}
+
+
+	private void unicodeEscape(char c) {
+		ensureCapacity(6);
+		buf[count++] = '\\';
+		buf[count++] = 'u';
+		buf[count++] = HEX[(c >> 12) & 0xf];
+		buf[count++] = HEX[(c >> 8) & 0xf];
+		buf[count++] = HEX[(c >> 4) & 0xf];
+		buf[count++] = HEX[c & 0xf];
+	}
+
+
+	private void writeUtf8(String s) {
+		int len = s.length();
+		for (int i = 0; i < len; i++) {
+			i = utf8(s, i, len);
+		}
+	}
+
+
+	private void writeAscii(String s) {
+		int len = s.length();
+		ensureCapacity(len);
+		for (int i = 0; i < len; i++) {
+			buf[count++] = (byte)s.charAt(i);
+		}
+	}
+
+
+	/**
+	 * Appends the character at index i as UTF-8.  Unpaired surrogates become '?', as they do
+	 * with String.getBytes.
+	 *
+	 * @return the index of the last char consumed
+	 */
+	private int utf8(String s, int i, int len) {
+		char c = s.charAt(i);
+		ensureCapacity(4);
+		if (c < 0x80) {
+			buf[count++] = (byte)c;
+		}
+		else if (c < 0x800) {
+			buf[count++] = (byte)(0xc0 | (c >> 6));
+			buf[count++] = (byte)(0x80 | (c & 0x3f));
+		}
+		else if (Character.isSurrogate(c)) {
+			if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				buf[count++] = (byte)(0xf0 | (cp >> 18));
+				buf[count++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+				buf[count++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+				buf[count++] = (byte)(0x80 | (cp & 0x3f));
+			}
+			else {
+				buf[count++] = '?';
+			}
+		}
+		else {
+			buf[count++] = (byte)(0xe0 | (c >> 12));
+			buf[count++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+			buf[count++] = (byte)(0x80 | (c & 0x3f));
+		}
+		return i;
+	}
+
+
+	private void write(char c) {
+		ensureCapacity(1);
+		buf[count++] = (byte)c;
+	}
+
+
+	private void ensureCapacity(int extra) {
+		if (count + extra > buf.length) {
+			byte[] bigger = new byte[Math.max(buf.length << 1, count + extra)];
+			System.arraycopy(buf, 0, bigger, 0, count);
+			buf = bigger;
+		}
+	}
+
+
+	/**
+	 * Writes the encoded payload to a stream.
+	 *
+	 * @param os the stream to write to
+	 * @throws IOException if the stream cannot be written
+	 */
+	void writeTo(OutputStream os) throws IOException {
+		os.write(buf, 0, count);
+	}
+
+
+	/**
+	 * Returns the number of bytes of the encoded payload.
+	 *
+	 * @return the size of the encoded payload in bytes
+	 */
+	int size() {
+		return count;
+	}
+
+
+	/**
+	 * Returns the buffer holding the encoded payload.  Only the first size() bytes are valid.
+	 *
+	 * @return the underlying buffer
+	 */
+	byte[] getBuffer() {
+		return buf;
+	}
+
+
+	@Override
+	public String toString() {
+		return new String(buf, 0, count, UTF_8);
+	}
+}
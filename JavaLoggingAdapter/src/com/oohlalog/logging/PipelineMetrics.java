@@ -0,0 +1,286 @@
+package com.oohlalog.logging;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * Counts and times what a handler does with its logs.  Publishing threads only add to a LongAdder;
+ * everything else is recorded on the flushing thread.  Dropped logs are read from the counters the
+ * buffer, rate limiter and journal already keep.
+ */
+class PipelineMetrics implements PipelineMetricsMXBean {
+	// Numbers the MBeans of the handlers in this JVM
+	private static final AtomicInteger handlers = new AtomicInteger();
+
+	private static final Level[] LEVELS = LogRecordBuffer.getPriorityLevels();
+
+	private final OohLaLogHandler handler;
+
+	private final LongAdder published = new LongAdder();
+	private final LongAdder filtered = new LongAdder();
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder bytesSent = new LongAdder();
+	private final LongAdder dispatchErrors = new LongAdder();
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	final LatencyHistogram serialize = new LatencyHistogram();
+	final LatencyHistogram connect = new LatencyHistogram();
+	final LatencyHistogram write = new LatencyHistogram();
+	final LatencyHistogram response = new LatencyHistogram();
+	final LatencyHistogram createToAck = new LatencyHistogram();
+
+	// The name the MBean is registered under, or null if it is not registered
+	private ObjectName name;
+
+
+	PipelineMetrics(OohLaLogHandler handler) {
+		this.handler = handler;
+	}
+
+
+	/**
+	 * Registers this as an MBean with the platform MBean server.
+	 */
+	void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("com.oohlalog.logging:type=OohLaLogHandler,name=handler-" + handlers.incrementAndGet());
+			server.registerMBean(this, name);
+			this.name = name;
+		} catch (Exception e) {
+			if (handler.getDebug()) System.err.println("Could not register MBean: " + e.getMessage());
+		}
+	}
+
+
+	/**
+	 * Removes the MBean registered by register(), if any.
+	 */
+	void unregister() {
+		if (name == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (Exception e) {
+			// Already gone
+		}
+		name = null;
+	}
+
+
+	void published() {
+		published.increment();
+	}
+
+
+	void filtered() {
+		filtered.increment();
+	}
+
+
+	void dispatchFailed() {
+		dispatchErrors.increment();
+	}
+
+
+	/**
+	 * Records a payload about to be sent.
+	 *
+	 * @param bytes the size of its body
+	 */
+	void sending(int bytes) {
+		inFlight.incrementAndGet();
+		bytesSent.add(bytes);
+	}
+
+
+	/**
+	 * Records a payload that is no longer being sent.
+	 */
+	void sendDone() {
+		inFlight.decrementAndGet();
+	}
+
+
+	/**
+	 * Records logs delivered to OohLaLog.
+	 *
+	 * @param logs the number of logs
+	 */
+	void sent(int logs) {
+		sent.add(logs);
+	}
+
+
+	/**
+	 * Records logs whose payload failed and was given up or moved to the journal, once however many
+	 * times it was tried.
+	 *
+	 * @param logs the number of logs
+	 */
+	void failed(int logs) {
+		failed.add(logs);
+	}
+
+
+	/**
+	 * Records logs whose payload the server refused as malformed, which are dropped rather than sent
+	 * again.
+	 *
+	 * @param logs the number of logs
+	 */
+	void rejected(int logs) {
+		rejected.add(logs);
+	}
+
+
+	/**
+	 * Adds the timings of a response to the connect, write and response histograms.
+	 */
+	void timed(HttpTransport.Response r) {
+		connect.record(r.getConnectNanos());
+		write.record(r.getWriteNanos());
+		response.record(r.getResponseNanos());
+	}
+
+
+	public long getPublished() {
+		return published.sum() + filtered.sum();
+	}
+
+	public long getDroppedFiltered() {
+		return filtered.sum();
+	}
+
+	public long getDroppedRateLimited() {
+		return handler.getRateLimiter().getRateLimited();
+	}
+
+	public long getDroppedSampledOut() {
+		return handler.getRateLimiter().getSampledOut();
+	}
+
+	public long getDroppedBufferFull() {
+		LogRecordBuffer buffer = handler.getLogRecordBuffer();
+		long n = 0;
+		for (Level level : LEVELS) {
+			n += buffer.getDropped(level);
+		}
+		return n;
+	}
+
+	public long getDroppedJournalFull() {
+		return handler.getLogRecordBuffer().getJournalDropped();
+	}
+
+	public long getDroppedRejected() {
+		return rejected.sum();
+	}
+
+	public long getDroppedBufferFullBytes() {
+		return handler.getLogRecordBuffer().getDroppedBytes();
+	}
+
+	public long getSent() {
+		return sent.sum();
+	}
+
+	public long getFailed() {
+		return failed.sum();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	public long getDispatchErrors() {
+		return dispatchErrors.sum();
+	}
+
+	public int getBufferDepth() {
+		return handler.getLogRecordBuffer().size();
+	}
+
+	public long getBufferBytes() {
+		return handler.getLogRecordBuffer().getBytes();
+	}
+
+	public int getInFlightBatches() {
+		return inFlight.get();
+	}
+
+	public int getThreshold() {
+		LogController controller = handler.getLogController();
+		return (controller != null) ? controller.getThreshold() : 0;
+	}
+
+	public long getTimeBuffer() {
+		LogController controller = handler.getLogController();
+		return (controller != null) ? controller.getTimeBuffer() : 0;
+	}
+
+	public LatencyStats getSerializeLatency() {
+		return serialize.snapshot();
+	}
+
+	public LatencyStats getConnectLatency() {
+		return connect.snapshot();
+	}
+
+	public LatencyStats getWriteLatency() {
+		return write.snapshot();
+	}
+
+	public LatencyStats getResponseLatency() {
+		return response.snapshot();
+	}
+
+	public LatencyStats getCreateToAckLatency() {
+		return createToAck.snapshot();
+	}
+
+
+	/**
+	 * Adds the counters, gauges and latency percentiles to a stats snapshot, as pipeline.*.
+	 *
+	 * @param snapshot the snapshot to add to
+	 */
+	void addStats(StatsSnapshot snapshot) {
+		snapshot.put("pipeline.published", getPublished());
+		snapshot.put("pipeline.dropped.filtered", getDroppedFiltered());
+		snapshot.put("pipeline.dropped.rateLimited", getDroppedRateLimited());
+		snapshot.put("pipeline.dropped.sampledOut", getDroppedSampledOut());
+		snapshot.put("pipeline.dropped.bufferFull", getDroppedBufferFull());
+		snapshot.put("pipeline.dropped.journalFull", getDroppedJournalFull());
+		snapshot.put("pipeline.dropped.rejected", getDroppedRejected());
+		snapshot.put("pipeline.dropped.bufferFullBytes", getDroppedBufferFullBytes());
+		snapshot.put("pipeline.sent", getSent());
+		snapshot.put("pipeline.failed", getFailed());
+		snapshot.put("pipeline.bytesSent", getBytesSent());
+		snapshot.put("pipeline.dispatchErrors", getDispatchErrors());
+		snapshot.put("pipeline.bufferDepth", getBufferDepth());
+		snapshot.put("pipeline.bufferBytes", getBufferBytes());
+		snapshot.put("pipeline.inFlightBatches", getInFlightBatches());
+		snapshot.put("pipeline.threshold", getThreshold());
+		snapshot.put("pipeline.timeBuffer", getTimeBuffer());
+		addLatency(snapshot, serialize, "pipeline.serialize.p50Micros", "pipeline.serialize.p99Micros");
+		addLatency(snapshot, connect, "pipeline.connect.p50Micros", "pipeline.connect.p99Micros");
+		addLatency(snapshot, write, "pipeline.write.p50Micros", "pipeline.write.p99Micros");
+		addLatency(snapshot, response, "pipeline.response.p50Micros", "pipeline.response.p99Micros");
+		addLatency(snapshot, createToAck, "pipeline.createToAck.p50Micros", "pipeline.createToAck.p99Micros");
+	}
+
+
+	private static void addLatency(StatsSnapshot snapshot, LatencyHistogram h, String p50Name, String p99Name) {
+		if (h.getCount() == 0) return;
+		snapshot.put(p50Name, h.getPercentileMicros(0.5));
+		snapshot.put(p99Name, h.getPercentileMicros(0.99));
+	}
+}
@@ -0,0 +1,74 @@
+package com.oohlalog.logging;
+
+
+/**
+ * What an OohLaLogHandler did with the logs published to it, as seen over JMX.  Each handler registers
+ * one under com.oohlalog.logging:type=OohLaLogHandler,name=handler-N.
+ */
+public interface PipelineMetricsMXBean {
+	/** Logs passed to publish() */
+	long getPublished();
+
+	/** Logs dropped by the level of the handler or their logger, by dropMessages or by the Filter of the handler, or published after it was closed */
+	long getDroppedFiltered();
+
+	/** Logs dropped for being over a rate limit */
+	long getDroppedRateLimited();
+
+	/** Logs dropped by sampling */
+	long getDroppedSampledOut();
+
+	/** Logs dropped because the buffer was full and there was no journal */
+	long getDroppedBufferFull();
+
+	/** Logs lost because the journal was full or could not be written, or because they were pushed out of the buffer faster than they could be journaled */
+	long getDroppedJournalFull();
+
+	/** Logs dropped because the server refused their payload with a 4xx status other than 408 or 429, from the buffer or the journal */
+	long getDroppedRejected();
+
+	/** Estimated size in bytes of the logs dropped because the buffer was full */
+	long getDroppedBufferFullBytes();
+
+	/** Logs delivered to OohLaLog */
+	long getSent();
+
+	/** Logs in payloads that failed and were given up or moved to the journal, other than rejected ones, counted once however many times they were tried */
+	long getFailed();
+
+	/** Bytes of log payloads sent, after compression, including failed attempts */
+	long getBytesSent();
+
+	/** Errors thrown while deciding whether to flush or send stats; the details are printed in debug mode */
+	long getDispatchErrors();
+
+	/** Logs waiting in the buffer, including an undelivered batch */
+	int getBufferDepth();
+
+	/** Estimated size in bytes of the logs waiting in the buffer, including an undelivered batch */
+	long getBufferBytes();
+
+	/** Payloads being sent right now */
+	int getInFlightBatches();
+
+	/** Number of logs in the buffer that starts a flush, which changes if a latencyTarget is set */
+	int getThreshold();
+
+	/** Longest time in milliseconds a log waits before a flush, which changes if a latencyTarget is set */
+	long getTimeBuffer();
+
+	/** Time taken to encode and compress a payload */
+	LatencyStats getSerializeLatency();
+
+	/** Time taken to get a connection, including opening one */
+	LatencyStats getConnectLatency();
+
+	/** Time taken to write a request */
+	LatencyStats getWriteLatency();
+
+	/** Time from the end of a request to the end of its response */
+	LatencyStats getResponseLatency();
+
+	/** Time from the creation of a log to its delivery */
+	LatencyStats getCreateToAckLatency();
+}
@@ -0,0 +1,483 @@
+package com.oohlalog.logging;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+
+
+/**
+ * HTTP/1.1 transport that keeps a small pool of persistent sockets to the endpoint.  A request borrows
+ * the most recently used idle connection, or opens a new one if none is idle, and returns it once the
+ * response has been read completely.  Connections that have been idle for longer than the idle
+ * timeout are closed by a shared daemon thread.  Once the transport is closed, connections are closed
+ * instead of being returned to the pool.
+ *
+ * Connections are opened the way HttpURLConnection opens them: through the proxies the default
+ * ProxySelector chooses, which follows the http.proxyHost, https.proxyHost and socksProxyHost settings,
+ * trying the next proxy when one cannot be reached.  https goes through an HTTP proxy in a CONNECT
+ * tunnel, and uses the default SSLSocketFactory and HostnameVerifier of HttpsURLConnection; as there,
+ * the HostnameVerifier is only asked about a certificate that does not match the host.
+ */
+class PooledHttpTransport extends HttpTransport {
+	// Closes idle connections of all pooled transports
+	private static final ScheduledThreadPoolExecutor reaper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "oohlalog-idle-connections");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	static {
+		// The tasks of closed transports are removed at once instead of waiting for their next run
+		reaper.setRemoveOnCancelPolicy(true);
+	}
+
+	// Limits on what is read of a response, beyond which the response is malformed and the connection is
+	// closed, so a broken server or middlebox cannot make the flushing thread read without end
+	private static final int MAX_LINE = 8192;
+	private static final int MAX_HEADERS = 100;
+	private static final int MAX_INTERIM_RESPONSES = 16;
+	private static final long MAX_BODY = 1024 * 1024;
+
+	private final boolean secure;
+	private final String host;
+	private final int port;
+	private final String hostHeader;
+	private final long idleTimeout;
+
+	// The endpoint as the ProxySelector is asked about it
+	private final URI uri;
+
+	// Limits the number of connections open at the same time
+	private final Semaphore permits;
+
+	// Connections waiting for the next request, most recently used first
+	private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<Connection>();
+
+	// The task closing idle connections of this transport, and whether the transport was closed
+	private final ScheduledFuture<?> reaping;
+	private volatile boolean closed = false;
+
+
+	/**
+	 * Constructor that creates a pool for one endpoint.
+	 *
+	 * @param secure whether to use https
+	 * @param host the host to connect to
+	 * @param port the port to connect to
+	 * @param maxConnections the maximum number of connections open at the same time
+	 * @param idleTimeout the time in milliseconds after which an unused connection is closed
+	 */
+	PooledHttpTransport(boolean secure, String host, int port, int maxConnections, long idleTimeout) {
+		this.secure = secure;
+		this.host = host;
+		this.port = port;
+		this.hostHeader = (port == (secure ? 443 : 80)) ? host : host + ":" + port;
+		this.idleTimeout = idleTimeout;
+		this.uri = URI.create((secure ? "https" : "http") + "://" + hostHeader + "/");
+		this.permits = new Semaphore(maxConnections);
+		long period = Math.max(idleTimeout / 2, 100);
+		this.reaping = reaper.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				closeIdleConnections();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+
+	@Override
+	Response post(String path, String contentEncoding, byte[] body, int len) throws IOException {
+		long start = System.nanoTime();
+		try {
+			permits.acquire();
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a connection");
+		}
+		try {
+			Connection con = borrowIdle();
+			if (con != null) {
+				try {
+					return exchange(con, path, contentEncoding, body, len, start);
+				}
+				catch (IOException e) {
+					// The server may have closed the connection while it was idle.  Nothing of the
+					// response was read, so it is safe to send the request again on a new connection.
+					if (con.responseStarted) throw e;
+				}
+			}
+			return exchange(open(), path, contentEncoding, body, len, start);
+		}
+		finally {
+			permits.release();
+		}
+	}
+
+
+	/**
+	 * Sends a request on a connection and reads the response.  The connection is returned to the pool
+	 * if the server allows it to be reused, and closed otherwise.
+	 *
+	 * @param start when post() was called, in System.nanoTime() units
+	 */
+	private Response exchange(Connection con, String path, String contentEncoding, byte[] body, int len, long start) throws IOException {
+		boolean keepAlive = false;
+		long connected = System.nanoTime();
+		try {
+			OutputStream out = con.out;
+			// An HTTP proxy is given the whole URL of a plain http request
+			String target = con.viaProxy ? "http://" + hostHeader + path : path;
+			writeAscii(out, "POST " + target + " HTTP/1.1\r\n"
+					+ "Host: " + hostHeader + "\r\n"
+					+ "Content-Type: application/json\r\n"
+					+ ((contentEncoding != null) ? "Content-Encoding: " + contentEncoding + "\r\n" : "")
+					+ "Content-Length: " + len + "\r\n"
+					+ "Connection: keep-alive\r\n\r\n");
+			out.write(body, 0, len);
+			out.flush();
+			long written = System.nanoTime();
+
+			InputStream in = con.in;
+			String statusLine;
+			Map<String, String> headers;
+			int status;
+			int interim = 0;
+			do {
+				if (++interim > MAX_INTERIM_RESPONSES) throw new IOException("Too many interim responses");
+				statusLine = readLine(in);
+				con.responseStarted = true;
+				status = parseStatus(statusLine);
+				headers = readHeaders(in);
+			} while (status / 100 == 1);
+
+			String connection = headers.get("connection");
+			keepAlive = statusLine.startsWith("HTTP/1.1")
+					? !"close".equalsIgnoreCase(connection)
+					: "keep-alive".equalsIgnoreCase(connection);
+
+			ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+			String transferEncoding = headers.get("transfer-encoding");
+			String contentLength = headers.get("content-length");
+			if (status == 204 || status == 304) {
+				// No body
+			}
+			else if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+				readChunked(in, responseBody);
+			}
+			else if (contentLength != null) {
+				readFully(in, responseBody, Long.parseLong(contentLength.trim()));
+			}
+			else {
+				readToEnd(in, responseBody);
+				keepAlive = false;
+			}
+			return new Response(status, headers, new String(responseBody.toByteArray(), PayloadEncoder.UTF_8))
+					.timed(connected - start, written - connected, System.nanoTime() - written);
+		}
+		catch (RuntimeException e) {
+			throw new IOException("Malformed response from " + hostHeader, e);
+		}
+		finally {
+			if (keepAlive) release(con);
+			else con.close();
+		}
+	}
+
+
+	private Connection borrowIdle() {
+		Connection con;
+		while ((con = idle.pollFirst()) != null) {
+			if (System.currentTimeMillis() - con.lastUsed < idleTimeout && !con.socket.isClosed()) {
+				con.responseStarted = false;
+				return con;
+			}
+			con.close();
+		}
+		return null;
+	}
+
+
+	private void release(Connection con) {
+		con.lastUsed = System.currentTimeMillis();
+		idle.offerFirst(con);
+		// Checked after offering, so a connection is not left behind by a close() running meanwhile
+		if (closed && idle.removeFirstOccurrence(con)) con.close();
+	}
+
+
+	/**
+	 * Stops closing idle connections on the shared thread and closes every idle connection.
+	 * Connections in use are closed when their request is done.
+	 */
+	@Override
+	void close() {
+		closed = true;
+		reaping.cancel(false);
+		Connection con;
+		while ((con = idle.pollFirst()) != null) {
+			con.close();
+		}
+	}
+
+
+	/**
+	 * Closes the connections that have not been used for longer than the idle timeout.
+	 */
+	void closeIdleConnections() {
+		long now = System.currentTimeMillis();
+		Iterator<Connection> it = idle.descendingIterator();
+		while (it.hasNext()) {
+			Connection con = it.next();
+			if (now - con.lastUsed >= idleTimeout && idle.removeFirstOccurrence(con)) {
+				con.close();
+			}
+		}
+	}
+
+
+	/**
+	 * Opens a connection through the first of the proxies chosen by the default ProxySelector that can
+	 * be reached, telling the selector about those that could not.
+	 */
+	private Connection open() throws IOException {
+		ProxySelector selector = ProxySelector.getDefault();
+		List<Proxy> proxies = (selector != null) ? selector.select(uri) : null;
+		if (proxies == null || proxies.isEmpty()) proxies = Collections.singletonList(Proxy.NO_PROXY);
+		IOException failure = null;
+		for (Proxy proxy : proxies) {
+			try {
+				return open(proxy);
+			}
+			catch (IOException e) {
+				if (selector != null && proxy.type() != Proxy.Type.DIRECT) selector.connectFailed(uri, proxy.address(), e);
+				failure = e;
+			}
+		}
+		throw failure;
+	}
+
+
+	private Connection open(Proxy proxy) throws IOException {
+		try {
+			return connect(proxy, null);
+		}
+		catch (SSLHandshakeException e) {
+			// The certificate may only not match the host, which a HostnameVerifier set by the
+			// application may accept
+			HostnameVerifier verifier = HttpsURLConnection.getDefaultHostnameVerifier();
+			if (verifier.getClass().getEnclosingClass() == HttpsURLConnection.class) throw e;
+			return connect(proxy, verifier);
+		}
+	}
+
+
+	/**
+	 * Connects to the endpoint through a proxy, and makes the TLS handshake if the transport is secure.
+	 *
+	 * @param verifier null to check that the certificate matches the host during the handshake, or the
+	 *        HostnameVerifier that decides after it
+	 */
+	private Connection connect(Proxy proxy, HostnameVerifier verifier) throws IOException {
+		Proxy.Type type = proxy.type();
+		Socket socket = (type == Proxy.Type.SOCKS) ? new Socket(proxy) : new Socket();
+		try {
+			InetSocketAddress address;
+			if (type == Proxy.Type.HTTP) {
+				InetSocketAddress proxyAddress = (InetSocketAddress)proxy.address();
+				address = new InetSocketAddress(proxyAddress.getHostString(), proxyAddress.getPort());
+			}
+			else if (type == Proxy.Type.SOCKS) {
+				// Resolved by the proxy
+				address = InetSocketAddress.createUnresolved(host, port);
+			}
+			else {
+				address = new InetSocketAddress(host, port);
+			}
+			socket.connect(address, CONNECT_TIMEOUT);
+			socket.setSoTimeout(READ_TIMEOUT);
+			socket.setTcpNoDelay(true);
+			if (!secure) return new Connection(socket, type == Proxy.Type.HTTP);
+
+			if (type == Proxy.Type.HTTP) tunnel(socket);
+			SSLSocket ssl = (SSLSocket)HttpsURLConnection.getDefaultSSLSocketFactory().createSocket(socket, host, port, true);
+			socket = ssl;
+			if (verifier == null) {
+				SSLParameters params = ssl.getSSLParameters();
+				params.setEndpointIdentificationAlgorithm("HTTPS");
+				ssl.setSSLParameters(params);
+			}
+			ssl.startHandshake();
+			if (verifier != null && !verifier.verify(host, ssl.getSession()))
+				throw new SSLPeerUnverifiedException("Certificate of " + host + " rejected by HostnameVerifier");
+			return new Connection(socket, false);
+		}
+		catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		catch (RuntimeException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+
+	/**
+	 * Asks an HTTP proxy for a tunnel to the endpoint.  Read without buffering, so nothing sent after
+	 * the proxy's answer is taken from the stream.
+	 */
+	private void tunnel(Socket socket) throws IOException {
+		String authority = host + ":" + port;
+		OutputStream out = socket.getOutputStream();
+		writeAscii(out, "CONNECT " + authority + " HTTP/1.1\r\nHost: " + authority + "\r\n\r\n");
+		out.flush();
+		InputStream in = socket.getInputStream();
+		String statusLine = readLine(in);
+		int status = parseStatus(statusLine);
+		readHeaders(in);
+		if (status / 100 != 2) throw new IOException("Proxy refused a tunnel to " + authority + ": " + statusLine);
+	}
+
+
+	private static int parseStatus(String statusLine) throws IOException {
+		int sp = statusLine.indexOf(' ');
+		if (!statusLine.startsWith("HTTP/") || sp < 0 || statusLine.length() < sp + 4)
+			throw new IOException("Malformed status line: " + statusLine);
+		return Integer.parseInt(statusLine.substring(sp + 1, sp + 4));
+	}
+
+
+	private static Map<String, String> readHeaders(InputStream in) throws IOException {
+		Map<String, String> headers = new HashMap<String, String>();
+		String line;
+		int n = 0;
+		while ((line = readLine(in)).length() > 0) {
+			if (++n > MAX_HEADERS) throw new IOException("Too many response headers");
+			int colon = line.indexOf(':');
+			if (colon > 0) headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+		}
+		return headers;
+	}
+
+
+	private static void readChunked(InputStream in, OutputStream out) throws IOException {
+		long total = 0;
+		for (;;) {
+			String line = readLine(in);
+			int semi = line.indexOf(';');
+			long size = Long.parseLong((semi >= 0 ? line.substring(0, semi) : line).trim(), 16);
+			if (size == 0) break;
+			total += size;
+			if (size < 0 || total > MAX_BODY) throw new IOException("Response body too large");
+			readFully(in, out, size);
+			readLine(in);
+		}
+		// Trailers
+		readHeaders(in);
+	}
+
+
+	private static void readFully(InputStream in, OutputStream out, long len) throws IOException {
+		if (len < 0 || len > MAX_BODY) throw new IOException("Response body too large: " + len);
+		byte[] buf = new byte[(int)Math.min(len, 8192)];
+		while (len > 0) {
+			int n = in.read(buf, 0, (int)Math.min(len, buf.length));
+			if (n < 0) throw new EOFException("Response body ended early");
+			out.write(buf, 0, n);
+			len -= n;
+		}
+	}
+
+
+	private static void readToEnd(InputStream in, OutputStream out) throws IOException {
+		byte[] buf = new byte[8192];
+		long total = 0;
+		int n;
+		while ((n = in.read(buf)) >= 0) {
+			total += n;
+			if (total > MAX_BODY) throw new IOException("Response body too large");
+			out.write(buf, 0, n);
+		}
+	}
+
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c < 0) throw new EOFException("Connection closed by server");
+			if (c != '\r') sb.append((char)c);
+			if (sb.length() > MAX_LINE) throw new IOException("Response line too long");
+		}
+		return sb.toString();
+	}
+
+
+	private static void writeAscii(OutputStream out, String s) throws IOException {
+		int len = s.length();
+		for (int i = 0; i < len; i++) {
+			out.write(s.charAt(i));
+		}
+	}
+
+
+	/**
+	 * A socket with its buffered streams.
+	 */
+	private static class Connection {
+		final Socket socket;
+		final InputStream in;
+		final OutputStream out;
+		// Whether requests go to an HTTP proxy, which is sent the whole URL
+		final boolean viaProxy;
+		volatile long lastUsed;
+		// Whether any of the current response has been read
+		boolean responseStarted;
+
+		Connection(Socket socket, boolean viaProxy) throws IOException {
+			this.socket = socket;
+			this.viaProxy = viaProxy;
+			this.in = new BufferedInputStream(socket.getInputStream());
+			this.out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+			this.lastUsed = System.currentTimeMillis();
+		}
+
+		void close() {
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+				// swallow
+			}
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package com.oohlalog.logging;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+
+/**
+ * Rate limits and samples logs before they are buffered.  Rules are keyed by a selector:
+ *
+ *   logger:NAME	logs of the logger NAME and its child loggers
+ *   class:NAME	logs from the class NAME, or from the classes of the package NAME
+ *   level:LEVEL	logs of the OohLaLog level LEVEL, or of the java.util.logging levels translated to it
+ *   *			all logs
+ *
+ * A rule may have a rate limit, in logs per second with a burst of one second's worth, and a sample
+ * rate, the probability that a log is kept.  A log is kept only if every rule it matches keeps it.
+ * The sample rates are tried first, so a log sampled out takes no token; then a token is taken from
+ * the rate limit of each rule, and if one of them has none left the tokens already taken are given
+ * back.  Each rule counts the logs kept, the logs it dropped for being over its rate limit and the logs
+ * it sampled out.
+ *
+ * The rules are an immutable array replaced as a whole when they change, so publishing threads read
+ * them without locking.  Rules for source classes make java.util.logging find the source of every log
+ * by walking the stack, unless the log was made with logp().
+ */
+class RateLimiter {
+	static final String LOGGER = "logger:";
+	static final String CLASS = "class:";
+	static final String LEVEL = "level:";
+	static final String ALL = "*";
+
+	// The rules, replaced as a whole while holding this
+	private volatile Rule[] rules = new Rule[0];
+
+	// Logs dropped by all rules, including rules removed since
+	private final LongAdder rateLimited = new LongAdder();
+	private final LongAdder sampledOut = new LongAdder();
+
+
+	/**
+	 * Decides whether a log is kept.
+	 *
+	 * @param lr the log
+	 * @param level the OohLaLog level of the log, or null to use the level of the log
+	 * @return false if the log is dropped
+	 */
+	boolean accept(LogRecord lr, Level level) {
+		Rule[] rules = this.rules;
+		if (rules.length == 0) return true;
+		for (Rule rule : rules) {
+			if (rule.matches(lr, level) && !rule.sample()) {
+				sampledOut.increment();
+				return false;
+			}
+		}
+		for (int i = 0; i < rules.length; i++) {
+			if (rules[i].bucket != null && rules[i].matches(lr, level) && !rules[i].tryAcquire()) {
+				for (int j = 0; j < i; j++) {
+					if (rules[j].bucket != null && rules[j].matches(lr, level)) rules[j].release();
+				}
+				rateLimited.increment();
+				return false;
+			}
+		}
+		for (Rule rule : rules) {
+			if (rule.matches(lr, level)) rule.accepted.increment();
+		}
+		return true;
+	}
+
+
+	/**
+	 * Returns the number of logs dropped for being over a rate limit.
+	 */
+	long getRateLimited() {
+		return rateLimited.sum();
+	}
+
+
+	/**
+	 * Returns the number of logs dropped by sampling.
+	 */
+	long getSampledOut() {
+		return sampledOut.sum();
+	}
+
+
+	/**
+	 * Sets the rate limit of a rule, creating the rule if needed.
+	 *
+	 * @param selector the selector of the rule
+	 * @param perSecond the number of logs kept per second, or 0 or less for no limit
+	 * @throws IllegalArgumentException if the selector is not valid
+	 */
+	synchronized void setRateLimit(String selector, double perSecond) {
+		Rule rule = rule(selector);
+		rule.bucket = (perSecond > 0) ? new TokenBucket(perSecond, (int)Math.max(1, Math.ceil(perSecond))) : null;
+		rule.perSecond = Math.max(0, perSecond);
+		prune();
+	}
+
+
+	/**
+	 * Sets the sample rate of a rule, creating the rule if needed.
+	 *
+	 * @param selector the selector of the rule
+	 * @param probability the probability that a log is kept, 1 or more to keep every log
+	 * @throws IllegalArgumentException if the selector is not valid
+	 */
+	synchronized void setSampleRate(String selector, double probability) {
+		Rule rule = rule(selector);
+		rule.sampleRate = Math.max(0, Math.min(1, probability));
+		prune();
+	}
+
+
+	/**
+	 * Adds the counters of every rule to a stats snapshot, as rateLimit.SELECTOR.accepted, .rateLimited
+	 * and .sampledOut.
+	 *
+	 * @param snapshot the snapshot to add to
+	 */
+	void addStats(StatsSnapshot snapshot) {
+		for (Rule rule : rules) {
+			snapshot.put(rule.acceptedName, rule.accepted.sum());
+			snapshot.put(rule.rateLimitedName, rule.rateLimited.sum());
+			snapshot.put(rule.sampledOutName, rule.sampledOut.sum());
+		}
+	}
+
+
+	/**
+	 * Returns the rule for a selector, adding a rule without limits if there is none.
+	 */
+	private Rule rule(String selector) {
+		for (Rule rule : rules) {
+			if (rule.selector.equals(selector)) return rule;
+		}
+		Rule rule = new Rule(selector);
+		Rule[] grown = new Rule[rules.length + 1];
+		System.arraycopy(rules, 0, grown, 0, rules.length);
+		grown[rules.length] = rule;
+		rules = grown;
+		return rule;
+	}
+
+
+	/**
+	 * Removes the rules that no longer limit anything.
+	 */
+	private void prune() {
+		int n = 0;
+		for (Rule rule : rules) {
+			if (rule.bucket != null || rule.sampleRate < 1) n++;
+		}
+		if (n == rules.length) return;
+		Rule[] pruned = new Rule[n];
+		n = 0;
+		for (Rule rule : rules) {
+			if (rule.bucket != null || rule.sampleRate < 1) pruned[n++] = rule;
+		}
+		rules = pruned;
+	}
+
+
+	/**
+	 * Returns whether a dotted name is the given name or lies below it.
+	 */
+	private static boolean isWithin(String name, String prefix) {
+		return name != null && name.startsWith(prefix)
+				&& (name.length() == prefix.length() || name.charAt(prefix.length()) == '.');
+	}
+
+
+	/**
+	 * A selector with its limits and counters.
+	 */
+	private static class Rule {
+		final String selector;
+		final String name;
+		final int priority;
+
+		volatile TokenBucket bucket;
+		volatile double perSecond = 0;
+		volatile double sampleRate = 1;
+
+		final LongAdder accepted = new LongAdder();
+		final LongAdder rateLimited = new LongAdder();
+		final LongAdder sampledOut = new LongAdder();
+
+		// Names of the counters in the stats
+		final String acceptedName;
+		final String rateLimitedName;
+		final String sampledOutName;
+
+		Rule(String selector) {
+			this.selector = selector;
+			this.acceptedName = "rateLimit." + selector + ".accepted";
+			this.rateLimitedName = "rateLimit." + selector + ".rateLimited";
+			this.sampledOutName = "rateLimit." + selector + ".sampledOut";
+			if (selector.startsWith(LOGGER)) {
+				name = selector.substring(LOGGER.length());
+				priority = -1;
+			}
+			else if (selector.startsWith(CLASS)) {
+				name = selector.substring(CLASS.length());
+				priority = -1;
+			}
+			else if (selector.startsWith(LEVEL)) {
+				name = null;
+				priority = priority(selector.substring(LEVEL.length()));
+			}
+			else if (selector.equals(ALL)) {
+				name = null;
+				priority = -1;
+			}
+			else {
+				throw new IllegalArgumentException("Unknown selector: " + selector);
+			}
+			if (name != null && name.length() == 0) throw new IllegalArgumentException("Empty name in selector: " + selector);
+		}
+
+		private static int priority(String levelName) {
+			for (Level level : LogRecordBuffer.getPriorityLevels()) {
+				if (level.getName().equalsIgnoreCase(levelName)) return LogRecordBuffer.priority(level);
+			}
+			throw new IllegalArgumentException("Unknown level: " + levelName);
+		}
+
+		boolean matches(LogRecord lr, Level level) {
+			if (selector.startsWith(LOGGER)) return isWithin(lr.getLoggerName(), name);
+			if (selector.startsWith(CLASS)) return isWithin(lr.getSourceClassName(), name);
+			if (priority >= 0) return LogRecordBuffer.priority((level != null) ? level : lr.getLevel()) == priority;
+			return true;
+		}
+
+		boolean sample() {
+			double sample = sampleRate;
+			if (sample < 1 && ThreadLocalRandom.current().nextDouble() >= sample) {
+				sampledOut.increment();
+				return false;
+			}
+			return true;
+		}
+
+		boolean tryAcquire() {
+			TokenBucket b = bucket;
+			if (b != null && !b.tryAcquire()) {
+				rateLimited.increment();
+				return false;
+			}
+			return true;
+		}
+
+		void release() {
+			TokenBucket b = bucket;
+			if (b != null) b.release();
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package com.oohlalog.logging;
+
+import java.time.Instant;
+import java.util.logging.LogRecord;
+
+
+/**
+ * A log standing for a number of identical logs collapsed by a LogAggregator.  It is a copy of the
+ * first of them, with its timestamp, and also carries how many there were and the timestamp of the last.
+ */
+@SuppressWarnings("serial")
+class RepeatedLogRecord extends LogRecord {
+	private final int count;
+	private final long lastMillis;
+
+
+	/**
+	 * Constructor that creates the log for a number of repeated logs.
+	 *
+	 * @param first the first of the repeated logs
+	 * @param count the number of repeated logs
+	 * @param firstMillis the earliest timestamp of the repeated logs
+	 * @param lastMillis the latest timestamp of the repeated logs
+	 */
+	RepeatedLogRecord(LogRecord first, int count, long firstMillis, long lastMillis) {
+		super(first.getLevel(), first.getMessage());
+		setLoggerName(first.getLoggerName());
+		setParameters(first.getParameters());
+		setResourceBundle(first.getResourceBundle());
+		setResourceBundleName(first.getResourceBundleName());
+		setSourceClassName(first.getSourceClassName());
+		setSourceMethodName(first.getSourceMethodName());
+		setThrown(first.getThrown());
+		setInstant(Instant.ofEpochMilli(firstMillis));
+		this.count = count;
+		this.lastMillis = lastMillis;
+	}
+
+
+	/**
+	 * Returns the number of logs this log stands for.
+	 */
+	int getCount() {
+		return count;
+	}
+
+
+	/**
+	 * Returns the timestamp of the last of the repeated logs.
+	 */
+	long getLastMillis() {
+		return lastMillis;
+	}
+}
@@ -0,0 +1,186 @@
+package com.oohlalog.logging;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * Decides when uploads to the OohLaLog server may be attempted after failures.  Each consecutive
+ * failure doubles the wait, up to a maximum, and the wait is jittered so that many handlers that failed
+ * at the same time do not retry at the same time.  A Retry-After header sent with a 429 or 503 response
+ * is honored.
+ *
+ * The policy is also a circuit breaker.  After a number of consecutive failures the circuit opens and
+ * no uploads, and so no serialization, are attempted until the wait is over.  The circuit is then half
+ * open: the next upload is a small probe, and the circuit closes again when it succeeds or opens again
+ * with a longer wait when it fails.
+ */
+public class RetryPolicy {
+	/**
+	 * The states of the circuit breaker.
+	 */
+	public enum State {
+		/** Uploads are attempted normally. */
+		CLOSED,
+		/** The server is considered down and no uploads are attempted. */
+		OPEN,
+		/** The wait is over and the next upload is a probe. */
+		HALF_OPEN
+	}
+
+	// Default settings
+	static final long DEFAULT_BASE_DELAY = 2000;
+	static final long DEFAULT_MAX_DELAY = 60000;
+	static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+	// Retry-After values beyond this are not honored in full
+	private static final long MAX_RETRY_AFTER = 10 * 60 * 1000;
+
+	private final long baseDelay;
+	private final long maxDelay;
+	private final int failureThreshold;
+
+	private int consecutiveFailures = 0;
+	private boolean open = false;
+	private long nextAttemptTime = 0;
+	private long lastFailureTime = 0;
+	private int lastStatus = 0;
+
+
+	/**
+	 * Constructor that creates a retry policy.
+	 *
+	 * @param baseDelay the wait after the first failure, in milliseconds
+	 * @param maxDelay the maximum wait between attempts, in milliseconds
+	 * @param failureThreshold the number of consecutive failures that opens the circuit
+	 */
+	RetryPolicy(long baseDelay, long maxDelay, int failureThreshold) {
+		this.baseDelay = baseDelay;
+		this.maxDelay = Math.max(baseDelay, maxDelay);
+		this.failureThreshold = failureThreshold;
+	}
+
+
+	/**
+	 * Records a successful upload, which resets the wait and closes the circuit.
+	 *
+	 * @param status the HTTP status of the response
+	 */
+	synchronized void onSuccess(int status) {
+		consecutiveFailures = 0;
+		open = false;
+		nextAttemptTime = 0;
+		lastStatus = status;
+	}
+
+
+	/**
+	 * Records a failed upload and computes when the next attempt may be made.
+	 *
+	 * @param status the HTTP status of the response, or -1 if there was no response
+	 * @param retryAfter the Retry-After header of the response, may be null
+	 */
+	synchronized void onFailure(int status, String retryAfter) {
+		long now = System.currentTimeMillis();
+		consecutiveFailures++;
+		lastFailureTime = now;
+		lastStatus = status;
+
+		// Equal jitter: half of the exponential delay is fixed, the other half random
+		// The shift is capped below the highest bit of baseDelay, so the delay saturates instead of overflowing
+		int exponent = Math.min(consecutiveFailures - 1, Long.numberOfLeadingZeros(baseDelay) - 1);
+		long delay = Math.min(maxDelay, baseDelay << exponent);
+		delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+
+		if ((status == 429 || status == 503) && retryAfter != null) {
+			delay = Math.max(delay, Math.min(parseRetryAfter(retryAfter, now), MAX_RETRY_AFTER));
+		}
+		nextAttemptTime = now + delay;
+		if (consecutiveFailures >= failureThreshold) open = true;
+	}
+
+
+	/**
+	 * Returns the number of milliseconds to wait before the next upload may be attempted.
+	 *
+	 * @return the wait, or 0 if an upload may be attempted now
+	 */
+	synchronized long millisUntilNextAttempt() {
+		return Math.max(0, nextAttemptTime - System.currentTimeMillis());
+	}
+
+
+	/**
+	 * Returns the state of the circuit breaker.
+	 *
+	 * @return CLOSED, OPEN or HALF_OPEN
+	 */
+	public synchronized State getState() {
+		if (!open) return State.CLOSED;
+		return (System.currentTimeMillis() < nextAttemptTime) ? State.OPEN : State.HALF_OPEN;
+	}
+
+
+	/**
+	 * Returns the number of uploads that failed since the last successful one.
+	 */
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+
+	/**
+	 * Returns the time, in milliseconds since the epoch, before which no upload will be attempted.
+	 * Zero if uploads are not being held back.
+	 */
+	public synchronized long getNextAttemptTime() {
+		return nextAttemptTime;
+	}
+
+
+	/**
+	 * Returns the time, in milliseconds since the epoch, of the last failed upload.  Zero if none failed.
+	 */
+	public synchronized long getLastFailureTime() {
+		return lastFailureTime;
+	}
+
+
+	/**
+	 * Returns the HTTP status of the last upload, -1 if it got no response, 0 if there was none yet.
+	 */
+	public synchronized int getLastStatus() {
+		return lastStatus;
+	}
+
+
+	@Override
+	public synchronized String toString() {
+		return "RetryPolicy{state=" + getState() + ", consecutiveFailures=" + consecutiveFailures
+				+ ", nextAttemptTime=" + nextAttemptTime + ", lastStatus=" + lastStatus + "}";
+	}
+
+
+	/**
+	 * Parses a Retry-After header, either a number of seconds or an HTTP date.
+	 *
+	 * @return the wait in milliseconds, 0 if the header cannot be parsed
+	 */
+	static long parseRetryAfter(String retryAfter, long now) {
+		String value = retryAfter.trim();
+		try {
+			return Math.max(0, Long.parseLong(value) * 1000);
+		}
+		catch (NumberFormatException e) {
+			// Not a number of seconds, so it should be a date
+		}
+		try {
+			long when = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+			return Math.max(0, when - now);
+		}
+		catch (RuntimeException e) {
+			return 0;
+		}
+	}
+}
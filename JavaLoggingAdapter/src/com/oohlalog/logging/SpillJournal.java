@@ -0,0 +1,378 @@
+package com.oohlalog.logging;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+
+/**
+ * On-disk journal for logs that could not be kept in memory: logs pushed out of a full buffer and
+ * batches that failed to upload.  Logs are appended, already encoded as JSON, to memory-mapped segment
+ * files and replayed oldest first once the OohLaLog server can be reached again, including after the
+ * process restarts.
+ *
+ * A segment starts with a 16 byte header: a magic number, 4 unused bytes and the offset up to which the
+ * segment has been acknowledged.  Entries follow as a 4 byte length and the encoded log.  A length of
+ * zero marks the end of the written part.  Segments are deleted once all of their entries have been
+ * acknowledged, and the oldest segment is dropped when the journal would grow beyond its maximum size.
+ */
+class SpillJournal {
+	// Default settings
+	static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+	static final int DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+
+	private static final int MAGIC = 0x4f4c4c4a;
+	private static final int HEADER_BYTES = 16;
+	private static final int ACK_OFFSET = 8;
+	private static final String PREFIX = "oohlalog-";
+	private static final String SUFFIX = ".journal";
+
+	private final File dir;
+	private final int segmentBytes;
+	private final int maxSegments;
+	private final String agent;
+	private final boolean debug;
+
+	// Prevents two handlers from using the same directory
+	private final RandomAccessFile lockFile;
+	private final FileLock lock;
+
+	// All segments, oldest first.  The last one is written to.  Guarded by this.
+	private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+	private long nextSequence;
+
+	// The entries returned by the last readBatch(), to be acknowledged.  Only used by the flushing thread.
+	private Segment readSegment;
+	private int readEnd;
+
+	// Totals, guarded by this
+	private long appended = 0;
+	private long dropped = 0;
+
+
+	private SpillJournal(File dir, long maxBytes, int segmentBytes, String agent, boolean debug,
+			RandomAccessFile lockFile, FileLock lock) {
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+		this.maxSegments = (int)Math.max(2, maxBytes / segmentBytes);
+		this.agent = agent;
+		this.debug = debug;
+		this.lockFile = lockFile;
+		this.lock = lock;
+	}
+
+
+	/**
+	 * Opens the journal in a directory, recovering any segments left by an earlier run.
+	 *
+	 * @param dir the directory holding the segment files, created if missing
+	 * @param maxBytes the maximum total size of all segment files
+	 * @param segmentBytes the size of one segment file
+	 * @param agent the agent written into every log
+	 * @param debug whether to print debug output
+	 * @return the journal
+	 * @throws IOException if the directory cannot be used or is in use by another handler
+	 */
+	static SpillJournal open(File dir, long maxBytes, int segmentBytes, String agent, boolean debug) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create journal directory " + dir);
+		RandomAccessFile lockFile = new RandomAccessFile(new File(dir, PREFIX + "lock"), "rw");
+		FileLock lock;
+		try {
+			lock = lockFile.getChannel().tryLock();
+		}
+		catch (OverlappingFileLockException e) {
+			lock = null;
+		}
+		if (lock == null) {
+			lockFile.close();
+			throw new IOException("Journal directory " + dir + " is in use by another handler");
+		}
+		SpillJournal journal = new SpillJournal(dir, maxBytes, segmentBytes, agent, debug, lockFile, lock);
+		journal.recover();
+		return journal;
+	}
+
+
+	private synchronized void recover() throws IOException {
+		File[] files = dir.listFiles(new FileFilter() {
+			public boolean accept(File f) {
+				return f.getName().startsWith(PREFIX) && f.getName().endsWith(SUFFIX);
+			}
+		});
+		Arrays.sort(files);
+		for (File f : files) {
+			long sequence;
+			try {
+				sequence = Long.parseLong(f.getName().substring(PREFIX.length(), f.getName().length() - SUFFIX.length()));
+			}
+			catch (NumberFormatException e) {
+				continue;
+			}
+			Segment seg = Segment.map(f, (int)Math.min(f.length(), Integer.MAX_VALUE));
+			if (seg == null || seg.buf.getInt(0) != MAGIC) {
+				f.delete();
+				continue;
+			}
+			// Find the end of the written part
+			int pos = HEADER_BYTES;
+			while (pos + 4 <= seg.size) {
+				int len = seg.buf.getInt(pos);
+				if (len <= 0 || pos + 4 + len > seg.size) break;
+				pos += 4 + len;
+			}
+			seg.writePos = pos;
+			seg.ackPos = (int)Math.min(Math.max(seg.buf.getLong(ACK_OFFSET), HEADER_BYTES), pos);
+			seg.sealed = true;
+			segments.addLast(seg);
+			nextSequence = sequence + 1;
+		}
+		deleteAcknowledgedSegments();
+		if (!segments.isEmpty() && segments.peekLast().size == segmentBytes) {
+			segments.peekLast().sealed = false;
+		}
+		else {
+			addSegment();
+		}
+		if (debug && hasEntries()) System.out.println( ">>>Recovered journal in " + dir );
+	}
+
+
+	/**
+	 * Appends a log to the journal.  The log is encoded before the journal's lock is taken, and only
+	 * copied into the current segment while holding it.
+	 *
+	 * @param lr the log to append
+	 * @param level the OohLaLog level the log was published with, or null to encode it as it is
+	 * @param encoder the encoder to encode the log with, which is used by one thread at a time
+	 */
+	void append(LogRecord lr, Level level, PayloadEncoder encoder) {
+		encoder.encodeLog(lr, level, agent);
+		append(encoder.getBuffer(), encoder.size());
+	}
+
+
+	private synchronized void append(byte[] entry, int len) {
+		if (4 + len > segmentBytes - HEADER_BYTES) {
+			dropped++;
+			return;
+		}
+		try {
+			Segment seg = segments.peekLast();
+			if (seg.writePos + 4 + len > seg.size) {
+				roll();
+				seg = segments.peekLast();
+			}
+			// The log is written before its length, so a crash can never leave a length that points
+			// at bytes that were not written
+			int pos = seg.writePos;
+			seg.writer.position(pos + 4);
+			seg.writer.put(entry, 0, len);
+			seg.buf.putInt(pos, len);
+			seg.writePos = pos + 4 + len;
+			appended++;
+		}
+		catch (IOException e) {
+			dropped++;
+			if (debug) System.err.println( "Failed to append to journal: " + e.getMessage() );
+		}
+	}
+
+
+	/**
+	 * Seals the current segment and starts a new one, dropping the oldest segment if the journal
+	 * would otherwise grow beyond its maximum size.
+	 */
+	private void roll() throws IOException {
+		Segment last = segments.peekLast();
+		last.sealed = true;
+		last.buf.force();
+		while (segments.size() >= maxSegments) {
+			Segment oldest = segments.pollFirst();
+			dropped += oldest.countEntries(oldest.ackPos, oldest.writePos);
+			oldest.file.delete();
+			if (debug) System.out.println( ">>>Journal full, dropped " + oldest.file.getName() );
+		}
+		addSegment();
+	}
+
+
+	private void addSegment() throws IOException {
+		File f = new File(dir, PREFIX + String.format("%016d", nextSequence) + SUFFIX);
+		nextSequence++;
+		Segment seg = Segment.map(f, segmentBytes);
+		if (seg == null) throw new IOException("Cannot create journal segment " + f);
+		seg.buf.putInt(0, MAGIC);
+		seg.buf.putLong(ACK_OFFSET, HEADER_BYTES);
+		seg.writePos = HEADER_BYTES;
+		seg.ackPos = HEADER_BYTES;
+		segments.addLast(seg);
+	}
+
+
+	/**
+	 * Encodes a payload holding the oldest unacknowledged entries of the journal.  The entries are
+	 * copied outside of the journal's lock, so appending is not held up by reading.  They stay in the
+	 * journal until ack() is called.
+	 *
+	 * @param encoder the encoder to write the payload into
+	 * @param authToken the api key of the payload
+	 * @param maxEntries the maximum number of entries to read
+	 * @param maxBytes the size the entries may add up to, exceeded only by a single entry larger than it
+	 * @return the number of entries in the payload, 0 if the journal is empty
+	 */
+	int readBatch(PayloadEncoder encoder, String authToken, int maxEntries, int maxBytes) {
+		Segment seg;
+		int limit;
+		synchronized (this) {
+			deleteAcknowledgedSegments();
+			seg = segments.peekFirst();
+			limit = seg.writePos;
+		}
+		int pos = seg.ackPos;
+		if (pos >= limit) return 0;
+
+		ByteBuffer view = seg.buf.duplicate();
+		encoder.begin(null, authToken);
+		int n = 0;
+		long bytes = 0;
+		while (pos < limit && n < maxEntries) {
+			int len = view.getInt(pos);
+			if (n > 0 && bytes + len > maxBytes) break;
+			bytes += len;
+			view.position(pos + 4);
+			encoder.rawLog(view, len);
+			pos += 4 + len;
+			n++;
+		}
+		encoder.end();
+		readSegment = seg;
+		readEnd = pos;
+		return n;
+	}
+
+
+	/**
+	 * Acknowledges the entries returned by the last readBatch(), so they will not be replayed again.
+	 */
+	synchronized void ack() {
+		Segment seg = readSegment;
+		readSegment = null;
+		if (seg == null || !segments.contains(seg)) return;
+		seg.ackPos = readEnd;
+		seg.buf.putLong(ACK_OFFSET, readEnd);
+		deleteAcknowledgedSegments();
+	}
+
+
+	private void deleteAcknowledgedSegments() {
+		while (segments.size() > 1) {
+			Segment first = segments.peekFirst();
+			if (!first.sealed || first.ackPos < first.writePos) break;
+			segments.pollFirst();
+			first.file.delete();
+		}
+	}
+
+
+	/**
+	 * Returns whether the journal holds entries that have not been acknowledged.
+	 */
+	synchronized boolean hasEntries() {
+		for (Segment seg : segments) {
+			if (seg.ackPos < seg.writePos) return true;
+		}
+		return false;
+	}
+
+
+	/**
+	 * Returns the number of logs appended to the journal.
+	 */
+	synchronized long getAppended() {
+		return appended;
+	}
+
+
+	/**
+	 * Returns the number of logs lost because the journal was full or could not be written.
+	 */
+	synchronized long getDropped() {
+		return dropped;
+	}
+
+
+	/**
+	 * Writes all segments to disk and releases the journal directory.  Logs appended afterwards are still
+	 * written to the mapped segments, but are only guaranteed to reach the disk when the process exits.
+	 */
+	synchronized void close() {
+		for (Segment seg : segments) {
+			seg.buf.force();
+		}
+		try {
+			lock.release();
+			lockFile.close();
+		}
+		catch (IOException e) {
+			// swallow
+		}
+	}
+
+
+	/**
+	 * A mapped segment file.
+	 */
+	private static class Segment {
+		final File file;
+		final int size;
+		final MappedByteBuffer buf;
+		// Only used while holding the journal's lock
+		final ByteBuffer writer;
+		// End of the written part, guarded by the journal's lock
+		int writePos;
+		// End of the acknowledged part
+		volatile int ackPos;
+		// Whether the segment is complete and no longer written to, guarded by the journal's lock
+		boolean sealed;
+
+		private Segment(File file, int size, MappedByteBuffer buf) {
+			this.file = file;
+			this.size = size;
+			this.buf = buf;
+			this.writer = buf.duplicate();
+		}
+
+		static Segment map(File file, int size) throws IOException {
+			if (size < HEADER_BYTES) return null;
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				if (raf.length() < size) raf.setLength(size);
+				MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+				return new Segment(file, size, buf);
+			}
+			finally {
+				// The mapping stays valid after the file is closed
+				raf.close();
+			}
+		}
+
+		int countEntries(int from, int to) {
+			int n = 0;
+			while (from < to) {
+				from += 4 + buf.getInt(from);
+				n++;
+			}
+			return n;
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package com.oohlalog.logging;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Remembers which stack traces were sent recently, so a storm of the same error does not send the
+ * same trace over and over.  Every thrown exception is sent with a fingerprint, a hash of the class
+ * and frames of it and of each of its causes, leaving out their messages.  The full trace is sent the
+ * first time a fingerprint is seen within the window; until the window is over, later logs with the
+ * same fingerprint only carry the first line of the trace.
+ *
+ * Fingerprints are kept in a map ordered by last use that holds at most maxKeys of them, so the least
+ * recently seen one is forgotten first.  A fingerprint counts as sent once its payload is encoded; a
+ * payload that is never delivered is not taken back, so its trace is only sent again after the window.
+ */
+class StackTraceCache {
+	// Default time within which a trace is only sent once
+	static final long DEFAULT_WINDOW = 600000;
+
+	// Default maximum number of fingerprints remembered
+	static final int DEFAULT_MAX_KEYS = 1024;
+
+	// Default maximum number of frames sent and hashed for each exception of a trace
+	static final int DEFAULT_MAX_FRAMES = 64;
+
+	// Maximum number of causes followed
+	static final int MAX_CAUSES = 16;
+
+	// FNV-1a 64 bit
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final long window;
+	private final int maxFrames;
+
+	// When the full trace of each fingerprint was last sent, least recently seen first
+	private final LinkedHashMap<Long, Long> sent;
+
+
+	/**
+	 * Constructor that creates a cache.
+	 *
+	 * @param window the time in milliseconds within which a trace is only sent once
+	 * @param maxKeys the maximum number of fingerprints remembered
+	 * @param maxFrames the maximum number of frames sent and hashed for each exception of a trace
+	 */
+	StackTraceCache(long window, final int maxKeys, int maxFrames) {
+		this.window = window;
+		this.maxFrames = maxFrames;
+		this.sent = new LinkedHashMap<Long, Long>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+				return size() > maxKeys;
+			}
+		};
+	}
+
+
+	/**
+	 * Decides whether the full trace of a fingerprint is to be sent, and if so remembers that it was.
+	 *
+	 * @param fingerprint the fingerprint of the trace
+	 * @param now the current time in milliseconds
+	 * @return true if the trace was not sent within the window
+	 */
+	synchronized boolean sendFull(long fingerprint, long now) {
+		Long last = sent.get(fingerprint);
+		if (last != null && now - last < window) return false;
+		sent.put(fingerprint, now);
+		return true;
+	}
+
+
+	int getMaxFrames() {
+		return maxFrames;
+	}
+
+
+	/**
+	 * Returns the fingerprint of a trace: a hash of the class name and of the first maxFrames frames of
+	 * the exception and of each of its causes.  Messages are left out, as they often hold ids or times
+	 * that differ between otherwise identical errors.
+	 *
+	 * @param t the exception
+	 * @param maxFrames the maximum number of frames hashed for each exception
+	 * @return the fingerprint
+	 */
+	static long fingerprint(Throwable t, int maxFrames) {
+		long h = FNV_OFFSET;
+		Throwable[] seen = new Throwable[MAX_CAUSES];
+		for (int depth = 0; t != null && depth < MAX_CAUSES && !contains(seen, depth, t); depth++) {
+			seen[depth] = t;
+			h = hash(h, t.getClass().getName());
+			StackTraceElement[] frames = t.getStackTrace();
+			int n = Math.min(frames.length, maxFrames);
+			for (int i = 0; i < n; i++) {
+				StackTraceElement frame = frames[i];
+				h = hash(h, frame.getClassName());
+				h = hash(h, frame.getMethodName());
+				h = (h ^ frame.getLineNumber()) * FNV_PRIME;
+			}
+			h = (h ^ '>') * FNV_PRIME;
+			t = t.getCause();
+		}
+		return h;
+	}
+
+
+	/**
+	 * Returns whether one of the first n exceptions is t itself, which ends a chain of causes that
+	 * loops back.
+	 */
+	static boolean contains(Throwable[] seen, int n, Throwable t) {
+		for (int i = 0; i < n; i++) {
+			if (seen[i] == t) return true;
+		}
+		return false;
+	}
+
+
+	private static long hash(long h, String s) {
+		if (s == null) return (h ^ 0xff) * FNV_PRIME;
+		for (int i = 0; i < s.length(); i++) {
+			h = (h ^ s.charAt(i)) * FNV_PRIME;
+		}
+		return (h ^ 0xff) * FNV_PRIME;
+	}
+}
@@ -0,0 +1,282 @@
+package com.oohlalog.logging;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.logging.Level;
+
+
+/**
+ * Gathers the statistics of a handler into a StatsSnapshot.  Everything that can be looked up is looked
+ * up once: JavaSysMon, which is optional, is reached through method handles resolved when this class is
+ * loaded, and the names of all statistics are built when the collector is created.  Without JavaSysMon,
+ * or on a platform it does not support, memory and CPU statistics come from the JVM's
+ * OperatingSystemMXBean instead.
+ *
+ * Sampling itself allocates nothing in the adapter; JavaSysMon and the JVM may allocate while reading
+ * the operating system's figures.  A collector keeps the previous CPU times to compute CPU usage, so
+ * samples are taken one at a time.
+ */
+class StatsCollector {
+	// JavaSysMon, or null if it is not on the classpath or does not support this platform
+	private static final Object SYSMON;
+	// JavaSysMon methods, typed to take and return Object so they need no JavaSysMon types here
+	private static final MethodHandle PHYSICAL;
+	private static final MethodHandle SWAP;
+	private static final MethodHandle CPU_TIMES;
+	private static final MethodHandle FREE_BYTES;
+	private static final MethodHandle TOTAL_BYTES;
+	private static final MethodHandle IDLE_MILLIS;
+	private static final MethodHandle TOTAL_MILLIS;
+	private static final MethodHandle SYSTEM_MILLIS;
+	private static final MethodHandle USER_MILLIS;
+	private static final MethodHandle CPU_USAGE;
+
+	static {
+		Object sysmon = null;
+		MethodHandle physical = null, swap = null, cpuTimes = null, freeBytes = null, totalBytes = null;
+		MethodHandle idleMillis = null, totalMillis = null, systemMillis = null, userMillis = null, cpuUsage = null;
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			Class<?> sysmonClass = Class.forName("com.jezhumble.javasysmon.JavaSysMon");
+			Class<?> memoryStatsClass = Class.forName("com.jezhumble.javasysmon.MemoryStats");
+			Class<?> cpuTimesClass = Class.forName("com.jezhumble.javasysmon.CpuTimes");
+			MethodType objectGetter = MethodType.methodType(Object.class, Object.class);
+			MethodType longGetter = MethodType.methodType(long.class, Object.class);
+			physical = lookup.findVirtual(sysmonClass, "physical", MethodType.methodType(memoryStatsClass)).asType(objectGetter);
+			swap = lookup.findVirtual(sysmonClass, "swap", MethodType.methodType(memoryStatsClass)).asType(objectGetter);
+			cpuTimes = lookup.findVirtual(sysmonClass, "cpuTimes", MethodType.methodType(cpuTimesClass)).asType(objectGetter);
+			freeBytes = lookup.findVirtual(memoryStatsClass, "getFreeBytes", MethodType.methodType(long.class)).asType(longGetter);
+			totalBytes = lookup.findVirtual(memoryStatsClass, "getTotalBytes", MethodType.methodType(long.class)).asType(longGetter);
+			idleMillis = lookup.findVirtual(cpuTimesClass, "getIdleMillis", MethodType.methodType(long.class)).asType(longGetter);
+			totalMillis = lookup.findVirtual(cpuTimesClass, "getTotalMillis", MethodType.methodType(long.class)).asType(longGetter);
+			systemMillis = lookup.findVirtual(cpuTimesClass, "getSystemMillis", MethodType.methodType(long.class)).asType(longGetter);
+			userMillis = lookup.findVirtual(cpuTimesClass, "getUserMillis", MethodType.methodType(long.class)).asType(longGetter);
+			cpuUsage = lookup.findVirtual(cpuTimesClass, "getCpuUsage", MethodType.methodType(float.class, cpuTimesClass))
+					.asType(MethodType.methodType(float.class, Object.class, Object.class));
+			Object instance = sysmonClass.getConstructor().newInstance();
+			if ((Boolean)sysmonClass.getMethod("supportedPlatform").invoke(instance)) sysmon = instance;
+		} catch (Throwable t) {
+			// JavaSysMon is optional
+			sysmon = null;
+		}
+		SYSMON = sysmon;
+		PHYSICAL = physical;
+		SWAP = swap;
+		CPU_TIMES = cpuTimes;
+		FREE_BYTES = freeBytes;
+		TOTAL_BYTES = totalBytes;
+		IDLE_MILLIS = idleMillis;
+		TOTAL_MILLIS = totalMillis;
+		SYSTEM_MILLIS = systemMillis;
+		USER_MILLIS = userMillis;
+		CPU_USAGE = cpuUsage;
+	}
+
+	// OperatingSystemMXBean methods for physical memory and CPU load, looked up by name: the ones added
+	// in Java 14 where they exist, otherwise the ones they replaced, which are deprecated from Java 14 on
+	// but the only ones on Java 11
+	private static final MethodHandle OS_FREE_MEMORY = osMethod(long.class, "getFreeMemorySize", "getFreePhysicalMemorySize");
+	private static final MethodHandle OS_TOTAL_MEMORY = osMethod(long.class, "getTotalMemorySize", "getTotalPhysicalMemorySize");
+	private static final MethodHandle OS_CPU_LOAD = osMethod(double.class, "getCpuLoad", "getSystemCpuLoad");
+
+	// The levels of the buffer, and the names of their dropped-log counters
+	private static final Level[] LEVELS = LogRecordBuffer.getPriorityLevels();
+	private static final String[] DROPPED_NAMES = new String[LEVELS.length];
+	static {
+		for (int i = 0; i < LEVELS.length; i++) {
+			DROPPED_NAMES[i] = "buffer.dropped." + LEVELS[i].getName();
+		}
+	}
+
+	private final OohLaLogHandler handler;
+
+	// Where memory and CPU statistics come from: JavaSysMon, or the JVM if this is non-null
+	private final com.sun.management.OperatingSystemMXBean osBean;
+	private final boolean useSysMon;
+
+	// The file system roots and the names of their statistics
+	private final File[] roots;
+	private final String[] rootNames;
+
+	// CPU times of the previous sample
+	private Object previousCpuTimes;
+
+
+	/**
+	 * Returns a getter of com.sun.management.OperatingSystemMXBean, typed to take an Object, by the first
+	 * of its names that exists, or null if none does.
+	 */
+	private static MethodHandle osMethod(Class<?> type, String... names) {
+		for (String name : names) {
+			try {
+				return MethodHandles.publicLookup().findVirtual(com.sun.management.OperatingSystemMXBean.class, name,
+						MethodType.methodType(type)).asType(MethodType.methodType(type, Object.class));
+			} catch (Throwable t) {
+				// Try the next name
+			}
+		}
+		return null;
+	}
+
+
+	/**
+	 * Constructor that creates a collector using JavaSysMon when it is available.
+	 *
+	 * @param handler the handler whose statistics are gathered
+	 */
+	StatsCollector(OohLaLogHandler handler) {
+		this(handler, SYSMON != null);
+	}
+
+
+	/**
+	 * Constructor that creates a collector.
+	 *
+	 * @param handler the handler whose statistics are gathered
+	 * @param useSysMon whether to use JavaSysMon, ignored if it is not available
+	 */
+	StatsCollector(OohLaLogHandler handler, boolean useSysMon) {
+		this.handler = handler;
+		this.useSysMon = useSysMon && SYSMON != null;
+		OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+		this.osBean = (!this.useSysMon && bean instanceof com.sun.management.OperatingSystemMXBean)
+				? (com.sun.management.OperatingSystemMXBean)bean : null;
+		File[] roots = null;
+		try {
+			roots = File.listRoots();
+		} catch (Throwable t) {
+			if (handler.getDebug()) System.err.println(t.getMessage());
+		}
+		this.roots = (roots != null) ? roots : new File[0];
+		this.rootNames = new String[this.roots.length * 3];
+		for (int i = 0; i < this.roots.length; i++) {
+			String prefix = "fileSystem." + this.roots[i].toString();
+			rootNames[i * 3] = prefix + ".totalSpace";
+			rootNames[i * 3 + 1] = prefix + ".usableSpace";
+			rootNames[i * 3 + 2] = prefix + ".freeSpace";
+		}
+	}
+
+
+	/**
+	 * Replaces the contents of a snapshot with the handler's current statistics, leaving out the
+	 * groups the handler's settings turn off.
+	 *
+	 * @param snapshot the snapshot to fill
+	 */
+	synchronized void sample(StatsSnapshot snapshot) {
+		snapshot.clear();
+		if (handler.getShowMemoryStats()) addMemoryStats(snapshot);
+		if (handler.getShowFileSystemStats()) addFileSystemStats(snapshot);
+		if (handler.getShowCPUStats()) addCpuStats(snapshot);
+		addCompressionStats(snapshot);
+		addBufferStats(snapshot);
+		if (handler.getPipelineStats()) handler.getPipelineMetrics().addStats(snapshot);
+	}
+
+
+	void addMemoryStats(StatsSnapshot snapshot) {
+		Runtime runtime = Runtime.getRuntime();
+		long total = runtime.totalMemory();
+		long free = runtime.freeMemory();
+		snapshot.put("memory.jvm.maxMemory", runtime.maxMemory());
+		snapshot.put("memory.jvm.freeMemory", free);
+		snapshot.put("memory.jvm.totalMemory", total);
+		snapshot.put("memory.jvm.usedMemory", total - free);
+
+		try {
+			if (useSysMon) {
+				Object physical = (Object)PHYSICAL.invokeExact(SYSMON);
+				if (physical != null) {
+					snapshot.put("memory.physical.freeBytes", (long)FREE_BYTES.invokeExact(physical));
+					snapshot.put("memory.physical.totalBytes", (long)TOTAL_BYTES.invokeExact(physical));
+				}
+				Object swap = (Object)SWAP.invokeExact(SYSMON);
+				if (swap != null) {
+					snapshot.put("memory.swap.freeBytes", (long)FREE_BYTES.invokeExact(swap));
+					snapshot.put("memory.swap.totalBytes", (long)TOTAL_BYTES.invokeExact(swap));
+				}
+			}
+			else if (osBean != null) {
+				if (OS_FREE_MEMORY != null) snapshot.put("memory.physical.freeBytes", (long)OS_FREE_MEMORY.invokeExact((Object)osBean));
+				if (OS_TOTAL_MEMORY != null) snapshot.put("memory.physical.totalBytes", (long)OS_TOTAL_MEMORY.invokeExact((Object)osBean));
+				snapshot.put("memory.swap.freeBytes", osBean.getFreeSwapSpaceSize());
+				snapshot.put("memory.swap.totalBytes", osBean.getTotalSwapSpaceSize());
+			}
+		} catch (Throwable t) {
+			if (handler.getDebug()) System.err.println(t.getMessage());
+		}
+	}
+
+
+	synchronized void addCpuStats(StatsSnapshot snapshot) {
+		try {
+			if (useSysMon) {
+				Object times = (Object)CPU_TIMES.invokeExact(SYSMON);
+				if (times != null) {
+					snapshot.put("cpu.idleMillis", (long)IDLE_MILLIS.invokeExact(times));
+					snapshot.put("cpu.totalMillis", (long)TOTAL_MILLIS.invokeExact(times));
+					snapshot.put("cpu.systemMillis", (long)SYSTEM_MILLIS.invokeExact(times));
+					snapshot.put("cpu.userMillis", (long)USER_MILLIS.invokeExact(times));
+					if (previousCpuTimes != null) {
+						snapshot.put("cpu.cpuUsage", (float)CPU_USAGE.invokeExact(times, previousCpuTimes));
+					}
+					previousCpuTimes = times;
+				}
+			}
+			else if (osBean != null && OS_CPU_LOAD != null) {
+				// Negative until the JVM has a first reading
+				double load = (double)OS_CPU_LOAD.invokeExact((Object)osBean);
+				if (load >= 0) snapshot.put("cpu.cpuUsage", load);
+			}
+		} catch (Throwable t) {
+			if (handler.getDebug()) System.err.println(t.getMessage());
+		}
+	}
+
+
+	void addFileSystemStats(StatsSnapshot snapshot) {
+		try {
+			for (int i = 0; i < roots.length; i++) {
+				snapshot.put(rootNames[i * 3], roots[i].getTotalSpace());
+				snapshot.put(rootNames[i * 3 + 1], roots[i].getUsableSpace());
+				snapshot.put(rootNames[i * 3 + 2], roots[i].getFreeSpace());
+			}
+		} catch (Throwable t) {
+			if (handler.getDebug()) System.err.println(t.getMessage());
+		}
+	}
+
+
+	void addCompressionStats(StatsSnapshot snapshot) {
+		Compressor.Stats stats = handler.getCompressionStats();
+		if (stats.getBatches() > 0) {
+			snapshot.put("compression.batches", stats.getBatches());
+			snapshot.put("compression.ratio", stats.getRatio());
+			snapshot.put("compression.cpuMillisPerBatch", stats.getCpuMillisPerBatch());
+		}
+	}
+
+
+	void addBufferStats(StatsSnapshot snapshot) {
+		LogRecordBuffer buffer = handler.getLogRecordBuffer();
+		for (int i = 0; i < LEVELS.length; i++) {
+			long dropped = buffer.getDropped(LEVELS[i]);
+			if (dropped > 0) snapshot.put(DROPPED_NAMES[i], dropped);
+		}
+		snapshot.put("buffer.bytes", buffer.getBytes());
+		long droppedBytes = buffer.getDroppedBytes();
+		if (droppedBytes > 0) snapshot.put("buffer.droppedBytes", droppedBytes);
+		LogAggregator aggregator = buffer.getAggregator();
+		if (aggregator != null && aggregator.getLogsOut() > 0) {
+			snapshot.put("aggregation.logsIn", aggregator.getLogsIn());
+			snapshot.put("aggregation.logsOut", aggregator.getLogsOut());
+			snapshot.put("aggregation.ratio", aggregator.getReductionRatio());
+		}
+		handler.getRateLimiter().addStats(snapshot);
+	}
+}
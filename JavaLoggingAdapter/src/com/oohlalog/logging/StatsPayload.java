@@ -1,13 +1,11 @@
 package com.oohlalog.logging;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.Map;
 
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 
 public class StatsPayload {
 	static final String PAYLOAD_METRICS = "metrics";
@@ -20,12 +18,19 @@ public class StatsPayload {
 	private String path = null;
 	private String agent = null;
 	private Map<String, Double> metrics = null;
+	private StatsSnapshot snapshot = null;
 	private int port;
 	private boolean secure = false;
 	private boolean debug = true;
 
 	private Map<String, Object> counters = null;
 
+	// Connections to the OohLaLog server
+	private HttpTransport transport = null;
+
+	// Compresses the body before it is sent
+	private Compressor compressor = null;
+
 	
 	/**
 	 * lock constructor to require usage of the builder
@@ -40,6 +45,7 @@ public class StatsPayload {
 	 * @return
 	 */
 	public String serialize( ) {
+		if (snapshot != null) return serializeSnapshot();
 		StatsPayload pl = this;
 		Map<String,Object> payload = new HashMap<String,Object>();
 
@@ -51,67 +57,94 @@ public class StatsPayload {
 	}
 
 
+	/**
+	 * Serializes the metrics of a snapshot straight from its primitive values.  Values that JSON cannot
+	 * hold, such as NaN, are left out.
+	 */
+	private String serializeSnapshot() {
+		StringWriter out = new StringWriter();
+		JsonWriter writer = new JsonWriter(out);
+		try {
+			writer.beginObject();
+			writer.name(PAYLOAD_METRICS).beginObject();
+			for (int i = 0; i < snapshot.size(); i++) {
+				double value = snapshot.getValue(i);
+				if (Double.isNaN(value) || Double.isInfinite(value)) continue;
+				writer.name(snapshot.getName(i)).value(value);
+			}
+			writer.endObject();
+			if (host != null) writer.name("host").value(host);
+			writer.endObject();
+			writer.close();
+		} catch (IOException e) {
+			// Not thrown by a StringWriter
+		}
+		return out.toString();
+	}
+
+
 	/**
 	 * Write this payload to remote service
 	 * @param pl
+	 * @return whether the server accepted the payload
 	 * @throws RuntimeException
 	 */
-	public static void send( StatsPayload pl ) throws RuntimeException {
-		OutputStream os = null;
-	    BufferedReader rd  = null;
-	    StringBuilder sb = null;
-	    String line = null;
-	    HttpURLConnection con = null;
+	public static boolean send( StatsPayload pl ) throws RuntimeException {
+		boolean success = false;
 		try {
 			if (pl.getDebug()) System.out.println("Serializing: " + pl.toString());
 			// Serialize payload into json
-			String json = pl.serialize();
+			byte[] json = pl.serialize().getBytes( PayloadEncoder.UTF_8 );
 
 			if (pl.getDebug()) System.out.println( ">>>>>>>>>>>Payload: " + pl.toString() );
 
-			// Create connection to oohlalog server
-			URL url = new URL( (pl.getSecure() ? "https" : "http"), pl.getHost(), pl.getPort(), pl.getPath()+"?apiKey="+pl.getAuthToken() );
-
-			if (pl.getDebug()) System.out.println( ">>>>>>>>>>>Submitting to: " + url.toString() );
-			if (pl.getDebug()) System.out.println( ">>>>>>>>>>>JSON: " + json.toString() );
-			con = (HttpURLConnection) url.openConnection();
-			con.setDoOutput(true);
-			con.setDoInput(true);
-			con.setInstanceFollowRedirects(false);
-			con.setRequestMethod("POST");
-			con.setRequestProperty("Content-Type", "application/json");
-			con.setRequestProperty("Content-Length", "" + json.getBytes().length);
-			con.setUseCaches(false);
-
-			// Get output stream and write json
-			os = con.getOutputStream();
-			os.write( json.getBytes() );
-
-			rd  = new BufferedReader(new InputStreamReader(con.getInputStream()));
-			sb = new StringBuilder();
-
-			while ((line = rd.readLine()) != null){
-			  sb.append(line + '\n');
+			// Send over a pooled connection to the oohlalog server
+			String path = pl.getPath()+"?apiKey="+pl.getAuthToken();
+
+			if (pl.getDebug()) System.out.println( ">>>>>>>>>>>Submitting to: " + pl.getUrl( path ) );
+			if (pl.getDebug()) System.out.println( ">>>>>>>>>>>JSON: " + new String( json, PayloadEncoder.UTF_8 ) );
+
+			// Compress the body if it is large enough
+			byte[] body = json;
+			int len = json.length;
+			String contentEncoding = null;
+			if (pl.compressor != null && pl.compressor.compress( body, len )) {
+				body = pl.compressor.getBuffer();
+				len = pl.compressor.size();
+				contentEncoding = pl.compressor.getEncoding();
+			}
+			HttpTransport transport = pl.getTransport();
+			HttpTransport.Response response;
+			try {
+				response = transport.post( path, contentEncoding, body, len );
+			}
+			finally {
+				if (transport != pl.transport) HttpTransport.release( transport );
 			}
-			if (pl.getDebug()) System.out.println( ">>>>>>>>>>>Received: " + sb.toString() );
 
+			if (pl.getDebug()) System.out.println( ">>>>>>>>>>>Received: " + response.getBody() );
+			success = (response.getStatus() == 200);
 		}
 		catch ( Throwable t ) {
 			t.printStackTrace();
 		}
-		finally {
-			if ( os != null ) {
-				try {
-				  con.disconnect();
-					os.flush();
-					os.close();
-					con = null;
-				}
-				catch ( Throwable t ) {
-					// swallow
-				}
-			}
-		}
+		return success;
+	}
+
+
+	/**
+	 * Returns the transport set on this payload, or else gets the shared default transport for its
+	 * endpoint, which the caller gives back with HttpTransport.release().
+	 */
+	HttpTransport getTransport() {
+		if (transport != null) return transport;
+		return HttpTransport.get( HttpTransport.POOLED, secure, host, port,
+				HttpTransport.DEFAULT_MAX_CONNECTIONS, HttpTransport.DEFAULT_IDLE_TIMEOUT );
+	}
+
+
+	private String getUrl( String path ) {
+		return (secure ? "https" : "http") + "://" + host + ":" + port + path;
 	}
 
 	public String getAuthToken() {
@@ -215,7 +248,10 @@ public class StatsPayload {
 		private boolean secure = false;
 		private boolean debug = false;
 		private Map<String, Double> metrics = null;
+		private StatsSnapshot snapshot = null;
 		private Map<String, Object> counters = null;
+		private HttpTransport transport = null;
+		private Compressor compressor = null;
 
 		public Builder() {}
 		public StatsPayload build() {
@@ -224,12 +260,15 @@ public class StatsPayload {
 			pl.host = this.host;
 			pl.hostName = this.hostName;
 			pl.metrics = this.metrics;
+			pl.snapshot = this.snapshot;
 			pl.counters = this.counters;
 			pl.port = this.port;
 			pl.agent = this.agent;
 			pl.path = this.path;
 			pl.secure = this.secure;
 			pl.debug = this.debug;
+			pl.transport = this.transport;
+			pl.compressor = this.compressor;
 			return pl;
 		}
 
@@ -263,6 +302,11 @@ public class StatsPayload {
 			return this;
 		}
 
+		Builder snapshot( StatsSnapshot snapshot ) {
+			this.snapshot = snapshot;
+			return this;
+		}
+
 		public Builder counters( Map<String,Object> counters ) {
 			this.counters = counters;
 			return this;
@@ -282,5 +326,15 @@ public class StatsPayload {
 			this.debug = debug;
 			return this;
 		}
+
+		Builder transport( HttpTransport transport ) {
+			this.transport = transport;
+			return this;
+		}
+
+		Builder compressor( Compressor compressor ) {
+			this.compressor = compressor;
+			return this;
+		}
 	}
 }
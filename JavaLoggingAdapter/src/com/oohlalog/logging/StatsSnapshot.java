@@ -0,0 +1,88 @@
+package com.oohlalog.logging;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * The statistics of one sample as parallel arrays of names and primitive values.  A snapshot is
+ * cleared and filled again for every sample; once its arrays have grown to the number of statistics,
+ * sampling into it allocates nothing.
+ */
+public class StatsSnapshot {
+	private String[] names = new String[32];
+	private double[] values = new double[32];
+	private int size = 0;
+
+
+	/**
+	 * Removes all statistics, keeping the arrays for the next sample.
+	 */
+	void clear() {
+		size = 0;
+	}
+
+
+	/**
+	 * Adds a statistic.  Names are expected to be constants, so they are not copied.
+	 *
+	 * @param name the name of the statistic
+	 * @param value its value
+	 */
+	void put(String name, double value) {
+		if (size == names.length) {
+			String[] grownNames = new String[size * 2];
+			double[] grownValues = new double[size * 2];
+			System.arraycopy(names, 0, grownNames, 0, size);
+			System.arraycopy(values, 0, grownValues, 0, size);
+			names = grownNames;
+			values = grownValues;
+		}
+		names[size] = name;
+		values[size] = value;
+		size++;
+	}
+
+
+	/**
+	 * Returns the number of statistics.
+	 */
+	public int size() {
+		return size;
+	}
+
+
+	/**
+	 * Returns the name of a statistic.
+	 *
+	 * @param i the index of the statistic, below size()
+	 */
+	public String getName(int i) {
+		return names[i];
+	}
+
+
+	/**
+	 * Returns the value of a statistic.
+	 *
+	 * @param i the index of the statistic, below size()
+	 */
+	public double getValue(int i) {
+		return values[i];
+	}
+
+
+	/**
+	 * Adds the statistics to a map, creating the map if it is null.
+	 *
+	 * @param map the map to add to, or null
+	 * @return the map
+	 */
+	public Map<String, Double> addTo(Map<String, Double> map) {
+		if (map == null) map = new HashMap<String, Double>();
+		for (int i = 0; i < size; i++) {
+			map.put(names[i], Double.valueOf(values[i]));
+		}
+		return map;
+	}
+}
@@ -0,0 +1,56 @@
+package com.oohlalog.logging;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Creates the threads of a handler, either platform threads or, on a JVM that has them, virtual threads.
+ * Virtual threads are looked up by reflection so the adapter still builds and runs on older JVMs.
+ */
+class ThreadFactories {
+	static final String PLATFORM = "platform";
+	static final String VIRTUAL = "virtual";
+
+
+	/**
+	 * Returns a factory for threads of the given mode, or for platform threads if virtual threads were
+	 * asked for and this JVM has none.
+	 *
+	 * @param mode PLATFORM or VIRTUAL
+	 * @param name the name of the threads, to which a number is appended
+	 * @param debug whether to print a message when falling back to platform threads
+	 */
+	static ThreadFactory get(String mode, String name, boolean debug) {
+		if (VIRTUAL.equals(mode)) {
+			ThreadFactory factory = virtual(name);
+			if (factory != null) return factory;
+			if (debug) System.err.println("Virtual threads are not available, using platform threads");
+		}
+		return platform(name);
+	}
+
+
+	private static ThreadFactory platform(final String name) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				return new Thread(r, name + "-" + count.incrementAndGet());
+			}
+		};
+	}
+
+
+	private static ThreadFactory virtual(String name) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Method nameMethod = builderClass.getMethod("name", String.class, long.class);
+			builder = nameMethod.invoke(builder, name + "-", 1L);
+			return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package com.oohlalog.logging;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A lock-free token bucket.  The rate and burst are split over a few stripes, each a single atomic
+ * timestamp in the style of the generic cell rate algorithm: the time at which the stripe would next be
+ * empty.  A thread takes a token from the stripe picked by its id, and from the other stripes if that
+ * one is empty, so threads rarely contend on the same value and a single thread still gets the whole rate.
+ */
+class TokenBucket {
+	// Upper bound on the number of stripes
+	private static final int MAX_STRIPES = 8;
+
+	// Longs between two stripes, so stripes do not share a cache line
+	private static final int PADDING = 8;
+
+	private final int stripes;
+
+	// Nanoseconds between two tokens of one stripe
+	private final long interval;
+
+	// How far ahead of now a stripe's next-empty time may be while it still has a token
+	private final long tolerance;
+
+	// Next-empty time of each stripe, in System.nanoTime() units, at index stripe * PADDING
+	private final AtomicLongArray emptyAt;
+
+
+	/**
+	 * Constructor that creates a full bucket.
+	 *
+	 * @param perSecond the number of tokens added per second
+	 * @param burst the maximum number of tokens the bucket holds
+	 */
+	TokenBucket(double perSecond, int burst) {
+		int n = Integer.highestOneBit(Math.min(MAX_STRIPES, Runtime.getRuntime().availableProcessors()));
+		this.stripes = Math.max(1, Math.min(n, Integer.highestOneBit(Math.max(1, burst))));
+		this.interval = Math.max(1, (long)(1e9 * stripes / perSecond));
+		this.tolerance = interval * (Math.max(1, burst / stripes) - 1);
+		this.emptyAt = new AtomicLongArray(stripes * PADDING);
+		long now = System.nanoTime();
+		for (int i = 0; i < stripes; i++) {
+			emptyAt.set(i * PADDING, now);
+		}
+	}
+
+
+	/**
+	 * Takes a token if there is one.
+	 *
+	 * @return false if the bucket is empty
+	 */
+	boolean tryAcquire() {
+		long now = System.nanoTime();
+		int first = (int)Thread.currentThread().getId();
+		for (int i = 0; i < stripes; i++) {
+			int idx = ((first + i) & (stripes - 1)) * PADDING;
+			for (;;) {
+				long t = emptyAt.get(idx);
+				if (t - now > tolerance) break;
+				long next = ((t - now > 0) ? t : now) + interval;
+				if (emptyAt.compareAndSet(idx, t, next)) return true;
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * Gives back a token taken by tryAcquire() to a stripe that is not full.
+	 */
+	void release() {
+		long now = System.nanoTime();
+		int first = (int)Thread.currentThread().getId();
+		for (int i = 0; i < stripes; i++) {
+			int idx = ((first + i) & (stripes - 1)) * PADDING;
+			for (;;) {
+				long t = emptyAt.get(idx);
+				if (t - now <= 0) break;
+				long previous = (t - interval - now > 0) ? t - interval : now;
+				if (emptyAt.compareAndSet(idx, t, previous)) return;
+			}
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package com.oohlalog.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.junit.Test;
+
+
+/**
+ * Tests of which logs LogAggregator collapses into one entry, alone and from many threads.
+ */
+public class LogAggregatorTest {
+	@Test
+	public void keepsLogsWithDifferentParametersApart() {
+		LogAggregator aggregator = new LogAggregator(16);
+		assertTrue(aggregator.add(record("user {0}", "a"), null));
+		assertTrue(aggregator.add(record("user {0}", "a"), null));
+		assertTrue(aggregator.add(record("user {0}", "b"), null));
+		assertTrue(aggregator.add(record("user {0}"), null));
+		assertEquals(3, aggregator.size());
+		assertEquals(4, aggregator.getLogsIn());
+	}
+
+
+	@Test
+	public void passesOnLogsWhoseParametersCannotBeHashed() {
+		LogAggregator aggregator = new LogAggregator(16);
+		Object parameter = new Object() {
+			@Override
+			public int hashCode() {
+				throw new IllegalStateException();
+			}
+		};
+		assertFalse(aggregator.add(record("user {0}", parameter), null));
+		assertEquals(0, aggregator.size());
+		assertEquals(1, aggregator.getLogsOut());
+	}
+
+
+	@Test
+	public void sameKindFromManyThreadsMakesOneEntry() throws InterruptedException {
+		final int threads = 16;
+		final int perThread = 2000;
+		for (int round = 0; round < 50; round++) {
+			final LogAggregator aggregator = new LogAggregator(4);
+			final CountDownLatch start = new CountDownLatch(1);
+			Thread[] ts = new Thread[threads];
+			for (int t = 0; t < threads; t++) {
+				ts[t] = new Thread() {
+					public void run() {
+						try {
+							start.await();
+						}
+						catch (InterruptedException e) {
+							return;
+						}
+						for (int i = 0; i < perThread; i++) {
+							aggregator.add(record("same"), null);
+						}
+					}
+				};
+				ts[t].start();
+			}
+			start.countDown();
+			for (Thread t : ts) {
+				t.join();
+			}
+			assertEquals("round " + round, 1, aggregator.size());
+			assertEquals("round " + round, 0, aggregator.getLogsOut());
+
+			LogRecordBuffer buffer = new LogRecordBuffer(100);
+			aggregator.drainTo(buffer);
+			assertEquals("round " + round, 1, buffer.size());
+			assertEquals("round " + round, (double)threads * perThread, aggregator.getReductionRatio(), 0);
+		}
+	}
+
+
+	private static LogRecord record(String message, Object... parameters) {
+		LogRecord lr = new LogRecord(Level.INFO, message);
+		lr.setSourceClassName("com.example.Source");
+		lr.setSourceMethodName("run");
+		if (parameters.length > 0) lr.setParameters(parameters);
+		return lr;
+	}
+}
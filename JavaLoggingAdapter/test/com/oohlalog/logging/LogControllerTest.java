@@ -0,0 +1,206 @@
+package com.oohlalog.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * Tests of closing a handler while the OohLaLog server is down or refuses some of the logs.
+ */
+public class LogControllerTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	// Stands in for the OohLaLog server, refusing with a 400 any request with "refused" in it
+	private HttpServer server;
+
+	// Status the stand-in answers other requests with, the bodies of those it accepted, and the number
+	// of requests it got
+	private volatile int status = 500;
+	private final List<String> accepted = new ArrayList<String>();
+	private final AtomicInteger requests = new AtomicInteger();
+
+
+	@Before
+	public void startServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				InputStream in = exchange.getRequestBody();
+				ByteArrayOutputStream body = new ByteArrayOutputStream();
+				byte[] buf = new byte[4096];
+				int n;
+				while ((n = in.read(buf)) >= 0) {
+					body.write(buf, 0, n);
+				}
+				String request = new String(body.toByteArray(), StandardCharsets.UTF_8);
+				requests.incrementAndGet();
+				int code = request.contains("refused") ? 400 : status;
+				if (code == 200) {
+					synchronized (accepted) {
+						accepted.add(request);
+					}
+				}
+				exchange.sendResponseHeaders(code, -1);
+				exchange.close();
+			}
+		});
+		server.start();
+	}
+
+
+	@After
+	public void stopServer() {
+		server.stop(0);
+	}
+
+
+	@Test
+	public void closeJournalsLogsItCouldNotSend() throws IOException {
+		File dir = folder.newFolder();
+		OohLaLogHandler handler = new OohLaLogHandler("key", settings(dir));
+		for (int i = 0; i < 500; i++) {
+			handler.publish(new LogRecord(Level.INFO, "log " + i));
+		}
+		handler.close();
+
+		List<JsonObject> logs = readJournal(dir);
+		assertEquals(500, logs.size());
+		for (int i = 0; i < logs.size(); i++) {
+			assertEquals("log " + i, logs.get(i).get("message").getAsString());
+		}
+	}
+
+
+	@Test
+	public void closeJournalsAggregatedLogs() throws IOException {
+		File dir = folder.newFolder();
+		Map<String, Object> settings = settings(dir);
+		settings.put("aggregate", true);
+		OohLaLogHandler handler = new OohLaLogHandler("key", settings);
+		for (int i = 0; i < 300; i++) {
+			handler.publish(new LogRecord(Level.INFO, "repeated " + (i % 3)));
+		}
+		handler.close();
+
+		List<JsonObject> logs = readJournal(dir);
+		assertEquals(3, logs.size());
+		for (JsonObject log : logs) {
+			assertEquals(100, log.get("count").getAsInt());
+		}
+	}
+
+
+	@Test
+	public void refusedJournalEntryDoesNotHoldBackNewLogs() throws IOException {
+		File dir = folder.newFolder();
+		SpillJournal journal = SpillJournal.open(dir, SpillJournal.DEFAULT_MAX_BYTES, SpillJournal.DEFAULT_SEGMENT_BYTES,
+				"java.util.logging", false);
+		journal.append(new LogRecord(Level.INFO, "refused"), null, new PayloadEncoder());
+		journal.close();
+
+		status = 200;
+		OohLaLogHandler handler = new OohLaLogHandler("key", settings(dir));
+		handler.publish(new LogRecord(Level.INFO, "accepted"));
+		handler.close();
+
+		assertEquals(1, accepted.size());
+		assertTrue(accepted.get(0).contains("accepted"));
+		assertEquals(1, handler.getPipelineMetrics().getDroppedRejected());
+		assertEquals(0, readJournal(dir).size());
+	}
+
+
+	@Test
+	public void flushWaitsForTheRetryPolicy() throws IOException, InterruptedException {
+		Map<String, Object> settings = settings(folder.newFolder());
+		settings.put("breakerThreshold", 1);
+		settings.put("retryBaseDelay", 60000L);
+		OohLaLogHandler handler = new OohLaLogHandler("key", settings);
+		handler.publish(new LogRecord(Level.INFO, "log"));
+		handler.flush();
+		while (handler.getRetryPolicy().getState() != RetryPolicy.State.OPEN) {
+			Thread.sleep(1);
+		}
+		assertEquals(1, requests.get());
+
+		handler.flush();
+		Thread.sleep(200);
+		assertEquals(1, requests.get());
+		handler.close();
+	}
+
+
+	/**
+	 * Returns settings that keep every log in the buffer until close(), and send at most a few logs per
+	 * request, so most of them are still in the buffer when the first request fails.
+	 */
+	private Map<String, Object> settings(File journalDir) {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("host", "127.0.0.1");
+		map.put("port", server.getAddress().getPort());
+		map.put("threshold", 10000);
+		map.put("maxBuffer", 1000);
+		map.put("maxRequestBytes", 2048);
+		map.put("bufferStripes", 4);
+		map.put("timeBuffer", 600000L);
+		map.put("showStats", false);
+		map.put("jmx", false);
+		map.put("debug", false);
+		map.put("journalDir", journalDir.getPath());
+		return map;
+	}
+
+
+	/**
+	 * Reopens a journal the way the next handler would, and returns every log it holds, oldest first.
+	 */
+	private static List<JsonObject> readJournal(File dir) throws IOException {
+		SpillJournal journal = SpillJournal.open(dir, SpillJournal.DEFAULT_MAX_BYTES, SpillJournal.DEFAULT_SEGMENT_BYTES,
+				"java.util.logging", false);
+		List<JsonObject> logs = new ArrayList<JsonObject>();
+		try {
+			PayloadEncoder encoder = new PayloadEncoder();
+			while (journal.readBatch(encoder, "key", Integer.MAX_VALUE, Integer.MAX_VALUE) > 0) {
+				JsonArray batch = new JsonParser().parse(encoder.toString()).getAsJsonObject()
+						.getAsJsonArray(Payload.PAYLOAD_LOGS);
+				for (int i = 0; i < batch.size(); i++) {
+					logs.add(batch.get(i).getAsJsonObject());
+				}
+				journal.ack();
+			}
+		}
+		finally {
+			journal.close();
+		}
+		return logs;
+	}
+}
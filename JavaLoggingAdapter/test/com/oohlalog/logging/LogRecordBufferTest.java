@@ -0,0 +1,140 @@
+package com.oohlalog.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests of the probe sent by a flush while the circuit breaker is half open.
+ */
+public class LogRecordBufferTest {
+	private static final Pattern MESSAGE = Pattern.compile("\"message\":\"([^\"]*)\"");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	// Status the stand-in transport answers with, and the messages of each request it got
+	private volatile int status = 503;
+	private final List<List<String>> requests = new ArrayList<List<String>>();
+
+	private OohLaLogHandler handler;
+
+
+	@After
+	public void closeHandler() {
+		if (handler != null) handler.close();
+	}
+
+
+	@Test
+	public void probeSendsOnlyTheOldestLogsOfTheFailedBatch() throws InterruptedException {
+		handler = newHandler(null);
+		LogRecordBuffer buffer = handler.getLogRecordBuffer();
+		for (int i = 0; i < 50; i++) {
+			handler.publish(new LogRecord(Level.INFO, "log " + i));
+		}
+		assertFalse(buffer.flushLogRecordBuffer(handler, 100));
+		assertEquals(50, requests.get(0).size());
+		halfOpen();
+
+		status = 200;
+		assertTrue(buffer.flushLogRecordBuffer(handler, 1));
+		assertEquals(2, requests.size());
+		assertEquals(1, requests.get(1).size());
+		assertEquals("log 0", requests.get(1).get(0));
+		assertEquals(49, buffer.size());
+
+		assertTrue(buffer.flushLogRecordBuffer(handler, 100));
+		assertEquals(49, requests.get(2).size());
+		assertEquals("log 1", requests.get(2).get(0));
+		assertEquals(0, buffer.size());
+	}
+
+
+	@Test
+	public void probeReplaysOneJournaledLogAndNothingElse() throws IOException, InterruptedException {
+		File dir = folder.newFolder();
+		SpillJournal journal = SpillJournal.open(dir, SpillJournal.DEFAULT_MAX_BYTES, SpillJournal.DEFAULT_SEGMENT_BYTES,
+				"java.util.logging", false);
+		PayloadEncoder encoder = new PayloadEncoder();
+		for (int i = 0; i < 5; i++) {
+			journal.append(new LogRecord(Level.INFO, "journaled " + i), null, encoder);
+		}
+		journal.close();
+
+		handler = newHandler(dir);
+		LogRecordBuffer buffer = handler.getLogRecordBuffer();
+		handler.publish(new LogRecord(Level.INFO, "live"));
+		assertFalse(buffer.flushLogRecordBuffer(handler, 100));
+		requests.clear();
+		halfOpen();
+
+		status = 200;
+		assertTrue(buffer.flushLogRecordBuffer(handler, 1));
+		assertEquals(1, requests.size());
+		assertEquals(1, requests.get(0).size());
+		assertEquals("journaled 0", requests.get(0).get(0));
+	}
+
+
+	/**
+	 * Waits for the circuit breaker, which opens on the first failure, to become half open.
+	 */
+	private void halfOpen() throws InterruptedException {
+		while (handler.getRetryPolicy().getState() != RetryPolicy.State.HALF_OPEN) {
+			Thread.sleep(1);
+		}
+	}
+
+
+	/**
+	 * Returns a handler that only sends when flushed by the test, through a stand-in transport.
+	 */
+	private OohLaLogHandler newHandler(File journalDir) {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("threshold", 10000);
+		map.put("timeBuffer", 600000L);
+		map.put("breakerThreshold", 1);
+		map.put("retryBaseDelay", 1L);
+		map.put("retryMaxDelay", 1L);
+		map.put("showStats", false);
+		map.put("jmx", false);
+		map.put("debug", false);
+		if (journalDir != null) map.put("journalDir", journalDir.getPath());
+		return new OohLaLogHandler("key", map) {
+			protected HttpTransport getTransport() {
+				return new HttpTransport() {
+					Response post(String path, String contentEncoding, byte[] body, int len) {
+						List<String> messages = new ArrayList<String>();
+						Matcher m = MESSAGE.matcher(new String(body, 0, len, PayloadEncoder.UTF_8));
+						while (m.find()) {
+							messages.add(m.group(1));
+						}
+						requests.add(messages);
+						return new Response(status, null, "");
+					}
+
+					void close() {
+					}
+				};
+			}
+		};
+	}
+}
@@ -0,0 +1,84 @@
+package com.oohlalog.logging;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.junit.Test;
+
+
+/**
+ * Stress tests of LogRecordRing with many producers and one consumer, the way LogRecordBuffer uses it.
+ */
+public class LogRecordRingTest {
+	private static final int CAPACITY = 1000;
+	private static final int RECORDS = 400000;
+
+
+	@Test
+	public void keepsOrderOfEachProducer() throws InterruptedException {
+		for (int producers : new int[] { 1, 8, 32, 128 }) {
+			assertEquals("order violations with " + producers + " producers", 0, run(producers));
+		}
+	}
+
+
+	/**
+	 * Has each producer add its own numbered records to a full ring, dropping the oldest record to make
+	 * room as the buffer does, while one consumer drains the ring.
+	 *
+	 * @return the number of records the consumer saw out of their producer's order, or more than once
+	 */
+	private static long run(final int producers) throws InterruptedException {
+		final LogRecordRing ring = new LogRecordRing(CAPACITY);
+		final int perProducer = RECORDS / producers;
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicLong violations = new AtomicLong();
+		final long[] last = new long[producers];
+		Arrays.fill(last, -1);
+
+		Thread consumer = new Thread() {
+			public void run() {
+				for (;;) {
+					// Once the producers are done, an empty ring stays empty
+					boolean finished = done.get();
+					LogRecord lr = ring.poll(null, 0);
+					if (lr == null) {
+						if (finished) return;
+						continue;
+					}
+					int producer = (int)(lr.getSequenceNumber() / perProducer);
+					long n = lr.getSequenceNumber() % perProducer;
+					if (n <= last[producer]) violations.incrementAndGet();
+					last[producer] = n;
+				}
+			}
+		};
+		consumer.start();
+
+		Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			threads[p] = new Thread() {
+				public void run() {
+					for (int i = 0; i < perProducer; i++) {
+						LogRecord lr = new LogRecord(Level.INFO, "stress");
+						lr.setSequenceNumber((long)producer * perProducer + i);
+						while (!ring.offer(lr, null)) ring.poll(null, 0);
+					}
+				}
+			};
+			threads[p].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		done.set(true);
+		consumer.join();
+		return violations.get();
+	}
+}
@@ -0,0 +1,28 @@
+package com.oohlalog.logging;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+/**
+ * Tests of the waits computed by RetryPolicy.
+ */
+public class RetryPolicyTest {
+	@Test
+	public void waitStaysWithinMaxDelayAfterManyFailures() {
+		long maxDelay = 1L << 40;
+		for (long baseDelay : new long[] { 1, 2000, 1L << 35, maxDelay }) {
+			RetryPolicy policy = new RetryPolicy(baseDelay, maxDelay, 5);
+			long wait = 0;
+			for (int i = 1; i <= 100; i++) {
+				long before = System.currentTimeMillis();
+				policy.onFailure(503, null);
+				wait = policy.getNextAttemptTime() - before;
+				assertTrue("base " + baseDelay + ", failure " + i + ": " + wait, wait >= baseDelay / 2 && wait <= maxDelay + 1000);
+			}
+			// By then the doubled wait has reached maxDelay, of which at least half is not jitter
+			assertTrue("base " + baseDelay + ": " + wait, wait >= maxDelay / 2);
+		}
+	}
+}
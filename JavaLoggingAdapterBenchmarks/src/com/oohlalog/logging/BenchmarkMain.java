@@ -0,0 +1,26 @@
+package com.oohlalog.logging;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Runs the benchmarks with the JMH command line, writing the results as JSON to jmh-result.json
+ * unless another result format or file is given.
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws Exception {
+		List<String> options = new ArrayList<String>(Arrays.asList(args));
+		if (!options.contains("-rf")) {
+			options.add(0, "-rf");
+			options.add(1, "json");
+		}
+		if (!options.contains("-rff")) {
+			options.add(0, "-rff");
+			options.add(1, "jmh-result.json");
+		}
+		org.openjdk.jmh.Main.main(options.toArray(new String[options.size()]));
+	}
+}
@@ -0,0 +1,73 @@
+package com.oohlalog.logging;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+
+/**
+ * Shared fixtures for the benchmarks: sample log records and handlers that never touch the network.
+ * The benchmarks that do use the network send to a StandInServer.
+ */
+class BenchmarkSupport {
+	private static final Level[] LEVELS = { Level.INFO, Level.FINE, Level.WARNING, Level.SEVERE, OllLevel.DEBUG };
+
+	// Answers every request at once, as the server would for a delivered payload
+	static final HttpTransport NULL_TRANSPORT = new HttpTransport() {
+		@Override
+		Response post(String path, String contentEncoding, byte[] body, int len) {
+			return new Response(200, null, "{\"success\":true}");
+		}
+
+		@Override
+		void close() {
+		}
+	};
+
+
+	/**
+	 * Returns log records with a mix of levels, messages, parameters and source names.
+	 *
+	 * @param n the number of records
+	 */
+	static LogRecord[] records(int n) {
+		LogRecord[] records = new LogRecord[n];
+		for (int i = 0; i < n; i++) {
+			LogRecord lr = new LogRecord(LEVELS[i % LEVELS.length], "Processed order " + i + " for customer <" + (i * 31) + ">");
+			if (i % 3 != 0) lr.setParameters(new Object[] { "order-" + i, i, (i & 1) == 0 });
+			lr.setSourceClassName("com.example.shop.OrderService");
+			lr.setSourceMethodName("process");
+			records[i] = lr;
+		}
+		return records;
+	}
+
+
+	/**
+	 * Returns the settings shared by all benchmark handlers: no stats, no debug output and no timer
+	 * flushes during a measurement.
+	 */
+	static Map<String, Object> settings() {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("showStats", false);
+		map.put("debug", false);
+		map.put("timeBuffer", 60000L);
+		return map;
+	}
+
+
+	/**
+	 * Creates a handler whose payloads are answered by NULL_TRANSPORT.
+	 *
+	 * @param map the settings of the handler
+	 */
+	static OohLaLogHandler nullHandler(Map<String, Object> map) {
+		return new OohLaLogHandler("benchmark", map) {
+			@Override
+			protected HttpTransport getTransport() {
+				return NULL_TRANSPORT;
+			}
+		};
+	}
+}
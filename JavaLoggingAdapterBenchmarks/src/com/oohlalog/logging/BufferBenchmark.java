@@ -0,0 +1,164 @@
+package com.oohlalog.logging;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.LogRecord;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Contention between threads adding to a LogRecordBuffer and the thread draining it.  Each group runs
+ * a number of producers, from 1 to 128, against a single drainer, which encodes every batch and hands
+ * it to a transport that answers at once, as a flush does.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Group)
+public class BufferBenchmark {
+	private static final int RECORDS = 1024;
+	private static final int BATCH = 100;
+
+	private OohLaLogHandler handler;
+	private LogRecordBuffer buffer;
+	private LogRecord[] records;
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next;
+	}
+
+
+	@Setup
+	public void setup() {
+		records = BenchmarkSupport.records(RECORDS);
+		handler = BenchmarkSupport.nullHandler(BenchmarkSupport.settings());
+		buffer = new LogRecordBuffer(1000);
+	}
+
+
+	@TearDown
+	public void tearDown() {
+		handler.close();
+	}
+
+
+	private void add(Cursor c) {
+		buffer.addLogToBuffer(records[c.next++ & (RECORDS - 1)], OllLevel.INFO);
+	}
+
+
+	private boolean drain() {
+		return buffer.flushLogRecordBuffer(handler, BATCH);
+	}
+
+
+	@Benchmark
+	@Group("producers1")
+	@GroupThreads(1)
+	public void add1(Cursor c) {
+		add(c);
+	}
+
+
+	@Benchmark
+	@Group("producers1")
+	@GroupThreads(1)
+	public boolean drain1() {
+		return drain();
+	}
+
+
+	@Benchmark
+	@Group("producers4")
+	@GroupThreads(4)
+	public void add4(Cursor c) {
+		add(c);
+	}
+
+
+	@Benchmark
+	@Group("producers4")
+	@GroupThreads(1)
+	public boolean drain4() {
+		return drain();
+	}
+
+
+	@Benchmark
+	@Group("producers8")
+	@GroupThreads(8)
+	public void add8(Cursor c) {
+		add(c);
+	}
+
+
+	@Benchmark
+	@Group("producers8")
+	@GroupThreads(1)
+	public boolean drain8() {
+		return drain();
+	}
+
+
+	@Benchmark
+	@Group("producers16")
+	@GroupThreads(16)
+	public void add16(Cursor c) {
+		add(c);
+	}
+
+
+	@Benchmark
+	@Group("producers16")
+	@GroupThreads(1)
+	public boolean drain16() {
+		return drain();
+	}
+
+
+	@Benchmark
+	@Group("producers32")
+	@GroupThreads(32)
+	public void add32(Cursor c) {
+		add(c);
+	}
+
+
+	@Benchmark
+	@Group("producers32")
+	@GroupThreads(1)
+	public boolean drain32() {
+		return drain();
+	}
+
+
+	@Benchmark
+	@Group("producers128")
+	@GroupThreads(128)
+	public void add128(Cursor c) {
+		add(c);
+	}
+
+
+	@Benchmark
+	@Group("producers128")
+	@GroupThreads(1)
+	public boolean drain128() {
+		return drain();
+	}
+}
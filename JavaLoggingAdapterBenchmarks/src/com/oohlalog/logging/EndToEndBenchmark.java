@@ -0,0 +1,80 @@
+package com.oohlalog.logging;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.LogRecord;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Latency from publishing a batch of logs until the server has read all of them, through the real
+ * handler, flush threads and transport, against a local stand-in for OohLaLog.  Each operation
+ * publishes one threshold's worth of logs, which triggers a flush, and waits for the server.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EndToEndBenchmark {
+	@Param({"10", "100"})
+	public int threshold;
+
+	@Param({"pooled", "httpclient"})
+	public String transport;
+
+	@Param({"none", "gzip"})
+	public String compression;
+
+	private StandInServer server;
+	private OohLaLogHandler handler;
+	private LogRecord[] records;
+	private long published;
+
+
+	@Setup
+	public void setup() throws Exception {
+		server = new StandInServer();
+		records = BenchmarkSupport.records(threshold);
+		Map<String, Object> map = BenchmarkSupport.settings();
+		map.put("host", "127.0.0.1");
+		map.put("port", server.getPort());
+		map.put("threshold", threshold);
+		map.put("maxBuffer", threshold * 10);
+		map.put("transport", transport);
+		map.put("compression", compression);
+		handler = new OohLaLogHandler("benchmark", map);
+		published = 0;
+	}
+
+
+	@TearDown
+	public void tearDown() {
+		handler.close();
+		server.stop();
+	}
+
+
+	@Benchmark
+	public long publishToAck() throws InterruptedException {
+		for (LogRecord record : records) {
+			handler.publish(record);
+		}
+		published += records.length;
+		server.awaitLogs(published);
+		return published;
+	}
+}
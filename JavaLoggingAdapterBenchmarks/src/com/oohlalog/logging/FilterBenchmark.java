@@ -0,0 +1,146 @@
+package com.oohlalog.logging;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Cost of publish() for logs the handler drops before buffering them: below the level of all loggers,
+ * below the level of their logger in loggerLevels, which walks the logger name, or matching a plain or
+ * regular expression rule of dropMessages.  Run with -prof gc to see that none of them allocate.
+ * translate and legacyTranslate compare the translation of levels with the map lookup it replaced.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FilterBenchmark {
+	private static final int RECORDS = 1024;
+
+	private OohLaLogHandler handler;
+	private LogRecord[] belowRoot;
+	private LogRecord[] belowLogger;
+	private LogRecord[] plainMessage;
+	private LogRecord[] patternMessage;
+	private Level[] levels;
+	private final OohLaLogHandler.LevelConverter levelConverter = new OohLaLogHandler.LevelConverter();
+	private final Map<Level, Level> legacyMap = new HashMap<Level, Level>();
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next;
+	}
+
+
+	@Setup
+	public void setup() {
+		Map<String, Object> map = BenchmarkSupport.settings();
+		Map<String, Object> loggerLevels = new HashMap<String, Object>();
+		loggerLevels.put("*", "INFO");
+		loggerLevels.put("com.example.shop", "WARN");
+		loggerLevels.put("com.example.shop.payments", "DEBUG");
+		loggerLevels.put("com.example.search", "ERROR");
+		loggerLevels.put("org.apache.http", "WARN");
+		map.put("loggerLevels", loggerLevels);
+		map.put("dropMessages", Arrays.asList("heartbeat", "^Polled \\d+ queues$"));
+		handler = BenchmarkSupport.nullHandler(map);
+
+		belowRoot = records(Level.FINE, "com.example.web.Server", "Processed order");
+		belowLogger = records(Level.INFO, "com.example.shop.orders.OrderService", "Processed order");
+		plainMessage = records(Level.INFO, "com.example.web.Server", "Sent heartbeat to the load balancer");
+		patternMessage = records(Level.INFO, "com.example.web.Server", "Polled 12 queues");
+
+		Level[] sample = { Level.INFO, Level.FINE, Level.WARNING, Level.SEVERE, OllLevel.DEBUG, OllLevel.ERROR };
+		levels = new Level[RECORDS];
+		for (int i = 0; i < RECORDS; i++) {
+			levels[i] = sample[i % sample.length];
+		}
+		legacyMap.put(Level.ALL, OllLevel.ALL);
+		legacyMap.put(Level.FINEST, OllLevel.TRACE);
+		legacyMap.put(Level.FINER, OllLevel.TRACE);
+		legacyMap.put(Level.FINE, OllLevel.DEBUG);
+		legacyMap.put(Level.CONFIG, OllLevel.DEBUG);
+		legacyMap.put(Level.INFO, OllLevel.INFO);
+		legacyMap.put(Level.WARNING, OllLevel.WARN);
+		legacyMap.put(Level.SEVERE, OllLevel.ERROR);
+		legacyMap.put(Level.OFF, OllLevel.OFF);
+	}
+
+
+	private static LogRecord[] records(Level level, String logger, String message) {
+		LogRecord[] records = new LogRecord[RECORDS];
+		for (int i = 0; i < RECORDS; i++) {
+			records[i] = new LogRecord(level, message);
+			records[i].setLoggerName(logger);
+		}
+		return records;
+	}
+
+
+	@TearDown
+	public void tearDown() {
+		handler.close();
+	}
+
+
+	@Benchmark
+	public void rejectByRootLevel(Cursor c) {
+		handler.publish(belowRoot[c.next++ & (RECORDS - 1)]);
+	}
+
+
+	@Benchmark
+	public void rejectByLoggerLevel(Cursor c) {
+		handler.publish(belowLogger[c.next++ & (RECORDS - 1)]);
+	}
+
+
+	@Benchmark
+	public void rejectByPlainMessage(Cursor c) {
+		handler.publish(plainMessage[c.next++ & (RECORDS - 1)]);
+	}
+
+
+	@Benchmark
+	public void rejectByPatternMessage(Cursor c) {
+		handler.publish(patternMessage[c.next++ & (RECORDS - 1)]);
+	}
+
+
+	@Benchmark
+	public Level translate(Cursor c) {
+		return levelConverter.translate(levels[c.next++ & (RECORDS - 1)]);
+	}
+
+
+	/**
+	 * What LevelConverter.translate() used to do: a map lookup, then a scan of the map's values for
+	 * levels that are already OohLaLog levels.
+	 */
+	@Benchmark
+	public Level legacyTranslate(Cursor c) {
+		Level old = levels[c.next++ & (RECORDS - 1)];
+		Level ollLevel = legacyMap.get(old);
+		if (ollLevel != null) return ollLevel;
+		else if (legacyMap.containsValue(old)) return old;
+		else return OllLevel.INFO;
+	}
+}
@@ -0,0 +1,90 @@
+package com.oohlalog.logging;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Cost of formatting the message of a log on the flushing thread.  formatMessage is what
+ * java.util.logging.Formatter does, parsing the pattern every time; cacheHit and cacheMiss use a
+ * MessageFormatCache that holds every pattern, or that is too small to keep any of them.
+ * noPlaceholder is a message with parameters but no placeholder, which skips the cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FormatBenchmark {
+	private static final int RECORDS = 1024;
+	private static final String[] PATTERNS = {
+		"Processed order {0} for customer {1}",
+		"Cache {0} evicted {1} entries in {2} ms",
+		"User {0} logged in from {1}",
+		"Retrying request {0}, attempt {1} of {2}",
+	};
+
+	private LogRecord[] records;
+	private LogRecord[] plain;
+	private int next;
+
+	private final Formatter formatter = new SimpleFormatter();
+	private final MessageFormatCache hits = new MessageFormatCache(MessageFormatCache.DEFAULT_MAX_ENTRIES);
+	private final MessageFormatCache misses = new MessageFormatCache(1);
+
+
+	@Setup
+	public void setup() {
+		records = new LogRecord[RECORDS];
+		plain = new LogRecord[RECORDS];
+		for (int i = 0; i < RECORDS; i++) {
+			Object[] params = { "order-" + i, i * 31, i & 7 };
+			records[i] = new LogRecord(Level.INFO, PATTERNS[i % PATTERNS.length]);
+			records[i].setParameters(params);
+			plain[i] = new LogRecord(Level.INFO, "Processed order for customer");
+			plain[i].setParameters(params);
+		}
+	}
+
+
+	@Benchmark
+	public String formatMessage() {
+		return formatter.formatMessage(records[next++ & (RECORDS - 1)]);
+	}
+
+
+	@Benchmark
+	public String cacheHit() {
+		return hits.format(records[next++ & (RECORDS - 1)]);
+	}
+
+
+	/**
+	 * Every record has a different pattern from the one before it, so the single entry never matches.
+	 */
+	@Benchmark
+	public String cacheMiss() {
+		return misses.format(records[next++ & (RECORDS - 1)]);
+	}
+
+
+	@Benchmark
+	public String noPlaceholder() {
+		return hits.format(plain[next++ & (RECORDS - 1)]);
+	}
+}
@@ -0,0 +1,235 @@
+package com.oohlalog.logging;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Drives java.util.logging Loggers at a target rate through an OohLaLogHandler that sends to an
+ * in-process StandInServer, and reports what reached the server: the sustained throughput, the logs
+ * lost and delivered more than once, and the latency from publishing a log to the server taking it.
+ *
+ * Every log carries its sequence number in its message, and the server hands every message it takes
+ * back to the generator, which counts the deliveries of each log.  Once the logs are published the
+ * handler is flushed, and it is closed once every log arrived or nothing arrived for drainSeconds.
+ * The sustained throughput counts the logs delivered while logs were still being published.
+ *
+ * Options: --rate LOGS_PER_SECOND (default 10000), --seconds N (10), --threads N (4),
+ * --drainSeconds N (30), the failure options of StandInServer, and any number of --set NAME=VALUE for
+ * the settings of the handler.  Values of true and false are Booleans, whole numbers Integers, whole
+ * numbers ending in L Longs, other numbers Doubles and anything else a String, for example
+ * --set threshold=500 --set timeBuffer=1000L --set compression=gzip.
+ */
+public class LoadGenerator {
+	private static final String PREFIX = "load ";
+
+	private final int rate;
+	private final int seconds;
+	private final int threads;
+	private final long drainMillis;
+	private final StandInServer server;
+	private final Map<String, Object> settings;
+
+	// By sequence number: when each log was published, how often it was delivered and how long its
+	// first delivery took
+	private final long[] publishNanos;
+	private final AtomicIntegerArray deliveries;
+	private final long[] latencyNanos;
+
+	// When the last new log was delivered
+	private final AtomicLong lastDeliveryNanos = new AtomicLong();
+
+
+	LoadGenerator(int rate, int seconds, int threads, long drainMillis, StandInServer server, Map<String, Object> settings) {
+		this.rate = rate;
+		this.seconds = seconds;
+		this.threads = threads;
+		this.drainMillis = drainMillis;
+		this.server = server;
+		this.settings = settings;
+		int total = rate * seconds;
+		this.publishNanos = new long[total];
+		this.deliveries = new AtomicIntegerArray(total);
+		this.latencyNanos = new long[total];
+	}
+
+
+	/**
+	 * Runs the load and prints the report.
+	 */
+	void run() throws Exception {
+		server.setListener(new StandInServer.Listener() {
+			public void onMessage(String message) {
+				if (!message.startsWith(PREFIX)) return;
+				int seq = Integer.parseInt(message.substring(PREFIX.length()));
+				if (deliveries.incrementAndGet(seq) == 1) {
+					long now = System.nanoTime();
+					latencyNanos[seq] = now - publishNanos[seq];
+					lastDeliveryNanos.set(now);
+				}
+			}
+		});
+		Map<String, Object> map = new HashMap<String, Object>(settings);
+		map.put("host", "127.0.0.1");
+		map.put("port", server.getPort());
+		OohLaLogHandler handler = new OohLaLogHandler("load", map);
+
+		final long start = System.nanoTime();
+		Thread[] publishers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final Logger logger = Logger.getLogger("load." + t);
+			logger.setUseParentHandlers(false);
+			logger.setLevel(Level.ALL);
+			logger.addHandler(handler);
+			final int first = t;
+			publishers[t] = new Thread(new Runnable() {
+				public void run() {
+					publish(logger, first, start);
+				}
+			}, "load-" + t);
+			publishers[t].start();
+		}
+		for (Thread publisher : publishers) {
+			publisher.join();
+		}
+		long published = System.nanoTime();
+
+		// Send what is left, as an application would when it is done, and wait for the logs still on
+		// their way for as long as they keep arriving
+		handler.flush();
+		int total = publishNanos.length;
+		long lastProgress = System.currentTimeMillis();
+		long delivered = 0;
+		while (delivered < total && System.currentTimeMillis() - lastProgress < drainMillis) {
+			Thread.sleep(100);
+			long now = countDelivered();
+			if (now > delivered) {
+				delivered = now;
+				lastProgress = System.currentTimeMillis();
+			}
+		}
+		handler.close();
+		Thread.sleep(1000);
+		for (int t = 0; t < threads; t++) {
+			Logger.getLogger("load." + t).removeHandler(handler);
+		}
+		report(start, published);
+	}
+
+
+	/**
+	 * Publishes every threads-th log from first on, each at its time in the schedule, or at once if the
+	 * thread is behind it.
+	 */
+	private void publish(Logger logger, int first, long start) {
+		double nanosPerLog = 1e9 / rate;
+		for (int seq = first; seq < publishNanos.length; seq += threads) {
+			long due = start + (long)(seq * nanosPerLog);
+			long wait;
+			while ((wait = due - System.nanoTime()) > 0) {
+				if (wait > 100000) LockSupport.parkNanos(wait - 50000);
+				else Thread.onSpinWait();
+			}
+			publishNanos[seq] = System.nanoTime();
+			logger.log(Level.INFO, PREFIX + seq);
+		}
+	}
+
+
+	private long countDelivered() {
+		long n = 0;
+		for (int i = 0; i < deliveries.length(); i++) {
+			if (deliveries.get(i) > 0) n++;
+		}
+		return n;
+	}
+
+
+	private void report(long start, long published) {
+		int total = publishNanos.length;
+		long delivered = 0;
+		long duplicates = 0;
+		long[] latencies = new long[total];
+		for (int i = 0; i < total; i++) {
+			int n = deliveries.get(i);
+			if (n > 0) latencies[(int)delivered++] = latencyNanos[i];
+			if (n > 1) duplicates += n - 1;
+		}
+		long lost = total - delivered;
+		long sustained = 0;
+		for (int i = 0; i < total; i++) {
+			if (deliveries.get(i) > 0 && publishNanos[i] + latencyNanos[i] <= published) sustained++;
+		}
+		double publishSeconds = (published - start) / 1e9;
+		double deliverySeconds = (Math.max(lastDeliveryNanos.get(), published) - start) / 1e9;
+		Arrays.sort(latencies, 0, (int)delivered);
+
+		System.out.printf("published  %d logs in %.2f s (%.0f logs/s, target %d)%n", total, publishSeconds, total / publishSeconds, rate);
+		System.out.printf("delivered  %d logs in %.2f s, %d while publishing (%.0f logs/s sustained)%n", delivered, deliverySeconds,
+				sustained, sustained / publishSeconds);
+		System.out.printf("lost       %d (%.3f%%)%n", lost, 100.0 * lost / total);
+		System.out.printf("duplicates %d (%.3f%%)%n", duplicates, 100.0 * duplicates / total);
+		if (delivered > 0) {
+			System.out.printf("latency    p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, p99.9 %.1f ms, max %.1f ms%n",
+					percentile(latencies, delivered, 0.5), percentile(latencies, delivered, 0.9),
+					percentile(latencies, delivered, 0.99), percentile(latencies, delivered, 0.999),
+					latencies[(int)delivered - 1] / 1e6);
+		}
+		System.out.println("server     " + server);
+	}
+
+
+	private static double percentile(long[] sorted, long n, double fraction) {
+		int i = (int)Math.min(n - 1, Math.max(0, (long)Math.ceil(fraction * n) - 1));
+		return sorted[i] / 1e6;
+	}
+
+
+	/**
+	 * Parses the value of a --set option as the type the handler expects of it.
+	 */
+	static Object parseSetting(String value) {
+		if (value.equals("true") || value.equals("false")) return Boolean.valueOf(value);
+		try {
+			if (value.endsWith("L")) return Long.valueOf(value.substring(0, value.length() - 1));
+			return Integer.valueOf(value);
+		}
+		catch (NumberFormatException e) {
+			// Not a whole number
+		}
+		try {
+			return Double.valueOf(value);
+		}
+		catch (NumberFormatException e) {
+			return value;
+		}
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		StandInServer.Options options = new StandInServer.Options(args);
+		Map<String, Object> settings = new HashMap<String, Object>();
+		settings.put("debug", false);
+		for (String setting : options.getSettings()) {
+			int eq = setting.indexOf('=');
+			if (eq < 0) throw new IllegalArgumentException("Expected --set name=value: " + setting);
+			settings.put(setting.substring(0, eq), parseSetting(setting.substring(eq + 1)));
+		}
+		StandInServer server = new StandInServer();
+		options.configure(server);
+		try {
+			new LoadGenerator(options.getInt("rate", 10000), options.getInt("seconds", 10), options.getInt("threads", 4),
+					options.getLong("drainSeconds", 30) * 1000, server, settings).run();
+		}
+		finally {
+			server.stop();
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,154 @@
+package com.oohlalog.logging;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Throughput of OohLaLogHandler.publish() on the calling threads, with flushes answered in memory.
+ * Run with -prof gc to see the bytes allocated per call; legacyEnqueue repeats what publish() did
+ * before records were queued untouched, for comparison with enqueue.  publish is run with 1 to 128
+ * threads, and each benchmark with the buffer in one stripe and split into eight.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PublishBenchmark {
+	private static final int RECORDS = 1024;
+
+	private OohLaLogHandler handler;
+	private LogRecordBuffer buffer;
+	private LogRecord[] records;
+	private final OohLaLogHandler.LevelConverter levelConverter = new OohLaLogHandler.LevelConverter();
+
+	@Param({"1", "8"})
+	public int bufferStripes;
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next;
+	}
+
+
+	@Setup
+	public void setup() {
+		records = BenchmarkSupport.records(RECORDS);
+		Map<String, Object> map = BenchmarkSupport.settings();
+		map.put("threshold", 100);
+		map.put("maxBuffer", 1000);
+		map.put("bufferStripes", bufferStripes);
+		handler = BenchmarkSupport.nullHandler(map);
+		buffer = new LogRecordBuffer(1000, LogRecordBuffer.DEFAULT_MAX_BUFFER_BYTES, LogRecordBuffer.DEFAULT_MAX_REQUEST_BYTES,
+				bufferStripes, null, null);
+	}
+
+
+	@TearDown
+	public void tearDown() {
+		handler.close();
+	}
+
+
+	@Benchmark
+	@Threads(1)
+	public void publish1(Cursor c) {
+		handler.publish(records[c.next++ & (RECORDS - 1)]);
+	}
+
+
+	@Benchmark
+	@Threads(4)
+	public void publish4(Cursor c) {
+		handler.publish(records[c.next++ & (RECORDS - 1)]);
+	}
+
+
+	@Benchmark
+	@Threads(8)
+	public void publish8(Cursor c) {
+		handler.publish(records[c.next++ & (RECORDS - 1)]);
+	}
+
+
+	@Benchmark
+	@Threads(16)
+	public void publish16(Cursor c) {
+		handler.publish(records[c.next++ & (RECORDS - 1)]);
+	}
+
+
+	@Benchmark
+	@Threads(32)
+	public void publish32(Cursor c) {
+		handler.publish(records[c.next++ & (RECORDS - 1)]);
+	}
+
+
+	@Benchmark
+	@Threads(128)
+	public void publish128(Cursor c) {
+		handler.publish(records[c.next++ & (RECORDS - 1)]);
+	}
+
+
+	/**
+	 * What publish() does now before signalling the flush thread: translate the level and enqueue.
+	 */
+	@Benchmark
+	@Threads(1)
+	public void enqueue(Cursor c) {
+		LogRecord record = records[c.next++ & (RECORDS - 1)];
+		buffer.addLogToBuffer(record, levelConverter.translate(record.getLevel()));
+	}
+
+
+	/**
+	 * What publish() used to do before signalling the flush thread: rewrite the record's level and
+	 * parameters, then enqueue it.  The record is restored afterwards so it can be used again.
+	 */
+	@Benchmark
+	@Threads(1)
+	public void legacyEnqueue(Cursor c) {
+		LogRecord record = records[c.next++ & (RECORDS - 1)];
+		Level level = record.getLevel();
+		Object[] original = record.getParameters();
+
+		record.setLevel(levelConverter.translate(record.getLevel()));
+		StringBuilder sb = new StringBuilder();
+		Object[] params = record.getParameters();
+		if (params != null) {
+			sb.append(Arrays.toString(params)).append("\n");
+		}
+		String className = record.getSourceClassName();
+		if (className != null) sb.append(className);
+		String methodName = record.getSourceMethodName();
+		if (methodName != null) sb.append(" ").append(methodName);
+		params = new Object[1];
+		params[0] = sb.toString();
+		record.setParameters(params);
+		buffer.addLogToBuffer(record);
+
+		record.setLevel(level);
+		record.setParameters(original);
+	}
+}
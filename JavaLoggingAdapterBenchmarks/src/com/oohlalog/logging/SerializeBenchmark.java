@@ -0,0 +1,68 @@
+package com.oohlalog.logging;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Cost of encoding a payload of published logs.  serialize is the public Payload.serialize(), which
+ * builds a String; encode is what a flush does, writing into the buffer's reusable encoder.  Divide the
+ * gc.alloc.rate.norm of -prof gc by batchSize for the bytes allocated per record.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializeBenchmark {
+	@Param({"10", "100", "1000"})
+	public int batchSize;
+
+	private Payload payload;
+	private PayloadEncoder encoder;
+
+
+	@Setup
+	public void setup() {
+		LogRecord[] records = BenchmarkSupport.records(batchSize);
+		OohLaLogHandler.LevelConverter levelConverter = new OohLaLogHandler.LevelConverter();
+		Level[] levels = new Level[batchSize];
+		for (int i = 0; i < batchSize; i++) {
+			levels[i] = levelConverter.translate(records[i].getLevel());
+		}
+		payload = new Payload.Builder()
+		.authToken("benchmark")
+		.messages(Arrays.asList(records))
+		.levels(levels)
+		.build();
+		encoder = new PayloadEncoder();
+	}
+
+
+	@Benchmark
+	public String serialize() {
+		return payload.serialize();
+	}
+
+
+	@Benchmark
+	public int encode() {
+		encoder.encode(payload);
+		return encoder.size();
+	}
+}
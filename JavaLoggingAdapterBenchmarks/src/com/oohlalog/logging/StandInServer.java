@@ -0,0 +1,357 @@
+package com.oohlalog.logging;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * A local HTTP server standing in for OohLaLog, for benchmarks and load tests.  It takes logs at
+ * /api/logging/save.json and statistics at /api/timeSeries/save.json, reads every request, decompressing
+ * it if needed, and answers with status 200 as the server does for a delivered payload.
+ *
+ * It can be made slow and unreliable.  Every request can be answered after a delay, and a fraction of
+ * them can be answered with 500, with 429 and a Retry-After header, or not at all, by closing the
+ * connection.  Failed requests are not counted as delivered, except for closed connections, which are
+ * closed after the logs were taken, as when a response is lost on its way: the client sees a failure
+ * and sends the logs again.
+ *
+ * Run main() to use it on its own; it prints what it received every second.
+ */
+public class StandInServer implements HttpHandler {
+	static final String LOGS_PATH = "/api/logging/save.json";
+	static final String STATS_PATH = "/api/timeSeries/save.json";
+
+	private static final byte[] OK = "{\"success\":true}".getBytes(PayloadEncoder.UTF_8);
+	private static final byte[] FAILED = "{\"success\":false}".getBytes(PayloadEncoder.UTF_8);
+	private static final byte[] TIMESTAMP = "\"timestamp\":".getBytes(PayloadEncoder.UTF_8);
+	private static final byte[] MESSAGE = "\"message\":\"".getBytes(PayloadEncoder.UTF_8);
+
+	/**
+	 * Receives the message of every log the server took.
+	 */
+	interface Listener {
+		/**
+		 * @param message the message as it was encoded in JSON, escapes included
+		 */
+		void onMessage(String message);
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	// How the server misbehaves, which may be changed while it runs
+	private volatile long latencyMillis = 0;
+	private volatile double errorRate = 0;
+	private volatile double throttleRate = 0;
+	private volatile int retryAfterSeconds = 1;
+	private volatile double resetRate = 0;
+
+	private volatile Listener listener;
+
+	// Totals, guarded by this
+	private long logs = 0;
+	private long statsPayloads = 0;
+	private long requests = 0;
+	private long bytes = 0;
+	private long errors = 0;
+	private long throttled = 0;
+	private long resets = 0;
+
+
+	/**
+	 * Constructor that starts a server on a free port of the loopback address.
+	 */
+	StandInServer() throws IOException {
+		this(0);
+	}
+
+
+	/**
+	 * Constructor that starts a server on the loopback address.
+	 *
+	 * @param port the port, or 0 for a free one
+	 */
+	StandInServer(int port) throws IOException {
+		// Otherwise the server's response headers and body wait on each other's acknowledgements
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		server.createContext("/", this);
+		// Requests are answered on their own threads, so a delay holds up only its own request
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "stand-in-server");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+	}
+
+
+	int getPort() {
+		return server.getAddress().getPort();
+	}
+
+
+	/**
+	 * Delays every response.
+	 *
+	 * @param latencyMillis the delay in milliseconds
+	 */
+	void setLatency(long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+
+	/**
+	 * Answers a fraction of the requests with status 500.
+	 */
+	void setErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+	}
+
+
+	/**
+	 * Answers a fraction of the requests with status 429.
+	 *
+	 * @param throttleRate the fraction of requests
+	 * @param retryAfterSeconds the value of their Retry-After header
+	 */
+	void setThrottleRate(double throttleRate, int retryAfterSeconds) {
+		this.throttleRate = throttleRate;
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+
+	/**
+	 * Closes the connection of a fraction of the requests after taking their logs, without answering.
+	 */
+	void setResetRate(double resetRate) {
+		this.resetRate = resetRate;
+	}
+
+
+	void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+
+	public void handle(HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath();
+		InputStream in = exchange.getRequestBody();
+		String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+		if (Compressor.GZIP.equals(encoding)) in = new GZIPInputStream(in);
+		else if (Compressor.DEFLATE.equals(encoding)) in = new InflaterInputStream(in);
+		byte[] body = in.readAllBytes();
+		in.close();
+
+		if (latencyMillis > 0) {
+			try {
+				Thread.sleep(latencyMillis);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		boolean isLogs = LOGS_PATH.equals(path);
+		if (!isLogs && !STATS_PATH.equals(path)) {
+			respond(exchange, 404, FAILED);
+			return;
+		}
+		double r = ThreadLocalRandom.current().nextDouble();
+		if (r < errorRate) {
+			synchronized (this) {
+				requests++;
+				errors++;
+			}
+			respond(exchange, 500, FAILED);
+			return;
+		}
+		if (r < errorRate + throttleRate) {
+			synchronized (this) {
+				requests++;
+				throttled++;
+			}
+			exchange.getResponseHeaders().set("Retry-After", Integer.toString(retryAfterSeconds));
+			respond(exchange, 429, FAILED);
+			return;
+		}
+
+		int n = isLogs ? take(body) : 0;
+		boolean reset = (r < errorRate + throttleRate + resetRate);
+		synchronized (this) {
+			requests++;
+			bytes += body.length;
+			logs += n;
+			if (!isLogs) statsPayloads++;
+			if (reset) resets++;
+			notifyAll();
+		}
+		// Closing the exchange before the response headers are sent closes the connection
+		if (reset) exchange.close();
+		else respond(exchange, 200, OK);
+	}
+
+
+	private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+		exchange.sendResponseHeaders(status, body.length);
+		exchange.getResponseBody().write(body);
+		exchange.close();
+	}
+
+
+	/**
+	 * Counts the logs in a payload and hands their messages to the listener.
+	 */
+	private int take(byte[] body) {
+		Listener listener = this.listener;
+		int n = 0;
+		for (int i = 0; i <= body.length - TIMESTAMP.length; i++) {
+			if (matches(body, i, TIMESTAMP)) {
+				n++;
+			}
+			else if (listener != null && matches(body, i, MESSAGE)) {
+				int start = i + MESSAGE.length;
+				int end = start;
+				while (end < body.length && body[end] != '"') {
+					end += (body[end] == '\\') ? 2 : 1;
+				}
+				listener.onMessage(new String(body, start, Math.min(end, body.length) - start, PayloadEncoder.UTF_8));
+				i = end;
+			}
+		}
+		return n;
+	}
+
+
+	private static boolean matches(byte[] body, int at, byte[] marker) {
+		if (at + marker.length > body.length) return false;
+		for (int j = 0; j < marker.length; j++) {
+			if (body[at + j] != marker[j]) return false;
+		}
+		return true;
+	}
+
+
+	/**
+	 * Waits until the server has taken at least the given total number of logs.
+	 *
+	 * @throws IllegalStateException if they do not arrive within 10 seconds
+	 */
+	synchronized void awaitLogs(long total) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (logs < total) {
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0) throw new IllegalStateException("Stand-in received " + logs + " of " + total + " logs");
+			wait(wait);
+		}
+	}
+
+
+	synchronized long getLogs() {
+		return logs;
+	}
+
+
+	synchronized long getRequests() {
+		return requests;
+	}
+
+
+	void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+
+	@Override
+	public synchronized String toString() {
+		return "requests=" + requests + " logs=" + logs + " statsPayloads=" + statsPayloads + " bytes=" + bytes
+				+ " errors=" + errors + " throttled=" + throttled + " resets=" + resets;
+	}
+
+
+	/**
+	 * Runs the server until the process is stopped.
+	 *
+	 * Options: --port N, --latency MILLIS, --errors FRACTION, --throttle FRACTION, --retryAfter SECONDS and
+	 * --resets FRACTION.
+	 */
+	public static void main(String[] args) throws Exception {
+		Options options = new Options(args);
+		StandInServer server = new StandInServer(options.getInt("port", 8080));
+		options.configure(server);
+		System.out.println("OohLaLog stand-in listening on 127.0.0.1:" + server.getPort());
+		for (;;) {
+			Thread.sleep(1000);
+			System.out.println(server);
+		}
+	}
+
+
+	/**
+	 * Command line options of the form --name value, shared with LoadGenerator.
+	 */
+	static class Options {
+		private final Map<String, String> values = new LinkedHashMap<String, String>();
+		private final List<String> settings = new ArrayList<String>();
+
+		Options(String[] args) {
+			for (int i = 0; i < args.length; i++) {
+				if (!args[i].startsWith("--") || i + 1 == args.length) {
+					throw new IllegalArgumentException("Expected --name value at " + args[i]);
+				}
+				String name = args[i].substring(2);
+				String value = args[++i];
+				if (name.equals("set")) settings.add(value);
+				else values.put(name, value);
+			}
+		}
+
+		int getInt(String name, int defaultValue) {
+			return values.containsKey(name) ? Integer.parseInt(values.get(name)) : defaultValue;
+		}
+
+		long getLong(String name, long defaultValue) {
+			return values.containsKey(name) ? Long.parseLong(values.get(name)) : defaultValue;
+		}
+
+		double getDouble(String name, double defaultValue) {
+			return values.containsKey(name) ? Double.parseDouble(values.get(name)) : defaultValue;
+		}
+
+		/**
+		 * Returns the values of every --set option, as name=value.
+		 */
+		List<String> getSettings() {
+			return settings;
+		}
+
+		/**
+		 * Applies the latency and failure options to a server.
+		 */
+		void configure(StandInServer server) {
+			server.setLatency(getLong("latency", 0));
+			server.setErrorRate(getDouble("errors", 0));
+			server.setThrottleRate(getDouble("throttle", 0), getInt("retryAfter", 1));
+			server.setResetRate(getDouble("resets", 0));
+		}
+	}
+}
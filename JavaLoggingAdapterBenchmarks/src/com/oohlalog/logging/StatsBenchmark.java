@@ -0,0 +1,121 @@
+package com.oohlalog.logging;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.LogRecord;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Cost of gathering the usage statistics sent with every stats payload.  sample is what the stats
+ * timer does, filling a reused snapshot; getStats is the map view in StatsUtils.  The source of memory,
+ * CPU and file system figures is JavaSysMon, which is on the classpath here, the JVM's
+ * OperatingSystemMXBean that is used without it, or none, leaving only the adapter's own statistics.
+ * fullPayload and deltaPayload add serializing the payload, with every metric or with only the ones that
+ * changed since the last payload.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StatsBenchmark {
+	@Param({"javasysmon", "mxbean", "none"})
+	public String source;
+
+	private OohLaLogHandler handler;
+	private StatsCollector collector;
+	private final StatsSnapshot snapshot = new StatsSnapshot();
+	private final StatsSnapshot delta = new StatsSnapshot();
+	private final MetricTable table = new MetricTable(MetricTable.DEFAULT_EPSILON, Integer.MAX_VALUE);
+
+
+	@Setup
+	public void setup() {
+		if ("none".equals(source)) {
+			handler = new OohLaLogHandler("benchmark", BenchmarkSupport.settings()) {
+				@Override
+				protected HttpTransport getTransport() {
+					return BenchmarkSupport.NULL_TRANSPORT;
+				}
+				@Override
+				protected boolean getShowMemoryStats() {
+					return false;
+				}
+				@Override
+				protected boolean getShowCPUStats() {
+					return false;
+				}
+				@Override
+				protected boolean getShowFileSystemStats() {
+					return false;
+				}
+			};
+		}
+		else {
+			handler = BenchmarkSupport.nullHandler(BenchmarkSupport.settings());
+		}
+		// Some of the adapter's own counters, as a handler under load would have them
+		handler.setRateLimit("level:DEBUG", 1000);
+		handler.setSampleRate("logger:com.example", 0.5);
+		for (LogRecord record : BenchmarkSupport.records(1000)) {
+			handler.publish(record);
+		}
+		collector = new StatsCollector(handler, "javasysmon".equals(source));
+		// Past the first payload, which is a keyframe
+		collector.sample(snapshot);
+		table.select(snapshot, delta);
+		table.commit();
+	}
+
+
+	@TearDown
+	public void tearDown() {
+		handler.close();
+	}
+
+
+	@Benchmark
+	public StatsSnapshot sample() {
+		collector.sample(snapshot);
+		return snapshot;
+	}
+
+
+	@Benchmark
+	public Map<String, Double> getStats() {
+		// As StatsUtils.getStats() does it
+		StatsSnapshot fresh = new StatsSnapshot();
+		collector.sample(fresh);
+		return fresh.addTo(null);
+	}
+
+
+	@Benchmark
+	public String fullPayload() {
+		collector.sample(snapshot);
+		return new StatsPayload.Builder().snapshot(snapshot).host("benchmark").build().serialize();
+	}
+
+
+	@Benchmark
+	public String deltaPayload() {
+		collector.sample(snapshot);
+		table.select(snapshot, delta);
+		table.commit();
+		return new StatsPayload.Builder().snapshot(delta).host("benchmark").build().serialize();
+	}
+}
@@ -0,0 +1,65 @@
+package com.oohlalog.logging;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Requests per second that each transport completes against a local stand-in for OohLaLog, reusing
+ * its kept-alive connections.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(2)
+@State(Scope.Benchmark)
+public class TransportBenchmark {
+	@Param({"pooled", "httpclient"})
+	public String type;
+
+	@Param({"1024", "65536"})
+	public int bodySize;
+
+	private StandInServer server;
+	private HttpTransport transport;
+	private byte[] body;
+
+
+	@Setup
+	public void setup() throws Exception {
+		server = new StandInServer();
+		transport = HttpTransport.get(type, false, "127.0.0.1", server.getPort(),
+				HttpTransport.DEFAULT_MAX_CONNECTIONS, HttpTransport.DEFAULT_IDLE_TIMEOUT);
+		body = new byte[bodySize];
+		Arrays.fill(body, (byte)' ');
+	}
+
+
+	@TearDown
+	public void tearDown() {
+		HttpTransport.release(transport);
+		server.stop();
+	}
+
+
+	@Benchmark
+	public int post() throws Exception {
+		return transport.post("/api/logging/save.json?apiKey=benchmark", null, body, body.length).getStatus();
+	}
+}